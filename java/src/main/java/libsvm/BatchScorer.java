@@ -0,0 +1,242 @@
+package libsvm;
+
+import java.util.Arrays;
+
+/**
+ * Scores many instances at once for models with dense support vectors.
+ *
+ * Predicting one instance at a time streams all support vectors from memory
+ * per instance. Here the support vectors are kept as a dense row-major matrix,
+ * and blocks of QUERY_BLOCK instances are scored against blocks of SV_BLOCK
+ * support vectors that stay in cache, as in a blocked matrix multiply:
+ * the dot products of a block are computed two instances by two support vectors
+ * at a time, then turned into kernel values and added to the decision values
+ * with the coefficients of the support vectors.
+ *
+ * RBF kernel values come from <code>||x||^2 + ||SV||^2 - 2 x^T SV</code>,
+ * and sums are taken in another order than in svm_predict_values,
+ * so decision values agree with it up to rounding.
+ */
+final class BatchScorer
+{
+	private static final int QUERY_BLOCK = 32;
+	private static final int SV_BLOCK = 128;
+	/** largest dense support vector matrix kept */
+	private static final long MAX_DENSE_BYTES = 1L << 28;
+
+	private final svm_model model;
+	private final int l;
+	private final int dim;
+	/** <code>S[s*dim+k]</code>: entry k of SV[s] */
+	private final double[] S;
+	/** <code>||SV[s]||^2</code> */
+	private final double[] S_square;
+	private final int nr_dec;
+	/** SV s adds <code>coef[s*width+t] K(x,SV[s])</code> to decision value <code>dec[s*width+t]</code> */
+	private final int width;
+	private final int[] dec;
+	private final double[] coef;
+
+	private BatchScorer(svm_model model, int dim)
+	{
+		this.model = model;
+		this.dim = dim;
+		l = model.l;
+		S = new double[l*dim];
+		S_square = new double[l];
+		for(int s=0;s<l;s++)
+		{
+			svm_node[] sv = model.SV[s];
+			for(int t=0;t<sv.length;t++)
+				if(sv[t].index >= 0)
+				{
+					S[s*dim+sv[t].index] = sv[t].value;
+					S_square[s] += sv[t].value*sv[t].value;
+				}
+		}
+
+		int nr_class = model.nr_class;
+		nr_dec = nr_class*(nr_class-1)/2;
+		width = nr_class-1;
+		dec = new int[l*width];
+		coef = new double[l*width];
+		int[] sv_class = new int[l];
+		if(model.nSV != null)
+		{
+			int k = 0;
+			for(int c=0;c<nr_class;c++)
+				for(int t=0;t<model.nSV[c];t++)
+					sv_class[k++] = c;
+		}
+		for(int s=0;s<l;s++)
+		{
+			int c = sv_class[s];
+			int t = 0;
+			for(int d=0;d<nr_class;d++)
+			{
+				if(d == c)
+					continue;
+				// decision function (c,d) weighs SVs of c by sv_coef[d-1], (d,c) by sv_coef[d]
+				int i = Math.min(c,d), j = Math.max(c,d);
+				dec[s*width+t] = i*nr_class - i*(i+1)/2 + (j-i-1);
+				coef[s*width+t] = (c < d) ? model.sv_coef[d-1][s] : model.sv_coef[d][s];
+				++t;
+			}
+		}
+	}
+
+	/**
+	 * @return a scorer for the model, or <code>null</code> if the model
+	 *   is not scored by plain kernel evaluations or its support vectors are too sparse
+	 */
+	static BatchScorer create(svm_model model)
+	{
+		if(model.param.kernel_type == svm_parameter.PRECOMPUTED || model.kernel_matrix != null ||
+		   model.sv_kernel_rows || model.rff != null || model.w != null || model.sv_index != null)
+			return null;
+		int l = model.l;
+		long nnz = 0;
+		int max_index = -1;
+		for(int s=0;s<l;s++)
+		{
+			svm_node[] sv = model.SV[s];
+			nnz += sv.length;
+			if(sv.length > 0)
+				max_index = Math.max(max_index, sv[sv.length-1].index);
+		}
+		int dim = max_index+1;
+		long entries = (long)l*dim;
+		// dense means at least a quarter of the entries are nonzero
+		if(l == 0 || 8*entries > MAX_DENSE_BYTES || 4*nnz < entries)
+			return null;
+		return new BatchScorer(model, dim);
+	}
+
+	/**
+	 * Computes the decision values of x[0...n).
+	 * @param scaling scales the instances as they are copied into the dense block,
+	 *   <code>null</code> if they are scaled already
+	 * @param dec_values receives the decision values of x[q] in dec_values[q]
+	 */
+	void decision_values(svm_node[][] x, int n, svm_scaling scaling, double[][] dec_values)
+	{
+		double[] Q = new double[QUERY_BLOCK*dim];
+		double[] Q_square = new double[QUERY_BLOCK];
+		double[] D = new double[QUERY_BLOCK*SV_BLOCK];
+		for(int q0=0;q0<n;q0+=QUERY_BLOCK)
+		{
+			int nq = Math.min(QUERY_BLOCK, n-q0);
+			Arrays.fill(Q, 0);
+			for(int q=0;q<nq;q++)
+			{
+				svm_node[] x_q = x[q0+q];
+				double sq = 0;
+				if(scaling != null)
+					sq = scaling.scale_dense(x_q, Q, q*dim, dim);
+				else
+					for(int t=0;t<x_q.length;t++)
+					{
+						int k = x_q[t].index;
+						double v = x_q[t].value;
+						sq += v*v;
+						if(k >= 0 && k < dim)
+							Q[q*dim+k] = v;
+					}
+				Q_square[q] = sq;
+				Arrays.fill(dec_values[q0+q], 0, nr_dec, 0);
+			}
+
+			for(int s0=0;s0<l;s0+=SV_BLOCK)
+			{
+				int ns = Math.min(SV_BLOCK, l-s0);
+				dot_block(Q, nq, s0, ns, D);
+				for(int q=0;q<nq;q++)
+				{
+					double[] dec_q = dec_values[q0+q];
+					for(int s=0;s<ns;s++)
+					{
+						double k = kernel(D[q*SV_BLOCK+s], Q_square[q], S_square[s0+s]);
+						int base = (s0+s)*width;
+						for(int t=0;t<width;t++)
+							dec_q[dec[base+t]] += coef[base+t] * k;
+					}
+				}
+			}
+
+			for(int q=0;q<nq;q++)
+			{
+				double[] dec_q = dec_values[q0+q];
+				for(int p=0;p<nr_dec;p++)
+					dec_q[p] -= model.rho[p];
+			}
+		}
+	}
+
+	/**
+	 * <code>D[q*SV_BLOCK+s] = Q_q^T SV[s0+s]</code> for q in [0,nq), s in [0,ns)
+	 */
+	private void dot_block(double[] Q, int nq, int s0, int ns, double[] D)
+	{
+		int q = 0;
+		for(;q+1<nq;q+=2)
+		{
+			int a0 = q*dim, a1 = a0+dim;
+			int s = 0;
+			for(;s+1<ns;s+=2)
+			{
+				int b0 = (s0+s)*dim, b1 = b0+dim;
+				double d00 = 0, d01 = 0, d10 = 0, d11 = 0;
+				for(int k=0;k<dim;k++)
+				{
+					double x0 = Q[a0+k], x1 = Q[a1+k];
+					double y0 = S[b0+k], y1 = S[b1+k];
+					d00 += x0*y0;
+					d01 += x0*y1;
+					d10 += x1*y0;
+					d11 += x1*y1;
+				}
+				D[q*SV_BLOCK+s] = d00;
+				D[q*SV_BLOCK+s+1] = d01;
+				D[(q+1)*SV_BLOCK+s] = d10;
+				D[(q+1)*SV_BLOCK+s+1] = d11;
+			}
+			for(;s<ns;s++)
+			{
+				D[q*SV_BLOCK+s] = dot(Q, a0, (s0+s)*dim);
+				D[(q+1)*SV_BLOCK+s] = dot(Q, a1, (s0+s)*dim);
+			}
+		}
+		for(;q<nq;q++)
+			for(int s=0;s<ns;s++)
+				D[q*SV_BLOCK+s] = dot(Q, q*dim, (s0+s)*dim);
+	}
+
+	private double dot(double[] Q, int a, int b)
+	{
+		double sum = 0;
+		for(int k=0;k<dim;k++)
+			sum += Q[a+k]*S[b+k];
+		return sum;
+	}
+
+	/**
+	 * @return the kernel value, from the dot product and the squared norms
+	 */
+	private double kernel(double dot, double x_square, double y_square)
+	{
+		svm_parameter param = model.param;
+		switch(param.kernel_type)
+		{
+			case svm_parameter.LINEAR:
+				return dot;
+			case svm_parameter.POLY:
+				return Kernel.powi(param.gamma*dot+param.coef0,param.degree);
+			case svm_parameter.RBF:
+				return Math.exp(-param.gamma*Math.max(x_square+y_square-2*dot, 0));
+			case svm_parameter.SIGMOID:
+				return Math.tanh(param.gamma*dot+param.coef0);
+			default:
+				return 0;	// java
+		}
+	}
+}
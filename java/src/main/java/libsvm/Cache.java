@@ -93,6 +93,39 @@ class Cache
 		return len;
 	}
 
+	/**
+	 * @return whether data [0,len) of the given index is cached
+	 */
+	boolean has_data(int index, int len)
+	{
+		return head[index].len >= len;
+	}
+
+	/**
+	 * @return whether data [0,len) of a new index fits without evicting others
+	 */
+	boolean has_room(int len)
+	{
+		return size >= len;
+	}
+
+	/**
+	 * Drops the data of the given index.
+	 * @return the data dropped, exactly [0,len), or <code>null</code> if none was cached
+	 */
+	float[] remove(int index)
+	{
+		head_t h = head[index];
+		if(h.len == 0)
+			return null;
+		float[] data = h.data;
+		lru_delete(h);
+		size += h.len;
+		h.data = null;
+		h.len = 0;
+		return data;
+	}
+
 	void swap_index(int i, int j)
 	{
 		if(i==j) return;
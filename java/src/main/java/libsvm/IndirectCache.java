@@ -0,0 +1,180 @@
+package libsvm;
+
+/**
+ * Kernel columns for shrinking by index indirection (<code>param.shrinking == 2</code>).
+ *
+ * The solver positions map to the original data indices through index,
+ * so swapping two positions only swaps two entries of index,
+ * while the data and the cache keep the original order.
+ * A column is cached under the original index of its data,
+ * with the entries [0,len) in the order the positions had when it was computed,
+ * so it takes no more room than with shrinking by swapping.
+ * Each order is a version: the first column request after positions were swapped
+ * starts a new one. A column of an older version is rearranged into the current
+ * order when it is requested again, computing only the entries it lacks,
+ * and a column is extended when the solver unshrinks.
+ * The last few versions are kept; the columns of older ones are dropped.
+ */
+final class IndirectCache
+{
+	private final Kernel kernel;
+	/** the labels the kernel values are multiplied with, <code>null</code> for none */
+	private final byte[] y;
+	private final int l;
+	private final Cache cache;
+	/** maps the solver positions to the original data indices */
+	private final int[] index;
+	/** the version each cached column is in, by original index */
+	private final int[] version_of;
+	/** the positions of the original indices in version v, in slot v % position_of.length */
+	private final int[][] position_of;
+	private int version;
+	/** whether positions were swapped since the current version started */
+	private boolean swapped;
+
+	/**
+	 * @param size the cache size in bytes, including the positions of the versions kept
+	 */
+	IndirectCache(Kernel kernel, byte[] y, int l, long size)
+	{
+		this.kernel = kernel;
+		this.y = y;
+		this.l = l;
+		// keep up to 64 versions in a sixteenth of the cache, at least 2
+		int kept = (int)Math.max(2, Math.min(64, size/16/(4L*l)));
+		cache = new Cache(l, size - 4L*l*kept);
+		index = new int[l];
+		version_of = new int[l];
+		position_of = new int[kept][];
+		position_of[0] = new int[l];
+		for(int k=0;k<l;k++)
+			index[k] = position_of[0][k] = k;
+	}
+
+	/** the cache, by original index, for Kernel.prewarm */
+	Cache cache()
+	{
+		return cache;
+	}
+
+	float q(int real_i, int real_j)
+	{
+		double k = kernel.kernel_function(real_i,real_j);
+		return (float)((y == null) ? k : y[real_i]*y[real_j]*k);
+	}
+
+	float[] get_Q(int i, int len)
+	{
+		if(swapped)
+			next_version();
+		int real_i = index[i];
+		float[][] data = new float[1][];
+		int v = version_of[real_i];
+		if(v != version)
+		{
+			version_of[real_i] = version;
+			float[] old = cache.remove(real_i);
+			if(old != null && version - v < position_of.length)
+			{
+				// rearrange the entries from the order of version v
+				int[] position = position_of[v % position_of.length];
+				// keep the entries beyond len as far as the old column has them
+				int n = len;
+				while(n < old.length && position[index[n]] < old.length)
+					n++;
+				cache.get_data(real_i,data,n);
+				float[] column = data[0];
+				for(int j=0;j<n;j++)
+				{
+					int real_j = index[j];
+					int p = position[real_j];
+					column[j] = (p < old.length) ? old[p] : q(real_i,real_j);
+				}
+				return column;
+			}
+		}
+		int start = cache.get_data(real_i,data,len);
+		if(start < len)
+			fill(real_i,start,len,data[0]);
+		return data[0];
+	}
+
+	void get_Q(int[] columns, int n, int len, float[][] Q_block)
+	{
+		for(int k=0;k<n;k++)
+			Q_block[k] = get_Q(columns[k],len);
+	}
+
+	/** fills the entries [start,len) of the column of original index real_i */
+	private void fill(int real_i, int start, int len, float[] column)
+	{
+		if(kernel.prefetcher != null)
+			start = kernel.prefetcher.fill(real_i,column,start,len);
+		if(start < len)
+			compute(real_i,start,len,column);
+	}
+
+	private void compute(int real_i, int start, int len, float[] column)
+	{
+		if(kernel.stored_column(real_i,index,start,len,column))
+		{
+			if(y != null)
+				for(int j=start;j<len;j++)
+					column[j] *= y[real_i]*y[index[j]];
+		}
+		else
+			for(int j=start;j<len;j++)
+				column[j] = q(real_i,index[j]);
+	}
+
+	/**
+	 * For Kernel.compute_column: the prefetcher is emptied before positions are swapped,
+	 * so the order does not change while this runs.
+	 */
+	float[] compute_column(int real_i, int len)
+	{
+		float[] column = new float[len];
+		compute(real_i,0,len,column);
+		return column;
+	}
+
+	void prefetch(int i, int len)
+	{
+		int real_i = index[i];
+		if(!cache.has_data(real_i,len))
+			kernel.prefetcher.submit(real_i,len);
+	}
+
+	void swap_index(int i, int j)
+	{
+		if(kernel.prefetcher != null)
+			kernel.prefetcher.cancel_all();
+		{ // swap(int, index[i], index[j]);
+			int tmp = index[i];
+			index[i] = index[j];
+			index[j] = tmp;
+		}
+		swapped = true;
+	}
+
+	private void next_version()
+	{
+		swapped = false;
+		version++;
+		int kept = position_of.length;
+		int slot = version % kept;
+		if(position_of[slot] == null)
+			position_of[slot] = new int[l];
+		else
+		{
+			// the version this slot held is dropped with its columns
+			int dropped = version - kept;
+			for(int k=0;k<l;k++)
+				if(version_of[k] == dropped)
+					cache.remove(k);
+		}
+		int[] position = position_of[slot];
+		for(int k=0;k<l;k++)
+			position[index[k]] = k;
+	}
+}
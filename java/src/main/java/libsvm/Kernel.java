@@ -1,53 +1,74 @@
 package libsvm;
 
+import java.util.Arrays;
+
 abstract class Kernel extends QMatrix
 {
-	private svm_node[][] x;
-	/**
-	 * The sample serial numbers.
-	 * <code>x[i][0] with i=0...(len-1)</code>.
-	 * This is only used in case of a precomputed kernel.
-	 * This is merely a cache, which brings us a huge speedup,
-	 * because we spare ourselves the repeated float2int conversion,
-	 * and we enhance array access locality.
-	 */
-	private int[] sampleSerialNumbers;
-	private final double[] x_square;
+	private final KernelFunction kernel;
 
-	// svm_parameter
-	private final int kernel_type;
-	private final int degree;
-	private final double gamma;
-	private final double coef0;
+	/** computes columns in the background, <code>null</code> if disabled */
+	protected final Prefetcher prefetcher;
+	/** the kernel store of the training run, <code>null</code> if disabled */
+	private final KernelStore.Run run;
+	/** persisted kernel columns, <code>null</code> if disabled */
+	private final KernelStore store;
+	/** index in the full training set of the run of each position, tracked for the store only */
+	private final int[] original;
+	/** index in the full training set of each row of the problem, for the store only */
+	private final int[] rows;
+	/** buffers for reordered columns returned by get_Q(int[],int,int,float[][]) */
+	private float[][] block_buffer;
 
 	@Override
 	abstract float[] get_Q(int column, int len);
 	@Override
+	abstract void get_Q(int[] columns, int n, int len, float[][] Q_block);
+	@Override
 	abstract double[] get_QD();
 
+	/**
+	 * @return at least n buffers of length len, reused by later calls
+	 */
+	float[][] block_buffer(int n, int len)
+	{
+		if(block_buffer == null || block_buffer.length < n)
+			block_buffer = new float[n][len];
+		return block_buffer;
+	}
+
+	/**
+	 * Computes the entries [0,len) the cache holds for the given index,
+	 * without touching the cache.
+	 * This is called on the prefetch threads.
+	 */
+	abstract float[] compute_column(int index, int len);
+
+	@Override
+	int prefetch_width()
+	{
+		return (prefetcher == null) ? 0 : prefetcher.width();
+	}
+
+	@Override
+	void done()
+	{
+		if(prefetcher != null)
+			prefetcher.shutdown();
+	}
+
 	@Override
 	void swap_index(int i, int j)
 	{
-		{ // swap(svm_node[], x[i], x[j]);
-			svm_node[] tmp = x[i];
-			x[i] = x[j];
-			x[j] = tmp;
-			if (kernel_type == svm_parameter.PRECOMPUTED) {
-				// also swap the cached index
-				final int tmpIndex = sampleSerialNumbers[i];
-				sampleSerialNumbers[i] = sampleSerialNumbers[j];
-				sampleSerialNumbers[j] = tmpIndex;
-			}
-		}
-		if(x_square != null)
-		{ // swap(double, x_square[i], x_square[j]);
-			double tmp = x_square[i];
-			x_square[i] = x_square[j];
-			x_square[j] = tmp;
+		kernel.swap_index(i,j);
+		if(original != null)
+		{ // swap(int, original[i], original[j]);
+			int tmp = original[i];
+			original[i] = original[j];
+			original[j] = tmp;
 		}
 	}
 
-	private static double powi(double base, int times)
+	static double powi(double base, int times)
 	{
 		double tmp = base, ret = 1.0;
 
@@ -61,51 +82,176 @@ abstract class Kernel extends QMatrix
 
 	double kernel_function(int i, int j)
 	{
-		switch(kernel_type)
+		return kernel.value(i,j);
+	}
+
+	/**
+	 * Sets <code>column[j] = K(x_i, x_j)</code> for j in [start,len).
+	 */
+	void kernel_column(int i, int start, int len, float[] column)
+	{
+		if(!stored_column(i,start,len,column))
+			kernel.fill_column(i,start,len,column);
+	}
+
+	/**
+	 * Reads <code>column[j] = K(x_i, x_j)</code> for j in [start,len) from the kernel store.
+	 * A column not stored yet is computed in full and stored, if there is room.
+	 * @return whether the column was filled
+	 */
+	boolean stored_column(int i, int start, int len, float[] column)
+	{
+		if(store == null)
+			return false;
+		if(store.get(original[i],original,start,len,column))
+			return true;
+		if(!store.has_room())
+			return false;
+
+		float[] full = new float[run.size()];
+		run.fill_column(original[i],full);
+		store.put(original[i],full);
+		for(int j=start;j<len;j++)
+			column[j] = full[original[j]];
+		return true;
+	}
+
+	/**
+	 * Like {@link #stored_column(int, int, int, float[])}, for shrinking by index indirection,
+	 * where the data keeps the original order:
+	 * reads <code>column[j] = K(x_i, x_order[j])</code> for j in [start,len).
+	 */
+	boolean stored_column(int i, int[] order, int start, int len, float[] column)
+	{
+		if(store == null)
+			return false;
+		if(store.get(rows[i],rows,order,start,len,column))
+			return true;
+		if(!store.has_room())
+			return false;
+
+		float[] full = new float[run.size()];
+		run.fill_column(rows[i],full);
+		store.put(rows[i],full);
+		for(int j=start;j<len;j++)
+			column[j] = full[rows[order[j]]];
+		return true;
+	}
+
+	/**
+	 * Fills the cache with the columns found in the kernel store, as far as it has room.
+	 * Called by the constructors of the subclasses, before any indices are swapped,
+	 * with the cache indices and lengths of {@link #compute_column(int, int)}.
+	 */
+	void prewarm(Cache cache, int len)
+	{
+		if(store == null)
+			return;
+		// the row of the problem of each row of the full set, -1 for none
+		int[] row_of = new int[run.size()];
+		Arrays.fill(row_of,-1);
+		for(int i=0;i<rows.length;i++)
+			row_of[rows[i]] = i;
+		float[][] data = new float[1][];
+		int[] columns = store.columns();
+		for(int k=0;k<columns.length && cache.has_room(len);k++)
 		{
-			case svm_parameter.LINEAR:
-				return dot(x[i],x[j]);
-			case svm_parameter.POLY:
-				return powi(gamma*dot(x[i],x[j])+coef0,degree);
-			case svm_parameter.RBF:
-				return Math.exp(-gamma*(x_square[i]+x_square[j]-2*dot(x[i],x[j])));
-			case svm_parameter.SIGMOID:
-				return Math.tanh(gamma*dot(x[i],x[j])+coef0);
-			case svm_parameter.PRECOMPUTED:
-				return x[i][sampleSerialNumbers[j]].value;
-			default:
-				return 0; // java
+			int i = row_of[columns[k]];
+			if(i < 0)
+				continue;
+			cache.get_data(i,data,len);
+			System.arraycopy(compute_column(i,len),0,data[0],0,len);
 		}
 	}
 
 	/**
 	 * Prepares to calculate the l*l kernel matrix
 	 */
-	Kernel(int l, svm_node[][] x_, svm_parameter param)
+	Kernel(svm_problem prob, svm_parameter param)
 	{
-		this.kernel_type = param.kernel_type;
-		this.degree = param.degree;
-		this.gamma = param.gamma;
-		this.coef0 = param.coef0;
+		kernel = KernelFunction.create(prob, param);
 
-		x = x_.clone();
+		if(param.prefetch_threads > 0)
+			prefetcher = new Prefetcher(this, param.prefetch_threads);
+		else
+			prefetcher = null;
 
-		// extract the sample serial numbers from x
-		if(kernel_type == svm_parameter.PRECOMPUTED)
+		// sub-problems share the store of the full training set
+		rows = (prob.kernel_store != null) ? prob.kernel_store.rows(prob.x) : null;
+		if(rows != null)
 		{
-			sampleSerialNumbers = new int[x.length];
-			for (int i = 0; i < x.length; i++) {
-				sampleSerialNumbers[i] = (int) x[i][0].value;
-			}
+			run = prob.kernel_store;
+			store = run.store();
+			original = rows.clone();
 		}
+		else
+		{
+			run = null;
+			store = null;
+			original = null;
+		}
+	}
+
+	/**
+	 * Converts the rows to dense arrays,
+	 * if at least half of the entries up to the largest index of each row are non-zero.
+	 * @return <code>null</code> if the data is too sparse
+	 */
+	static double[][] densify(svm_node[][] x)
+	{
+		long nnz = 0;
+		long slots = 0;
+		for(int i=0;i<x.length;i++)
+		{
+			int n = x[i].length;
+			nnz += n;
+			if(n > 0)
+				slots += x[i][n-1].index+1;
+		}
+		if(slots > 2*nnz)
+			return null;
+
+		double[][] dense = new double[x.length][];
+		for(int i=0;i<x.length;i++)
+			dense[i] = densify(x[i]);
+		return dense;
+	}
 
-		if(kernel_type == svm_parameter.RBF)
+	/**
+	 * @return <code>dense[index] = value</code> for the nodes of x,
+	 *   up to the largest index (the last one, as indices are ascending)
+	 */
+	static double[] densify(svm_node[] x)
+	{
+		int n = x.length;
+		double[] dense = new double[(n > 0) ? x[n-1].index+1 : 0];
+		for(int k=0;k<n;k++)
+			dense[x[k].index] = x[k].value;
+		return dense;
+	}
+
+	/**
+	 * Dot product of two dense rows.
+	 * Four independent accumulators let the CPU pipeline the multiply-adds;
+	 * compared to the sequential sum of {@link #dot(svm_node[], svm_node[])}
+	 * the result differs by rounding only, i.e. by less than
+	 * <code>n * 2^-53 * sum_k |x_k*y_k|</code>.
+	 */
+	static double dot(double[] x, double[] y)
+	{
+		int n = Math.min(x.length, y.length);
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int k = 0;
+		for(; k+3<n; k+=4)
 		{
-			x_square = new double[l];
-			for(int i=0;i<l;i++)
-				x_square[i] = dot(x[i],x[i]);
+			s0 += x[k]*y[k];
+			s1 += x[k+1]*y[k+1];
+			s2 += x[k+2]*y[k+2];
+			s3 += x[k+3]*y[k+3];
 		}
-		else x_square = null;
+		for(; k<n; k++)
+			s0 += x[k]*y[k];
+		return (s0+s1)+(s2+s3);
 	}
 
 	static double dot(svm_node[] x, svm_node[] y)
@@ -130,6 +276,50 @@ abstract class Kernel extends QMatrix
 		return sum;
 	}
 
+	/**
+	 * @return the squared euclidean distance of x and y
+	 */
+	static double distance_square(svm_node[] x, svm_node[] y)
+	{
+		double sum = 0;
+		int xlen = x.length;
+		int ylen = y.length;
+		int i = 0;
+		int j = 0;
+		while(i < xlen && j < ylen)
+		{
+			if(x[i].index == y[j].index)
+			{
+				double d = x[i++].value - y[j++].value;
+				sum += d*d;
+			}
+			else if(x[i].index > y[j].index)
+			{
+				sum += y[j].value * y[j].value;
+				++j;
+			}
+			else
+			{
+				sum += x[i].value * x[i].value;
+				++i;
+			}
+		}
+
+		while(i < xlen)
+		{
+			sum += x[i].value * x[i].value;
+			++i;
+		}
+
+		while(j < ylen)
+		{
+			sum += y[j].value * y[j].value;
+			++j;
+		}
+
+		return sum;
+	}
+
 	/**
 	 * For doing single kernel evaluation
 	 */
@@ -143,45 +333,7 @@ abstract class Kernel extends QMatrix
 			case svm_parameter.POLY:
 				return powi(param.gamma*dot(x,y)+param.coef0,param.degree);
 			case svm_parameter.RBF:
-			{
-				double sum = 0;
-				int xlen = x.length;
-				int ylen = y.length;
-				int i = 0;
-				int j = 0;
-				while(i < xlen && j < ylen)
-				{
-					if(x[i].index == y[j].index)
-					{
-						double d = x[i++].value - y[j++].value;
-						sum += d*d;
-					}
-					else if(x[i].index > y[j].index)
-					{
-						sum += y[j].value * y[j].value;
-						++j;
-					}
-					else
-					{
-						sum += x[i].value * x[i].value;
-						++i;
-					}
-				}
-
-				while(i < xlen)
-				{
-					sum += x[i].value * x[i].value;
-					++i;
-				}
-
-				while(j < ylen)
-				{
-					sum += y[j].value * y[j].value;
-					++j;
-				}
-
-				return Math.exp(-param.gamma*sum);
-			}
+				return Math.exp(-param.gamma*distance_square(x,y));
 			case svm_parameter.SIGMOID:
 				return Math.tanh(param.gamma*dot(x,y)+param.coef0);
 			case svm_parameter.PRECOMPUTED:
@@ -190,4 +342,53 @@ abstract class Kernel extends QMatrix
 				return 0;	// java
 		}
 	}
+
+	/**
+	 * Evaluates the kernel of x against <code>y[0,n)</code>,
+	 * selecting the kernel type once for the whole loop.
+	 * @param kvalue receives <code>K(x, y[i])</code> in <code>kvalue[i]</code>
+	 */
+	static void k_function(svm_node[] x, svm_node[][] y, int n,
+					svm_parameter param, double[] kvalue)
+	{
+		k_function(x,y,0,n,param,kvalue);
+	}
+
+	/**
+	 * Evaluates the kernel of x against <code>y[start,end)</code>.
+	 * @param kvalue receives <code>K(x, y[i])</code> in <code>kvalue[i]</code>
+	 */
+	static void k_function(svm_node[] x, svm_node[][] y, int start, int end,
+					svm_parameter param, double[] kvalue)
+	{
+		int i;
+		double gamma = param.gamma;
+		double coef0 = param.coef0;
+		switch(param.kernel_type)
+		{
+			case svm_parameter.LINEAR:
+				for(i=start;i<end;i++)
+					kvalue[i] = dot(x,y[i]);
+				break;
+			case svm_parameter.POLY:
+				for(i=start;i<end;i++)
+					kvalue[i] = powi(gamma*dot(x,y[i])+coef0,param.degree);
+				break;
+			case svm_parameter.RBF:
+				for(i=start;i<end;i++)
+					kvalue[i] = Math.exp(-gamma*distance_square(x,y[i]));
+				break;
+			case svm_parameter.SIGMOID:
+				for(i=start;i<end;i++)
+					kvalue[i] = Math.tanh(gamma*dot(x,y[i])+coef0);
+				break;
+			case svm_parameter.PRECOMPUTED:
+				for(i=start;i<end;i++)
+					kvalue[i] = x[(int)(y[i][0].value)].value;
+				break;
+			default:
+				for(i=start;i<end;i++)
+					kvalue[i] = 0;	// java
+		}
+	}
 }
@@ -0,0 +1,316 @@
+package libsvm;
+
+/**
+ * Kernel function over the training data, specialized by kernel type.
+ *
+ * The type is selected once, when the Q matrix is constructed,
+ * so evaluations do not switch on the kernel type per entry,
+ * and each type fills whole columns in a loop of its own.
+ */
+abstract class KernelFunction
+{
+	protected final svm_node[][] x;
+	/**
+	 * Dense copies of the rows of x (<code>x_dense[i][index] = value</code>),
+	 * or <code>null</code> if the data is too sparse for this to pay off.
+	 * Dot products over plain arrays avoid the index merge
+	 * and are computed with several accumulators, see {@link Kernel#dot(double[], double[])}.
+	 */
+	protected final double[][] x_dense;
+
+	KernelFunction(svm_node[][] x_, boolean use_dense)
+	{
+		x = x_.clone();
+		x_dense = use_dense ? Kernel.densify(x) : null;
+	}
+
+	static KernelFunction create(svm_problem prob, svm_parameter param)
+	{
+		int l = prob.l;
+		svm_node[][] x = prob.x;
+		switch(param.kernel_type)
+		{
+			case svm_parameter.LINEAR:
+				return new Linear(x);
+			case svm_parameter.POLY:
+				return new Poly(x, param);
+			case svm_parameter.RBF:
+				return new RBF(l, x, param);
+			case svm_parameter.SIGMOID:
+				return new Sigmoid(x, param);
+			case svm_parameter.PRECOMPUTED:
+				if(prob.kernel_matrix != null)
+					return new PrecomputedMatrix(x, prob.kernel_matrix);
+				return new Precomputed(x);
+			default:
+				throw new IllegalArgumentException("Unknown kernel type: " + param.kernel_type);
+		}
+	}
+
+	/**
+	 * @return K(x_i, x_j)
+	 */
+	abstract double value(int i, int j);
+
+	/**
+	 * Sets <code>column[j] = K(x_i, x_j)</code> for j in [start,len).
+	 * This may be called from several threads at once.
+	 */
+	abstract void fill_column(int i, int start, int len, float[] column);
+
+	void swap_index(int i, int j)
+	{
+		{ // swap(svm_node[], x[i], x[j]);
+			svm_node[] tmp = x[i];
+			x[i] = x[j];
+			x[j] = tmp;
+		}
+		if(x_dense != null)
+		{ // swap(double[], x_dense[i], x_dense[j]);
+			double[] tmp = x_dense[i];
+			x_dense[i] = x_dense[j];
+			x_dense[j] = tmp;
+		}
+	}
+
+	protected final double dot(int i, int j)
+	{
+		if(x_dense != null)
+			return Kernel.dot(x_dense[i],x_dense[j]);
+		return Kernel.dot(x[i],x[j]);
+	}
+
+	/**
+	 * Sets <code>dots[j] = x_i^T x_j</code> for j in [start,len).
+	 */
+	protected final void fill_dots(int i, int start, int len, double[] dots)
+	{
+		int j;
+		if(x_dense != null)
+		{
+			double[] x_i = x_dense[i];
+			for(j=start;j<len;j++)
+				dots[j] = Kernel.dot(x_i,x_dense[j]);
+		}
+		else
+		{
+			svm_node[] x_i = x[i];
+			for(j=start;j<len;j++)
+				dots[j] = Kernel.dot(x_i,x[j]);
+		}
+	}
+
+	static final class Linear extends KernelFunction
+	{
+		Linear(svm_node[][] x)
+		{
+			super(x, true);
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return dot(i,j);
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			double[] dots = new double[len];
+			fill_dots(i,start,len,dots);
+			for(int j=start;j<len;j++)
+				column[j] = (float)dots[j];
+		}
+	}
+
+	static final class Poly extends KernelFunction
+	{
+		private final int degree;
+		private final double gamma;
+		private final double coef0;
+
+		Poly(svm_node[][] x, svm_parameter param)
+		{
+			super(x, true);
+			degree = param.degree;
+			gamma = param.gamma;
+			coef0 = param.coef0;
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return Kernel.powi(gamma*dot(i,j)+coef0,degree);
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			double[] dots = new double[len];
+			fill_dots(i,start,len,dots);
+			for(int j=start;j<len;j++)
+				column[j] = (float)Kernel.powi(gamma*dots[j]+coef0,degree);
+		}
+	}
+
+	static final class RBF extends KernelFunction
+	{
+		private final double gamma;
+		private final double[] x_square;
+
+		RBF(int l, svm_node[][] x, svm_parameter param)
+		{
+			super(x, true);
+			gamma = param.gamma;
+			x_square = new double[l];
+			for(int i=0;i<l;i++)
+				x_square[i] = dot(i,i);
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return Math.exp(-gamma*(x_square[i]+x_square[j]-2*dot(i,j)));
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			double[] dots = new double[len];
+			fill_dots(i,start,len,dots);
+			double x_square_i = x_square[i];
+			for(int j=start;j<len;j++)
+				column[j] = (float)Math.exp(-gamma*(x_square_i+x_square[j]-2*dots[j]));
+		}
+
+		@Override
+		void swap_index(int i, int j)
+		{
+			super.swap_index(i,j);
+			{ // swap(double, x_square[i], x_square[j]);
+				double tmp = x_square[i];
+				x_square[i] = x_square[j];
+				x_square[j] = tmp;
+			}
+		}
+	}
+
+	static final class Sigmoid extends KernelFunction
+	{
+		private final double gamma;
+		private final double coef0;
+
+		Sigmoid(svm_node[][] x, svm_parameter param)
+		{
+			super(x, true);
+			gamma = param.gamma;
+			coef0 = param.coef0;
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return Math.tanh(gamma*dot(i,j)+coef0);
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			double[] dots = new double[len];
+			fill_dots(i,start,len,dots);
+			for(int j=start;j<len;j++)
+				column[j] = (float)Math.tanh(gamma*dots[j]+coef0);
+		}
+	}
+
+	static final class Precomputed extends KernelFunction
+	{
+		/**
+		 * The sample serial numbers.
+		 * <code>x[i][0] with i=0...(len-1)</code>.
+		 * This is merely a cache, which brings us a huge speedup,
+		 * because we spare ourselves the repeated float2int conversion,
+		 * and we enhance array access locality.
+		 */
+		private final int[] sampleSerialNumbers;
+
+		Precomputed(svm_node[][] x)
+		{
+			super(x, false);
+			sampleSerialNumbers = new int[this.x.length];
+			for (int i = 0; i < this.x.length; i++) {
+				sampleSerialNumbers[i] = (int) this.x[i][0].value;
+			}
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return x[i][sampleSerialNumbers[j]].value;
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			svm_node[] x_i = x[i];
+			for(int j=start;j<len;j++)
+				column[j] = (float)x_i[sampleSerialNumbers[j]].value;
+		}
+
+		@Override
+		void swap_index(int i, int j)
+		{
+			super.swap_index(i,j);
+			{ // swap(int, sampleSerialNumbers[i], sampleSerialNumbers[j]);
+				int tmp = sampleSerialNumbers[i];
+				sampleSerialNumbers[i] = sampleSerialNumbers[j];
+				sampleSerialNumbers[j] = tmp;
+			}
+		}
+	}
+
+	/**
+	 * Precomputed kernel read from an svm_kernel_matrix,
+	 * <code>x[i]</code> only holds the sample serial number.
+	 */
+	static final class PrecomputedMatrix extends KernelFunction
+	{
+		private final svm_kernel_matrix K;
+		/** zero-based rows of K, i.e. the sample serial numbers - 1 */
+		private final int[] row;
+
+		PrecomputedMatrix(svm_node[][] x, svm_kernel_matrix K)
+		{
+			super(x, false);
+			this.K = K;
+			row = new int[this.x.length];
+			for(int i=0;i<this.x.length;i++)
+				row[i] = (int)this.x[i][0].value - 1;
+		}
+
+		@Override
+		double value(int i, int j)
+		{
+			return K.get(row[i],row[j]);
+		}
+
+		@Override
+		void fill_column(int i, int start, int len, float[] column)
+		{
+			int row_i = row[i];
+			for(int j=start;j<len;j++)
+				column[j] = K.get(row_i,row[j]);
+		}
+
+		@Override
+		void swap_index(int i, int j)
+		{
+			super.swap_index(i,j);
+			{ // swap(int, row[i], row[j]);
+				int tmp = row[i];
+				row[i] = row[j];
+				row[j] = tmp;
+			}
+		}
+	}
+}
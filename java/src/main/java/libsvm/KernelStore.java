@@ -0,0 +1,488 @@
+package libsvm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+
+/**
+ * Kernel columns persisted across training runs.
+ *
+ * A store is a memory-mapped file in the directory <code>param.kernel_store</code>,
+ * named after a fingerprint of the data and the kernel parameters,
+ * so later runs on the same data with the same kernel
+ * (but e.g. a different C, nu or class weights) find the columns computed before.
+ * Columns hold the plain kernel values <code>K(x_i, x_j)</code>, j = 0...l-1,
+ * by original index, as floats.
+ *
+ * The store of a run covers its full training set, see {@link Run}:
+ * the class pairs of multi-class training, the folds of cross validation
+ * and the internal cross validation of probability estimates all read and fill
+ * the columns of that one file.
+ *
+ * Each file holds at most as many columns as fit into
+ * <code>param.kernel_store_size</code>; once it is full, further columns are not stored.
+ * The files in the directory are kept within that size too,
+ * by deleting the least recently used ones.
+ *
+ * File format (native byte order):
+ * <code>
+ *   int   magic 0x534b534c ("LSKS")
+ *   int   l
+ *   int   capacity, in columns
+ *   int   reserved, 0
+ *   long  fingerprint
+ *   long  reserved, 0
+ *   int   slot[l]: column i is stored in slot slot[i]-1, 0 if not stored
+ *   float columns[capacity][l]
+ * </code>
+ */
+final class KernelStore
+{
+	private static final int MAGIC = 0x534b534c;
+	private static final int HEADER_SIZE = 32;
+	private static final String SUFFIX = ".kstore";
+	/** at most 2^28 floats = 1 GiB per mapped segment */
+	private static final int SEGMENT_FLOATS = 1 << 28;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileLock lock;
+	private final int l;
+	private final int capacity;
+	private final long data_offset;
+	/** columns per mapped segment */
+	private final int segment_columns;
+	private final FloatBuffer[] segments;
+	private final IntBuffer slot_table;
+	/** in-memory copy of the slot table */
+	private final int[] slot;
+	private int used;
+	private boolean closed;
+
+	// statistics
+	private long hits;
+	private long stored;
+
+	private KernelStore(File file, RandomAccessFile raf, FileLock lock, int l, int capacity) throws IOException
+	{
+		this.file = file;
+		this.raf = raf;
+		this.lock = lock;
+		this.l = l;
+		this.capacity = capacity;
+		data_offset = HEADER_SIZE + 4L*l;
+		segment_columns = Math.max(1, SEGMENT_FLOATS / l);
+		segments = new FloatBuffer[(capacity + segment_columns - 1) / segment_columns];
+
+		MappedByteBuffer table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, 4L*l);
+		slot_table = table.order(ByteOrder.nativeOrder()).asIntBuffer();
+		slot = new int[l];
+		slot_table.get(slot);
+		for(int i=0;i<l;i++)
+			if(slot[i] > 0)
+			{
+				if(slot[i] > capacity)
+					throw new IOException("corrupt kernel store: " + file);
+				used++;
+			}
+	}
+
+	/**
+	 * Opens the store for the given kernel, creating it if necessary.
+	 * @return <code>null</code> if no store is configured,
+	 *   the kernel is precomputed, there is no data, or the store cannot be used
+	 */
+	static KernelStore open(svm_node[][] x, svm_parameter param)
+	{
+		if(param.kernel_store == null || param.kernel_type == svm_parameter.PRECOMPUTED || x.length == 0)
+			return null;
+
+		int l = x.length;
+		long fingerprint = fingerprint(x, param);
+		long limit = (long)(param.kernel_store_size*(1<<20));
+		File dir = new File(param.kernel_store);
+		File file = new File(dir, Long.toHexString(fingerprint) + "-" + l + SUFFIX);
+		try
+		{
+			if(!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("cannot create directory " + dir);
+
+			if(file.length() > limit && !file.delete())
+				throw new IOException("cannot delete " + file);
+
+			int capacity;
+			if(file.exists())
+				capacity = -1; // taken from the header
+			else
+			{
+				capacity = (int)Math.min(l, (limit - HEADER_SIZE - 4L*l) / (4L*l));
+				if(capacity <= 0)
+				{
+					svm.LOG_COMMON.log(Level.WARNING, "kernel store: {0} MB cannot hold a single column of {1} entries",
+							new Object[] {param.kernel_store_size, l});
+					return null;
+				}
+				evict(dir, limit - file_size(l, capacity));
+			}
+
+			KernelStore store = open(file, l, capacity, fingerprint);
+			if(store != null)
+				svm.LOG_COMMON.log(Level.INFO, "kernel store: {0} of {1} columns stored in {2}",
+						new Object[] {store.used, l, file});
+			return store;
+		}
+		catch(IOException e)
+		{
+			svm.LOG_COMMON.log(Level.WARNING, "kernel store: cannot use " + file, e);
+			return null;
+		}
+	}
+
+	private static KernelStore open(File file, int l, int capacity, long fingerprint) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			FileLock lock;
+			try
+			{
+				lock = channel.tryLock();
+			}
+			catch(OverlappingFileLockException e)
+			{
+				lock = null;
+			}
+			if(lock == null)
+			{
+				svm.LOG_COMMON.log(Level.WARNING, "kernel store: {0} is in use", file);
+				raf.close();
+				return null;
+			}
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.order(ByteOrder.nativeOrder());
+			if(capacity < 0)
+			{
+				capacity = header.getInt(8);
+				if(header.getInt(0) != MAGIC || header.getInt(4) != l ||
+				   header.getLong(16) != fingerprint ||
+				   capacity <= 0 || capacity > l || channel.size() != file_size(l, capacity))
+					throw new IOException("not a kernel store for this data: " + file);
+			}
+			else
+			{
+				raf.setLength(file_size(l, capacity));
+				header.putInt(0, MAGIC);
+				header.putInt(4, l);
+				header.putInt(8, capacity);
+				header.putLong(16, fingerprint);
+			}
+			file.setLastModified(System.currentTimeMillis());
+			return new KernelStore(file, raf, lock, l, capacity);
+		}
+		catch(IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	private static long file_size(int l, int capacity)
+	{
+		return HEADER_SIZE + 4L*l + 4L*l*capacity;
+	}
+
+	/**
+	 * Deletes the least recently used stores in dir
+	 * until the remaining ones take at most limit bytes.
+	 */
+	private static void evict(File dir, long limit)
+	{
+		File[] files = dir.listFiles(new FileFilter()
+		{
+			public boolean accept(File f)
+			{
+				return f.isFile() && f.getName().endsWith(SUFFIX);
+			}
+		});
+		if(files == null)
+			return;
+		long total = 0;
+		for(int k=0;k<files.length;k++)
+			total += files[k].length();
+		Arrays.sort(files, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				long ma = a.lastModified(), mb = b.lastModified();
+				return (ma < mb) ? -1 : ((ma == mb) ? 0 : 1);
+			}
+		});
+		for(int k=0;k<files.length && total > limit;k++)
+		{
+			long size = files[k].length();
+			if(files[k].delete())
+			{
+				total -= size;
+				svm.LOG_COMMON.log(Level.INFO, "kernel store: evicted {0}", files[k]);
+			}
+		}
+	}
+
+	/**
+	 * 64 bit hash of the data and of the parameters the kernel values depend on.
+	 */
+	static long fingerprint(svm_node[][] x, svm_parameter param)
+	{
+		long h = mix(0, param.kernel_type);
+		if(param.kernel_type == svm_parameter.POLY)
+			h = mix(h, param.degree);
+		if(param.kernel_type != svm_parameter.LINEAR)
+			h = mix(h, Double.doubleToLongBits(param.gamma));
+		if(param.kernel_type == svm_parameter.POLY || param.kernel_type == svm_parameter.SIGMOID)
+			h = mix(h, Double.doubleToLongBits(param.coef0));
+		h = mix(h, x.length);
+		for(int i=0;i<x.length;i++)
+		{
+			svm_node[] x_i = x[i];
+			h = mix(h, x_i.length);
+			for(int k=0;k<x_i.length;k++)
+			{
+				h = mix(h, x_i[k].index);
+				h = mix(h, Double.doubleToLongBits(x_i[k].value));
+			}
+		}
+		return h;
+	}
+
+	private static long mix(long h, long v)
+	{
+		h ^= v * 0x9e3779b97f4a7c15L;
+		h = Long.rotateLeft(h, 27) * 0xbf58476d1ce4e5b9L;
+		return h ^ (h >>> 31);
+	}
+
+	private FloatBuffer segment(int s) throws IOException
+	{
+		if(segments[s] == null)
+		{
+			int columns = Math.min(segment_columns, capacity - s*segment_columns);
+			MappedByteBuffer bytes = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					data_offset + 4L*l*s*segment_columns, 4L*l*columns);
+			segments[s] = bytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		return segments[s];
+	}
+
+	/**
+	 * @return the original indices of the stored columns
+	 */
+	synchronized int[] columns()
+	{
+		int[] columns = new int[closed ? 0 : used];
+		int n = 0;
+		for(int i=0;n<columns.length;i++)
+			if(slot[i] > 0)
+				columns[n++] = i;
+		return columns;
+	}
+
+	/**
+	 * @return whether another column can be stored
+	 */
+	synchronized boolean has_room()
+	{
+		return !closed && used < capacity;
+	}
+
+	/**
+	 * Copies <code>K(x_i, x_order[j])</code> for j in [start,len) into column.
+	 * @param i original index
+	 * @param order original indices of the entries
+	 * @return whether column i is stored
+	 */
+	boolean get(int i, int[] order, int start, int len, float[] column)
+	{
+		return get(i, null, order, start, len, column);
+	}
+
+	/**
+	 * Copies <code>K(x_i, x_rows[order[j]])</code> for j in [start,len) into column.
+	 * @param i original index
+	 * @param rows original indices of the indices in order, <code>null</code> for the identity
+	 * @return whether column i is stored
+	 */
+	synchronized boolean get(int i, int[] rows, int[] order, int start, int len, float[] column)
+	{
+		if(closed || slot[i] == 0)
+			return false;
+		try
+		{
+			int s = slot[i]-1;
+			FloatBuffer segment = segment(s / segment_columns);
+			int offset = (s % segment_columns) * l;
+			if(rows == null)
+				for(int j=start;j<len;j++)
+					column[j] = segment.get(offset + order[j]);
+			else
+				for(int j=start;j<len;j++)
+					column[j] = segment.get(offset + rows[order[j]]);
+		}
+		catch(IOException e)
+		{
+			svm.LOG_COMMON.log(Level.WARNING, "kernel store: cannot read " + file, e);
+			return false;
+		}
+		++hits;
+		return true;
+	}
+
+	/**
+	 * Stores column i, if there is room.
+	 * @param i original index
+	 * @param column <code>K(x_i, x_j)</code> for j = 0...l-1, in the original order
+	 */
+	synchronized void put(int i, float[] column)
+	{
+		if(closed || slot[i] != 0 || used == capacity)
+			return;
+		try
+		{
+			int s = used;
+			FloatBuffer dst = segment(s / segment_columns).duplicate();
+			dst.position((s % segment_columns) * l);
+			dst.put(column, 0, l);
+			// the slot table entry is written after the column,
+			// so an interrupted run does not leave partial columns behind
+			slot[i] = s+1;
+			slot_table.put(i, s+1);
+			++used;
+			++stored;
+		}
+		catch(IOException e)
+		{
+			svm.LOG_COMMON.log(Level.WARNING, "kernel store: cannot write " + file, e);
+		}
+	}
+
+	/**
+	 * Releases the file; the store is not used afterwards.
+	 */
+	synchronized void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		svm.LOG_COMMON.log(Level.INFO, "kernel store: {0} columns read, {1} columns stored",
+				new Object[] {hits, stored});
+		try
+		{
+			lock.release();
+			raf.close();
+		}
+		catch(IOException e)
+		{
+			svm.LOG_COMMON.log(Level.WARNING, "kernel store: cannot close " + file, e);
+		}
+	}
+
+	/**
+	 * The store of one run of svm_train or svm_cross_validation,
+	 * keyed on the full training set of the run and shared by the sub-problems it trains on.
+	 * Their rows are the rows of the full set, found by identity.
+	 * The file is opened when a kernel first asks for it,
+	 * so runs that train without kernel columns leave the directory alone.
+	 */
+	static final class Run
+	{
+		private final svm_problem prob;
+		private final svm_parameter param;
+		private boolean opened;
+		private KernelStore store;
+		/** evaluates the columns of the full set */
+		private KernelFunction kernel;
+		/** the index of each row of the full set */
+		private IdentityHashMap<svm_node[],Integer> index;
+
+		Run(svm_problem prob, svm_parameter param)
+		{
+			this.prob = prob;
+			this.param = param;
+		}
+
+		/**
+		 * @return the index in the full set of each row of x,
+		 *   <code>null</code> if x has rows of its own or the store cannot be used
+		 */
+		synchronized int[] rows(svm_node[][] x)
+		{
+			if(!opened)
+			{
+				opened = true;
+				store = open(prob.x, param);
+				if(store != null)
+				{
+					kernel = KernelFunction.create(prob, param);
+					index = new IdentityHashMap<svm_node[],Integer>(2*prob.l);
+					for(int i=0;i<prob.l;i++)
+						index.put(prob.x[i], i);
+				}
+			}
+			if(store == null)
+				return null;
+			int[] rows = new int[x.length];
+			for(int i=0;i<x.length;i++)
+			{
+				Integer r = index.get(x[i]);
+				if(r == null)
+					return null;
+				rows[i] = r;
+			}
+			return rows;
+		}
+
+		/** @return the store; only after rows returned an array */
+		KernelStore store()
+		{
+			return store;
+		}
+
+		/** @return the number of rows of the full set */
+		int size()
+		{
+			return prob.l;
+		}
+
+		/**
+		 * Sets <code>column[j] = K(x_i, x_j)</code> for all rows of the full set.
+		 * This may be called from several threads at once.
+		 */
+		void fill_column(int i, float[] column)
+		{
+			kernel.fill_column(i, 0, prob.l, column);
+		}
+
+		synchronized void close()
+		{
+			opened = true;
+			if(store != null)
+				store.close();
+			store = null;
+			kernel = null;
+			index = null;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package libsvm;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+
+/**
+ * Nystrom approximation of a kernel by m landmark points z_1...z_m:
+ *
+ * <code>K(x, y) ~ k_x^T K_ZZ^{-1} k_y,  k_x = (K(x, z_1), ..., K(x, z_m))^T</code>
+ *
+ * With the Cholesky factorization <code>K_ZZ = L L^T</code>,
+ * this is the inner product of the features <code>phi(x) = L^{-1} k_x</code>,
+ * so a linear model in phi space approximates a kernel model;
+ * its weight vector w turns back into the kernel expansion
+ * <code>w^T phi(x) = \sum_j beta_j K(x, z_j)</code>, <code>beta = L^{-T} w</code>,
+ * i.e. an svm_model with the landmarks as support vectors.
+ *
+ * Landmarks whose kernel column is (numerically) spanned by the ones before
+ * are dropped while factorizing, so L stays well-conditioned.
+ */
+final class Nystrom
+{
+	/** landmarks are dropped if their residual is below this, relative to the largest K(z,z) */
+	private static final double TOLERANCE = 1e-6;
+	private static final int KMEANS_ITER = 10;
+	/**
+	 * most entries of the dense k-means centers, m*dim, and again of their sums (128 MB each);
+	 * beyond, landmarks are sampled at random
+	 */
+	private static final long KMEANS_MAX_ENTRIES = 1L << 24;
+
+	private final svm_parameter param;
+	/** the landmarks kept */
+	private final svm_node[][] Z;
+	/** lower triangular, <code>K_ZZ = L L^T</code> */
+	private final double[][] L;
+
+	Nystrom(svm_problem prob, svm_parameter param)
+	{
+		this.param = param;
+		int m = Math.min(param.nystrom_landmarks, prob.l);
+		svm_node[][] candidates = null;
+		if(param.nystrom_sampling == svm_parameter.NYSTROM_KMEANS)
+		{
+			int dim = dimension(prob);
+			if((long)m*dim <= KMEANS_MAX_ENTRIES)
+				candidates = kmeans(prob, m, dim);
+			else
+				svm.LOG_COMMON.log(Level.WARNING,
+						"Nystrom: {0} dense k-means centers of {1} features take too much memory, sampling landmarks at random",
+						new Object[] {m, dim});
+		}
+		if(candidates == null)
+			candidates = sample(prob, m);
+
+		double[][] K = new double[m][m];
+		double max_diag = 0;
+		for(int j=0;j<m;j++)
+		{
+			Kernel.k_function(candidates[j],candidates,m,param,K[j]);
+			max_diag = Math.max(max_diag, K[j][j]);
+		}
+
+		// incomplete Cholesky factorization, dropping dependent landmarks
+		int[] kept = new int[m];
+		double[][] L_ = new double[m][];
+		int r = 0;
+		for(int j=0;j<m;j++)
+		{
+			double[] v = new double[r+1];
+			double d = K[j][j];
+			for(int t=0;t<r;t++)
+			{
+				double sum = K[kept[t]][j];
+				for(int s=0;s<t;s++)
+					sum -= L_[t][s] * v[s];
+				v[t] = sum / L_[t][t];
+				d -= v[t] * v[t];
+			}
+			if(d <= TOLERANCE * max_diag)
+				continue;
+			v[r] = Math.sqrt(d);
+			L_[r] = v;
+			kept[r++] = j;
+		}
+
+		Z = new svm_node[r][];
+		L = new double[r][];
+		for(int t=0;t<r;t++)
+		{
+			Z[t] = candidates[kept[t]];
+			L[t] = L_[t];
+		}
+		svm.LOG_COMMON.log(Level.INFO, "Nystrom: {0} of {1} landmarks kept", new Object[] {r, m});
+	}
+
+	/**
+	 * @return the number of landmarks, i.e. the dimension of phi
+	 */
+	int rank()
+	{
+		return Z.length;
+	}
+
+	/**
+	 * @return the landmarks
+	 */
+	svm_node[][] landmarks()
+	{
+		return Z;
+	}
+
+	/**
+	 * @return <code>phi(x) = L^{-1} k_x</code>
+	 */
+	float[] map(svm_node[] x)
+	{
+		int r = Z.length;
+		double[] phi = new double[r];
+		Kernel.k_function(x,Z,r,param,phi);
+		float[] result = new float[r];
+		for(int t=0;t<r;t++)
+		{
+			double sum = phi[t];
+			double[] L_t = L[t];
+			for(int s=0;s<t;s++)
+				sum -= L_t[s] * phi[s];
+			phi[t] = sum / L_t[t];
+			result[t] = (float)phi[t];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the coefficients of the landmarks, <code>beta = L^{-T} w</code>
+	 */
+	double[] expand(double[] w)
+	{
+		int r = Z.length;
+		double[] beta = new double[r];
+		for(int t=r-1;t>=0;t--)
+		{
+			double sum = w[t];
+			for(int s=t+1;s<r;s++)
+				sum -= L[s][t] * beta[s];
+			beta[t] = sum / L[t][t];
+		}
+		return beta;
+	}
+
+	/**
+	 * @return m distinct instances, chosen uniformly at random
+	 */
+	private static svm_node[][] sample(svm_problem prob, int m)
+	{
+		int[] perm = new int[prob.l];
+		for(int i=0;i<prob.l;i++)
+			perm[i] = i;
+		svm_node[][] Z = new svm_node[m][];
+		for(int i=0;i<m;i++)
+		{
+			int j = i+svm.rand.nextInt(prob.l-i);
+			{ // swap(int, perm[i], perm[j]);
+				int tmp = perm[i];
+				perm[i] = perm[j];
+				perm[j] = tmp;
+			}
+			Z[i] = prob.x[perm[i]];
+		}
+		return Z;
+	}
+
+	/**
+	 * @return the largest feature index of the instances plus 1
+	 */
+	private static int dimension(svm_problem prob)
+	{
+		int dim = 0;
+		for(int i=0;i<prob.l;i++)
+		{
+			svm_node[] x = prob.x[i];
+			if(x.length > 0)
+				dim = Math.max(dim, x[x.length-1].index+1);
+		}
+		return dim;
+	}
+
+	/**
+	 * @param dim the dimension of the instances, see dimension
+	 * @return the centers of m clusters found by Lloyd's algorithm,
+	 *   started from m random instances
+	 */
+	private static svm_node[][] kmeans(svm_problem prob, int m, int dim)
+	{
+		int l = prob.l;
+
+		double[][] center = new double[m][];
+		svm_node[][] start = sample(prob, m);
+		for(int c=0;c<m;c++)
+			center[c] = Arrays.copyOf(Kernel.densify(start[c]), dim);
+
+		int[] assignment = new int[l];
+		double[] center_square = new double[m];
+		for(int iter=0;iter<KMEANS_ITER;iter++)
+		{
+			for(int c=0;c<m;c++)
+				center_square[c] = Kernel.dot(center[c],center[c]);
+
+			// assign each instance to the nearest center
+			int changed = 0;
+			for(int i=0;i<l;i++)
+			{
+				svm_node[] x = prob.x[i];
+				int best = 0;
+				double best_dist = Double.POSITIVE_INFINITY;
+				for(int c=0;c<m;c++)
+				{
+					double[] z = center[c];
+					double dot = 0;
+					for(int k=0;k<x.length;k++)
+						dot += z[x[k].index] * x[k].value;
+					// ||x||^2 is the same for all centers
+					double dist = center_square[c] - 2*dot;
+					if(dist < best_dist)
+					{
+						best_dist = dist;
+						best = c;
+					}
+				}
+				if(iter == 0 || assignment[i] != best)
+					++changed;
+				assignment[i] = best;
+			}
+			if(changed == 0)
+				break;
+
+			// move the centers to the means, empty clusters keep theirs
+			double[][] sum = new double[m][];
+			int[] count = new int[m];
+			for(int i=0;i<l;i++)
+			{
+				int c = assignment[i];
+				if(sum[c] == null)
+					sum[c] = new double[dim];
+				svm_node[] x = prob.x[i];
+				for(int k=0;k<x.length;k++)
+					sum[c][x[k].index] += x[k].value;
+				++count[c];
+			}
+			for(int c=0;c<m;c++)
+				if(count[c] > 0)
+				{
+					for(int k=0;k<dim;k++)
+						sum[c][k] /= count[c];
+					center[c] = sum[c];
+				}
+		}
+
+		svm_node[][] Z = new svm_node[m][];
+		for(int c=0;c<m;c++)
+		{
+			int nnz = 0;
+			for(int k=0;k<dim;k++)
+				if(center[c][k] != 0)
+					++nnz;
+			Z[c] = new svm_node[nnz];
+			nnz = 0;
+			for(int k=0;k<dim;k++)
+				if(center[c][k] != 0)
+				{
+					svm_node node = new svm_node();
+					node.index = k;
+					node.value = center[c][k];
+					Z[c][nnz++] = node;
+				}
+		}
+		return Z;
+	}
+}
@@ -4,29 +4,103 @@ class ONE_CLASS_Q extends Kernel
 {
 	private final Cache cache;
 	private final double[] QD;
+	/**
+	 * The columns, if shrinking is done through index indirection.
+	 * @see SVC_Q
+	 */
+	private final IndirectCache indirect;
 
 	ONE_CLASS_Q(svm_problem prob, svm_parameter param)
 	{
-		super(prob.l, prob.x, param);
-		cache = new Cache(prob.l,(long)(param.cache_size*(1<<20)));
+		super(prob, param);
+		long size = (long)(param.cache_size*(1<<20));
 		QD = new double[prob.l];
 		for(int i=0;i<prob.l;i++)
 			QD[i] = kernel_function(i,i);
+		if(param.shrinking == 2)
+		{
+			indirect = new IndirectCache(this,null,prob.l,size);
+			cache = indirect.cache();
+		}
+		else
+		{
+			indirect = null;
+			cache = new Cache(prob.l,size);
+		}
+		prewarm(cache,prob.l);
 	}
 
 	@Override
 	float[] get_Q(int i, int len)
 	{
+		if(indirect != null)
+			return indirect.get_Q(i,len);
 		float[][] data = new float[1][];
-		int start, j;
+		int start;
 		if((start = cache.get_data(i,data,len)) < len)
 		{
-			for(j=start;j<len;j++)
-				data[0][j] = (float)kernel_function(i,j);
+			if(prefetcher != null)
+				start = prefetcher.fill(i,data[0],start,len);
+			kernel_column(i,start,len,data[0]);
 		}
 		return data[0];
 	}
 
+	@Override
+	void get_Q(int[] columns, int n, int len, float[][] Q_block)
+	{
+		if(indirect != null)
+		{
+			indirect.get_Q(columns,n,len,Q_block);
+			return;
+		}
+		float[][] data = new float[1][];
+		int[] start = new int[n];
+		int min_start = len;
+		int j, k;
+		for(k=0;k<n;k++)
+		{
+			int i = columns[k];
+			if((start[k] = cache.get_data(i,data,len)) < len)
+			{
+				if(prefetcher != null)
+					start[k] = prefetcher.fill(i,data[0],start[k],len);
+				if(stored_column(i,start[k],len,data[0]))
+					start[k] = len;
+			}
+			Q_block[k] = data[0];
+			min_start = Math.min(min_start,start[k]);
+		}
+		for(j=min_start;j<len;j++)
+			for(k=0;k<n;k++)
+				if(j >= start[k])
+				{
+					int i = columns[k];
+					Q_block[k][j] = (float)kernel_function(i,j);
+				}
+	}
+
+	@Override
+	float[] compute_column(int i, int len)
+	{
+		if(indirect != null)
+			return indirect.compute_column(i,len);
+		float[] column = new float[len];
+		kernel_column(i,0,len,column);
+		return column;
+	}
+
+	@Override
+	void prefetch(int i, int len)
+	{
+		if(prefetcher == null)
+			return;
+		if(indirect != null)
+			indirect.prefetch(i,len);
+		else if(!cache.has_data(i,len))
+			prefetcher.submit(i,len);
+	}
+
 	@Override
 	double[] get_QD()
 	{
@@ -36,8 +110,15 @@ class ONE_CLASS_Q extends Kernel
 	@Override
 	void swap_index(int i, int j)
 	{
-		cache.swap_index(i,j);
-		super.swap_index(i,j);
+		if(indirect != null)
+			indirect.swap_index(i,j);
+		else
+		{
+			if(prefetcher != null)
+				prefetcher.cancel_all();
+			cache.swap_index(i,j);
+			super.swap_index(i,j);
+		}
 		{ // swap(double, QD[i], QD[j]);
 			double tmp = QD[i];
 			QD[i] = QD[j];
@@ -0,0 +1,142 @@
+package libsvm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the kernel values of one instance against the support vectors
+ * of a model on several threads, each taking a contiguous range of them;
+ * the calling thread takes the first range.
+ *
+ * Only the kernel values are computed in parallel; svm_predict_values then sums
+ * them up in the usual order, so decision values are the same as with one thread.
+ *
+ * Handing work to other threads costs some microseconds,
+ * so models with less than MIN_WORK nonzero support vector entries in all
+ * are scored on the calling thread alone.
+ */
+final class ParallelScorer
+{
+	/** nonzero entries of the support vectors below which threads are not worth it */
+	private static final long MIN_WORK = 1 << 17;
+
+	private final svm_model model;
+	private final int threads;
+	private final boolean enabled;
+	/** range t is SV[bound[t], bound[t+1]) */
+	private final int[] bound;
+	private final ThreadPoolExecutor executor;
+
+	ParallelScorer(svm_model model, int threads)
+	{
+		this.model = model;
+		this.threads = threads;
+
+		int l = model.l;
+		long work = 0;
+		for(int i=0;i<l;i++)
+			work += model.SV[i].length;
+		enabled = threads > 1 && work >= MIN_WORK && model.param.kernel_type != svm_parameter.PRECOMPUTED;
+
+		// ranges of about the same number of nonzero entries
+		bound = new int[threads+1];
+		long done = 0;
+		int t = 1;
+		for(int i=0;i<l && t<threads;i++)
+		{
+			done += model.SV[i].length;
+			while(t < threads && done*threads >= work*t)
+				bound[t++] = i+1;
+		}
+		while(t <= threads)
+			bound[t++] = l;
+
+		if(enabled)
+			executor = new ThreadPoolExecutor(threads-1, threads-1,
+					0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory()
+					{
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "libsvm-predict");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		else
+			executor = null;
+	}
+
+	/**
+	 * Sets <code>kvalue[i] = K(x,SV[i])</code> for all support vectors.
+	 * @return false if the model is too small to be scored in parallel,
+	 *   kvalue is then untouched
+	 */
+	boolean kernel_values(final svm_node[] x, final double[] kvalue)
+	{
+		if(!enabled)
+			return false;
+
+		Future<?>[] jobs = new Future<?>[threads];
+		for(int t=1;t<threads;t++)
+		{
+			final int start = bound[t], end = bound[t+1];
+			FutureTask<Void> job = new FutureTask<Void>(new Callable<Void>()
+			{
+				public Void call()
+				{
+					Kernel.k_function(x,model.SV,start,end,model.param,kvalue);
+					return null;
+				}
+			});
+			executor.execute(job);
+			jobs[t] = job;
+		}
+		Kernel.k_function(x,model.SV,bound[0],bound[1],model.param,kvalue);
+
+		boolean interrupted = false;
+		try
+		{
+			for(int t=1;t<threads;t++)
+				while(true)
+				{
+					try
+					{
+						jobs[t].get();
+						break;
+					}
+					catch(InterruptedException e)
+					{
+						// the jobs are short, keep waiting
+						interrupted = true;
+					}
+					catch(ExecutionException e)
+					{
+						throw new IllegalStateException("Failed to compute kernel values", e.getCause());
+					}
+				}
+		}
+		finally
+		{
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the threads.
+	 */
+	void shutdown()
+	{
+		if(executor != null)
+			executor.shutdown();
+	}
+}
@@ -0,0 +1,184 @@
+package libsvm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Speculative kernel column computation on background threads.
+ *
+ * Columns are identified by their cache index, and hold the entries
+ * [0,len) the Cache would hold for that index.
+ * The worker threads only fill fresh arrays;
+ * the Cache and the pending jobs are touched by the solver thread only.
+ * Pending jobs may use more memory than the cache size limit,
+ * at most 2*threads columns.
+ */
+final class Prefetcher
+{
+	private final Kernel kernel;
+	private final int threads;
+	private final ThreadPoolExecutor executor;
+	/** pending jobs by cache index, oldest first */
+	private final Map<Integer, FutureTask<float[]>> pending;
+
+	// statistics
+	private long issued;
+	private long used;
+	private long wasted_evaluations;
+
+	Prefetcher(Kernel kernel, int threads)
+	{
+		this.kernel = kernel;
+		this.threads = threads;
+		pending = new LinkedHashMap<Integer, FutureTask<float[]>>();
+		executor = new ThreadPoolExecutor(threads, threads,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "libsvm-prefetch");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * @return how many columns per iteration are worth nominating
+	 */
+	int width()
+	{
+		return threads;
+	}
+
+	/**
+	 * Starts computing the column of the given cache index in the background,
+	 * unless it is already pending or too many jobs are pending.
+	 */
+	void submit(final int index, final int len)
+	{
+		if(pending.containsKey(index))
+			return;
+		if(pending.size() >= 2*threads && !drop_oldest_done())
+			return;
+
+		FutureTask<float[]> job = new FutureTask<float[]>(new Callable<float[]>()
+		{
+			public float[] call()
+			{
+				return kernel.compute_column(index, len);
+			}
+		});
+		pending.put(index, job);
+		executor.execute(job);
+		++issued;
+	}
+
+	/**
+	 * Copies a prefetched column into a cache entry,
+	 * waiting for it if it is still being computed.
+	 * @param data the cache entry of the given index
+	 * @return position p where [p,len) still needs to be filled
+	 */
+	int fill(int index, float[] data, int start, int len)
+	{
+		FutureTask<float[]> job = pending.remove(index);
+		if(job == null)
+			return start;
+
+		float[] column = get(job);
+		int end = Math.min(len, column.length);
+		if(end <= start)
+		{
+			wasted_evaluations += column.length;
+			return start;
+		}
+		System.arraycopy(column, start, data, start, end-start);
+		++used;
+		return end;
+	}
+
+	/**
+	 * Waits for and discards all pending jobs.
+	 * Has to be called before the order of the data changes.
+	 */
+	void cancel_all()
+	{
+		for(FutureTask<float[]> job : pending.values())
+		{
+			if(executor.remove(job))
+				--issued; // never started
+			else
+				wasted_evaluations += get(job).length;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Discards all pending jobs, stops the worker threads
+	 * and reports the statistics.
+	 */
+	void shutdown()
+	{
+		cancel_all();
+		executor.shutdown();
+		svm.LOG_COMMON.log(Level.INFO, "prefetch: used {0} of {1} columns, {2} wasted kernel evaluations",
+				new Object[] {used, issued, wasted_evaluations});
+	}
+
+	private boolean drop_oldest_done()
+	{
+		Iterator<FutureTask<float[]>> it = pending.values().iterator();
+		while(it.hasNext())
+		{
+			FutureTask<float[]> job = it.next();
+			if(job.isDone())
+			{
+				wasted_evaluations += get(job).length;
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static float[] get(FutureTask<float[]> job)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					return job.get();
+				}
+				catch(InterruptedException e)
+				{
+					// the job is short, keep waiting
+					interrupted = true;
+				}
+				catch(ExecutionException e)
+				{
+					throw new IllegalStateException("Failed to prefetch a kernel column", e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -8,6 +8,40 @@ abstract class QMatrix {
 	 * Returns one column from the Q Matrix
 	 */
 	abstract float[] get_Q(int column, int len);
+	/**
+	 * Returns several columns from the Q Matrix.
+	 * Missing entries are computed for all columns together, row by row,
+	 * so each data instance is loaded once per block instead of once per column.
+	 * The returned arrays may be shared buffers,
+	 * valid until the next call of this method.
+	 * @param columns <code>columns[0,n)</code> are the requested columns
+	 * @param Q_block receives column <code>columns[k]</code> in <code>Q_block[k]</code>
+	 */
+	abstract void get_Q(int[] columns, int n, int len, float[][] Q_block);
 	abstract double[] get_QD();
 	abstract void swap_index(int i, int j);
+
+	/**
+	 * How many columns the solver should nominate
+	 * through {@link #prefetch(int, int)} per iteration.
+	 * @return 0 if this matrix does not prefetch
+	 */
+	int prefetch_width()
+	{
+		return 0;
+	}
+	/**
+	 * Hints that column i will probably be requested soon,
+	 * with at least len entries.
+	 */
+	void prefetch(int i, int len)
+	{
+	}
+	/**
+	 * Called when the solver is done with this matrix:
+	 * stops prefetching and releases the kernel store, reporting their statistics.
+	 */
+	void done()
+	{
+	}
 }
@@ -0,0 +1,234 @@
+package libsvm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+
+/**
+ * Compresses a model by pruning support vectors, so prediction,
+ * which costs O(l) kernel evaluations, gets faster.
+ *
+ * Support vectors are removed in order of the bound
+ * <code>|coef_i| sqrt(K(SV_i,SV_i))</code> on their contribution
+ * <code>coef_i K(x,SV_i)</code> to a decision value (Cauchy-Schwarz),
+ * smallest first. After each removal rho is refitted by least squares,
+ * i.e. shifted by the mean removed contribution over the validation set,
+ * and support vectors whose removal would let the largest change
+ * of a decision value on the validation set exceed the tolerance are kept.
+ *
+ * This needs one kernel column against the validation set per support vector,
+ * as much as predicting the validation set once.
+ */
+final class ReducedSet
+{
+	private final svm_model model;
+	/** the validation instances */
+	private final svm_node[][] V;
+	private final int n;
+	/** number of decision functions */
+	private final int nr_dec;
+	/** class of each support vector, 0 for regression and one-class */
+	private final int[] sv_class;
+	/** <code>removed[v*nr_dec+p]</code>: removed contribution to decision function p on instance v */
+	private final double[] removed;
+
+	private ReducedSet(svm_model model, svm_problem validation)
+	{
+		this.model = model;
+		n = validation.l;
+		if(model.scaling != null)
+		{
+			// the support vectors are scaled already
+			V = new svm_node[n][];
+			for(int v=0;v<n;v++)
+				V[v] = model.scaling.scale(validation.x[v]);
+		}
+		else
+			V = validation.x;
+		int nr_class = model.nr_class;
+		nr_dec = nr_class*(nr_class-1)/2;
+		sv_class = new int[model.l];
+		if(model.nSV != null)
+		{
+			int k = 0;
+			for(int c=0;c<nr_class;c++)
+				for(int t=0;t<model.nSV[c];t++)
+					sv_class[k++] = c;
+		}
+		removed = new double[n*nr_dec];
+	}
+
+	/**
+	 * @return the index of decision function (i,j), i &lt; j
+	 */
+	private int pair(int i, int j)
+	{
+		int nr_class = model.nr_class;
+		return i*nr_class - i*(i+1)/2 + (j-i-1);
+	}
+
+	private boolean is_classification()
+	{
+		return model.nSV != null;
+	}
+
+	/**
+	 * @return the largest coefficient of support vector i, in absolute value
+	 */
+	private double max_coef(int i)
+	{
+		double max = 0;
+		for(int k=0;k<model.nr_class-1;k++)
+			max = Math.max(max, Math.abs(model.sv_coef[k][i]));
+		return max;
+	}
+
+	/**
+	 * Adds sign times the contributions of support vector i to removed.
+	 * @param kvalue <code>K(V_v,SV_i)</code>
+	 */
+	private void remove(int i, double[] kvalue, int sign)
+	{
+		if(!is_classification())
+		{
+			double coef = sign*model.sv_coef[0][i];
+			for(int v=0;v<n;v++)
+				removed[v] += coef * kvalue[v];
+			return;
+		}
+		int c = sv_class[i];
+		for(int d=0;d<model.nr_class;d++)
+		{
+			if(d == c)
+				continue;
+			// decision function (c,d) weighs SVs of c by sv_coef[d-1], (d,c) by sv_coef[d]
+			double coef = sign*((c < d) ? model.sv_coef[d-1][i] : model.sv_coef[d][i]);
+			int p = (c < d) ? pair(c,d) : pair(d,c);
+			for(int v=0;v<n;v++)
+				removed[v*nr_dec+p] += coef * kvalue[v];
+		}
+	}
+
+	/**
+	 * @param shift the least squares shift of rho, per decision function
+	 * @return the largest change of a decision value after shifting rho
+	 */
+	private double error(double[] shift)
+	{
+		Arrays.fill(shift, 0);
+		for(int v=0;v<n;v++)
+			for(int p=0;p<nr_dec;p++)
+				shift[p] += removed[v*nr_dec+p];
+		for(int p=0;p<nr_dec;p++)
+			shift[p] /= n;
+		double max = 0;
+		for(int v=0;v<n;v++)
+			for(int p=0;p<nr_dec;p++)
+				max = Math.max(max, Math.abs(removed[v*nr_dec+p] - shift[p]));
+		return max;
+	}
+
+	static svm_model compress(svm_model model, svm_problem validation, double tolerance)
+	{
+		if(model.param.kernel_type == svm_parameter.PRECOMPUTED || model.rff != null)
+			throw new IllegalArgumentException("only models with support vectors and a kernel function can be compressed");
+		if(validation.l == 0)
+			throw new IllegalArgumentException("empty validation set");
+		if(!(tolerance >= 0))
+			throw new IllegalArgumentException("tolerance < 0");
+
+		ReducedSet rs = new ReducedSet(model, validation);
+		int l = model.l;
+		final double[] bound = new double[l];
+		Integer[] order = new Integer[l];
+		for(int i=0;i<l;i++)
+		{
+			bound[i] = rs.max_coef(i) * Math.sqrt(Math.abs(Kernel.k_function(model.SV[i],model.SV[i],model.param)));
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(bound[a], bound[b]);
+			}
+		});
+
+		double[] kvalue = new double[rs.n];
+		double[] shift = new double[rs.nr_dec];
+		double[] best_shift = new double[rs.nr_dec];
+		double best_error = 0;
+		int nr_removed = 0;
+		boolean[] keep = new boolean[l];
+		Arrays.fill(keep, true);
+		// the last support vector of the model is kept in any case
+		for(int t=0;t<l-1;t++)
+		{
+			int i = order[t];
+			Kernel.k_function(model.SV[i],rs.V,rs.n,model.param,kvalue);
+			rs.remove(i, kvalue, +1);
+			double error = rs.error(shift);
+			if(error > tolerance)
+			{
+				rs.remove(i, kvalue, -1);
+				continue;
+			}
+			keep[i] = false;
+			++nr_removed;
+			best_error = error;
+			System.arraycopy(shift,0,best_shift,0,rs.nr_dec);
+			if(nr_removed % 1000 == 0)
+				svm.LOG_COMMON.log(Level.INFO, "{0} support vectors removed, max decision error {1}",
+						new Object[] {nr_removed, error});
+		}
+		svm.LOG_COMMON.log(Level.INFO, "{0} of {1} support vectors removed, max decision error {2}",
+				new Object[] {nr_removed, l, best_error});
+
+		return rs.reduced(keep, best_shift);
+	}
+
+	/**
+	 * @return a copy of the model with the kept support vectors only
+	 *   and rho shifted
+	 */
+	private svm_model reduced(boolean[] keep, double[] shift)
+	{
+		int l = model.l;
+		int nr_class = model.nr_class;
+		int new_l = 0;
+		for(int i=0;i<l;i++)
+			if(keep[i])
+				++new_l;
+
+		svm_model result = new svm_model();
+		result.param = model.param;
+		result.nr_class = nr_class;
+		result.l = new_l;
+		result.SV = new svm_node[new_l][];
+		result.sv_coef = new double[nr_class-1][new_l];
+		result.rho = new double[nr_dec];
+		for(int p=0;p<nr_dec;p++)
+			result.rho[p] = model.rho[p] - shift[p];
+		result.probA = model.probA;
+		result.probB = model.probB;
+		result.label = model.label;
+		result.scaling = model.scaling;
+		result.sv_indices = (model.sv_indices != null) ? new int[new_l] : null;
+		result.nSV = is_classification() ? new int[nr_class] : null;
+
+		int k = 0;
+		for(int i=0;i<l;i++)
+			if(keep[i])
+			{
+				result.SV[k] = model.SV[i];
+				for(int c=0;c<nr_class-1;c++)
+					result.sv_coef[c][k] = model.sv_coef[c][i];
+				if(result.sv_indices != null)
+					result.sv_indices[k] = model.sv_indices[i];
+				if(result.nSV != null)
+					++result.nSV[sv_class[i]];
+				++k;
+			}
+		return result;
+	}
+}
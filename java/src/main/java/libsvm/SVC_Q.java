@@ -8,30 +8,113 @@ class SVC_Q extends Kernel
 	private final byte[] y;
 	private final Cache cache;
 	private final double[] QD;
+	/**
+	 * The columns, if shrinking is done through index indirection
+	 * (<code>param.shrinking == 2</code>); <code>null</code> otherwise.
+	 * y then keeps the original order.
+	 */
+	private final IndirectCache indirect;
 
 	SVC_Q(svm_problem prob, svm_parameter param, byte[] y_)
 	{
-		super(prob.l, prob.x, param);
+		super(prob, param);
 		y = y_.clone();
-		cache = new Cache(prob.l,(long)(param.cache_size*(1<<20)));
+		long size = (long)(param.cache_size*(1<<20));
 		QD = new double[prob.l];
 		for(int i=0;i<prob.l;i++)
 			QD[i] = kernel_function(i,i);
+		if(param.shrinking == 2)
+		{
+			indirect = new IndirectCache(this,y,prob.l,size);
+			cache = indirect.cache();
+		}
+		else
+		{
+			indirect = null;
+			cache = new Cache(prob.l,size);
+		}
+		prewarm(cache,prob.l);
 	}
 
 	@Override
 	float[] get_Q(int i, int len)
 	{
+		if(indirect != null)
+			return indirect.get_Q(i,len);
 		float[][] data = new float[1][];
 		int start, j;
 		if((start = cache.get_data(i,data,len)) < len)
 		{
+			if(prefetcher != null)
+				start = prefetcher.fill(i,data[0],start,len);
+			kernel_column(i,start,len,data[0]);
 			for(j=start;j<len;j++)
-				data[0][j] = (float)(y[i]*y[j]*kernel_function(i,j));
+				data[0][j] *= y[i]*y[j];
 		}
 		return data[0];
 	}
 
+	@Override
+	void get_Q(int[] columns, int n, int len, float[][] Q_block)
+	{
+		if(indirect != null)
+		{
+			indirect.get_Q(columns,n,len,Q_block);
+			return;
+		}
+		float[][] data = new float[1][];
+		int[] start = new int[n];
+		int min_start = len;
+		int j, k;
+		for(k=0;k<n;k++)
+		{
+			int i = columns[k];
+			if((start[k] = cache.get_data(i,data,len)) < len)
+			{
+				if(prefetcher != null)
+					start[k] = prefetcher.fill(i,data[0],start[k],len);
+				if(stored_column(i,start[k],len,data[0]))
+				{
+					for(j=start[k];j<len;j++)
+						data[0][j] *= y[i]*y[j];
+					start[k] = len;
+				}
+			}
+			Q_block[k] = data[0];
+			min_start = Math.min(min_start,start[k]);
+		}
+		for(j=min_start;j<len;j++)
+			for(k=0;k<n;k++)
+				if(j >= start[k])
+				{
+					int i = columns[k];
+					Q_block[k][j] = (float)(y[i]*y[j]*kernel_function(i,j));
+				}
+	}
+
+	@Override
+	float[] compute_column(int i, int len)
+	{
+		if(indirect != null)
+			return indirect.compute_column(i,len);
+		float[] column = new float[len];
+		kernel_column(i,0,len,column);
+		for(int j=0;j<len;j++)
+			column[j] *= y[i]*y[j];
+		return column;
+	}
+
+	@Override
+	void prefetch(int i, int len)
+	{
+		if(prefetcher == null)
+			return;
+		if(indirect != null)
+			indirect.prefetch(i,len);
+		else if(!cache.has_data(i,len))
+			prefetcher.submit(i,len);
+	}
+
 	@Override
 	double[] get_QD()
 	{
@@ -41,12 +124,19 @@ class SVC_Q extends Kernel
 	@Override
 	void swap_index(int i, int j)
 	{
-		cache.swap_index(i,j);
-		super.swap_index(i,j);
-		{ // swap(byte, y[i], y[j]);
-			byte tmp = y[i];
-			y[i] = y[j];
-			y[j] = tmp;
+		if(indirect != null)
+			indirect.swap_index(i,j);
+		else
+		{
+			if(prefetcher != null)
+				prefetcher.cancel_all();
+			cache.swap_index(i,j);
+			super.swap_index(i,j);
+			{ // swap(byte, y[i], y[j]);
+				byte tmp = y[i];
+				y[i] = y[j];
+				y[j] = tmp;
+			}
 		}
 		{ // swap(double, QD[i], QD[j]);
 			double tmp = QD[i];
@@ -12,7 +12,7 @@ class SVR_Q extends Kernel
 
 	SVR_Q(svm_problem prob, svm_parameter param)
 	{
-		super(prob.l, prob.x, param);
+		super(prob, param);
 		l = prob.l;
 		cache = new Cache(l,(long)(param.cache_size*(1<<20)));
 		QD = new double[2*l];
@@ -29,6 +29,7 @@ class SVR_Q extends Kernel
 		}
 		buffer = new float[2][2*l];
 		next_buffer = 0;
+		prewarm(cache,l);
 	}
 
 	@Override
@@ -55,11 +56,12 @@ class SVR_Q extends Kernel
 	float[] get_Q(int i, int len)
 	{
 		float[][] data = new float[1][];
-		int j, real_i = index[i];
-		if(cache.get_data(real_i,data,l) < l)
+		int start, j, real_i = index[i];
+		if((start = cache.get_data(real_i,data,l)) < l)
 		{
-			for(j=0;j<l;j++)
-				data[0][j] = (float)kernel_function(real_i,j);
+			if(prefetcher != null)
+				start = prefetcher.fill(real_i,data[0],start,l);
+			kernel_column(real_i,start,l,data[0]);
 		}
 
 		// reorder and copy
@@ -71,6 +73,62 @@ class SVR_Q extends Kernel
 		return buf;
 	}
 
+	@Override
+	void get_Q(int[] columns, int n, int len, float[][] Q_block)
+	{
+		float[][] data = new float[1][];
+		int[] real = new int[n];
+		int[] start = new int[n];
+		float[][] col = new float[n][];
+		int min_start = l;
+		int j, k;
+		for(k=0;k<n;k++)
+		{
+			real[k] = index[columns[k]];
+			if((start[k] = cache.get_data(real[k],data,l)) < l)
+			{
+				if(prefetcher != null)
+					start[k] = prefetcher.fill(real[k],data[0],start[k],l);
+				if(stored_column(real[k],start[k],l,data[0]))
+					start[k] = l;
+			}
+			col[k] = data[0];
+			min_start = Math.min(min_start,start[k]);
+		}
+		for(j=min_start;j<l;j++)
+			for(k=0;k<n;k++)
+				if(j >= start[k])
+					col[k][j] = (float)kernel_function(real[k],j);
+
+		// reorder and copy
+		float[][] buf = block_buffer(n,2*l);
+		for(k=0;k<n;k++)
+		{
+			byte si = sign[columns[k]];
+			for(j=0;j<len;j++)
+				buf[k][j] = (float) si * sign[j] * col[k][index[j]];
+			Q_block[k] = buf[k];
+		}
+	}
+
+	@Override
+	float[] compute_column(int real_i, int len)
+	{
+		float[] column = new float[len];
+		kernel_column(real_i,0,len,column);
+		return column;
+	}
+
+	@Override
+	void prefetch(int i, int len)
+	{
+		if(prefetcher == null)
+			return;
+		int real_i = index[i];
+		if(!cache.has_data(real_i,l))
+			prefetcher.submit(real_i,l);
+	}
+
 	@Override
 	double[] get_QD()
 	{
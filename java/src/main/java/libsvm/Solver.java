@@ -10,12 +10,13 @@ import java.util.logging.Level;
  *
  *		y^T \alpha = \delta
  *		y_i = +1 or -1
- *		0 <= alpha_i <= Cp for y_i = 1
- *		0 <= alpha_i <= Cn for y_i = -1</code>
+ *		0 <= alpha_i <= Cp W_i for y_i = 1
+ *		0 <= alpha_i <= Cn W_i for y_i = -1</code>
  *
  * Given:
  *
- *	Q, p, y, Cp, Cn, and an initial feasible point \alpha
+ *	Q, p, y, Cp, Cn, optional instance weights W (1 if null),
+ *	and an initial feasible point \alpha
  *	l is the size of vectors and matrices
  *	eps is the stopping tolerance
  *
@@ -39,18 +40,31 @@ class Solver
 	protected double[] QD;
 	protected double eps;
 	protected double Cp,Cn;
+	/** instance weights scaling Cp and Cn, or <code>null</code> */
+	protected double[] W;
 	protected double[] p;
 	protected int[] active_set;
 	/** gradient, if we treat free variables as 0 */
 	protected double[] G_bar;
 	protected int l;
 	protected boolean unshrink; // XXX
+	/**
+	 * Largest violators seen by select_working_set, ordered by violation,
+	 * which are nominated for prefetching;
+	 * <code>null</code> if Q does not prefetch.
+	 */
+	protected int[] candidates;
+	protected double[] candidate_violation;
+	protected int nr_candidates;
 
 	protected static final double INF = java.lang.Double.POSITIVE_INFINITY;
+	/** number of columns requested together from Q */
+	private static final int BLOCK_SIZE = 8;
 
 	double get_C(int i)
 	{
-		return (y[i] > 0)? Cp : Cn;
+		double C = (y[i] > 0)? Cp : Cn;
+		return (W == null)? C : C*W[i];
 	}
 	void update_alpha_status(int i)
 	{
@@ -76,6 +90,30 @@ class Solver
 		double r;	// for Solver_NU
 	}
 
+	/**
+	 * Remembers t as a prefetch candidate,
+	 * if it is among the largest violations seen so far.
+	 */
+	void add_candidate(int t, double violation)
+	{
+		int k = nr_candidates;
+		if(k == candidates.length)
+		{
+			if(violation <= candidate_violation[k-1])
+				return;
+			--k;
+		}
+		else
+			++nr_candidates;
+		for(; k>0 && candidate_violation[k-1] < violation; k--)
+		{
+			candidates[k] = candidates[k-1];
+			candidate_violation[k] = candidate_violation[k-1];
+		}
+		candidates[k] = t;
+		candidate_violation[k] = violation;
+	}
+
 	void swap_index(int i, int j)
 	{
 		Q.swap_index(i,j);
@@ -99,6 +137,12 @@ class Solver
 			alpha[i] = alpha[j];
 			alpha[j] = tmp;
 		}
+		if(W != null)
+		{ // swap(double, W[i], W[j]);
+			double tmp = W[i];
+			W[i] = W[j];
+			W[j] = tmp;
+		}
 		{ // swap(double, p[i], p[j]);
 			double tmp = p[i];
 			p[i] = p[j];
@@ -135,31 +179,65 @@ class Solver
 		if(2*nr_free < active_size)
 			svm.LOG_COMMON.warning("using -h 0 may be faster");
 
+		int[] block = new int[BLOCK_SIZE];
+		float[][] Q_block = new float[BLOCK_SIZE][];
+		int n = 0;
 		if (nr_free*l > 2*active_size*(l-active_size))
 		{
 			for(i=active_size;i<l;i++)
 			{
-				float[] Q_i = Q.get_Q(i,active_size);
-				for(j=0;j<active_size;j++)
-					if(is_free(j))
-						G[i] += alpha[j] * Q_i[j];
+				block[n++] = i;
+				if(n < BLOCK_SIZE && i < l-1)
+					continue;
+				Q.get_Q(block,n,active_size,Q_block);
+				for(int k=0;k<n;k++)
+				{
+					float[] Q_i = Q_block[k];
+					int b = block[k];
+					for(j=0;j<active_size;j++)
+						if(is_free(j))
+							G[b] += alpha[j] * Q_i[j];
+				}
+				n = 0;
 			}
 		}
 		else
 		{
 			for(i=0;i<active_size;i++)
+			{
 				if(is_free(i))
+					block[n++] = i;
+				if(n == 0 || (n < BLOCK_SIZE && i < active_size-1))
+					continue;
+				Q.get_Q(block,n,l,Q_block);
+				for(int k=0;k<n;k++)
 				{
-					float[] Q_i = Q.get_Q(i,l);
-					double alpha_i = alpha[i];
+					float[] Q_i = Q_block[k];
+					double alpha_i = alpha[block[k]];
 					for(j=active_size;j<l;j++)
 						G[j] += alpha_i * Q_i[j];
 				}
+				n = 0;
+			}
 		}
 	}
 
 	void Solve(int l, QMatrix Q, double[] p_, byte[] y_,
-		   double[] alpha_, double Cp, double Cn, double eps, SolutionInfo si, int shrinking)
+		   double[] alpha_, double Cp, double Cn, double[] W_, double eps, SolutionInfo si, int shrinking)
+	{
+		try
+		{
+			solve(l,Q,p_,y_,alpha_,Cp,Cn,W_,eps,si,shrinking);
+		}
+		finally
+		{
+			// stops the prefetch threads also when solving fails
+			Q.done();
+		}
+	}
+
+	private void solve(int l, QMatrix Q, double[] p_, byte[] y_,
+		   double[] alpha_, double Cp, double Cn, double[] W_, double eps, SolutionInfo si, int shrinking)
 	{
 		this.l = l;
 		this.Q = Q;
@@ -169,9 +247,19 @@ class Solver
 		alpha = alpha_.clone();
 		this.Cp = Cp;
 		this.Cn = Cn;
+		W = (W_ == null)? null : W_.clone();
 		this.eps = eps;
 		this.unshrink = false;
 
+		if(Q.prefetch_width() > 0)
+		{
+			candidates = new int[Q.prefetch_width()];
+			candidate_violation = new double[candidates.length];
+		}
+		else
+			candidates = null;
+		nr_candidates = 0;
+
 		// initialize alpha_status
 		{
 			alpha_status = new byte[l];
@@ -197,18 +285,30 @@ class Solver
 				G[i] = p[i];
 				G_bar[i] = 0;
 			}
+			int[] block = new int[BLOCK_SIZE];
+			float[][] Q_block = new float[BLOCK_SIZE][];
+			int n = 0;
 			for(i=0;i<l;i++)
+			{
 				if(!is_lower_bound(i))
+					block[n++] = i;
+				if(n == 0 || (n < BLOCK_SIZE && i < l-1))
+					continue;
+				Q.get_Q(block,n,l,Q_block);
+				for(int k=0;k<n;k++)
 				{
-					float[] Q_i = Q.get_Q(i,l);
-					double alpha_i = alpha[i];
+					float[] Q_i = Q_block[k];
+					int b = block[k];
+					double alpha_i = alpha[b];
 					int j;
 					for(j=0;j<l;j++)
 						G[j] += alpha_i*Q_i[j];
-					if(is_upper_bound(i))
+					if(is_upper_bound(b))
 						for(j=0;j<l;j++)
-							G_bar[j] += get_C(i) * Q_i[j];
+							G_bar[j] += get_C(b) * Q_i[j];
 				}
+				n = 0;
+			}
 		}
 
 		// optimization step
@@ -217,6 +317,7 @@ class Solver
 		int max_iter = Math.max(10000000, l>Integer.MAX_VALUE/100 ? Integer.MAX_VALUE : 100*l);
 		int counter = Math.min(l,1000)+1;
 		int[] working_set = new int[2];
+		float[][] Q_ij = new float[2][];
 
 		while(iter < max_iter)
 		{
@@ -249,8 +350,13 @@ class Solver
 
 			// update alpha[i] and alpha[j], handle bounds carefully
 
-			float[] Q_i = Q.get_Q(i,active_size);
-			float[] Q_j = Q.get_Q(j,active_size);
+			Q.get_Q(working_set,2,active_size,Q_ij);
+			float[] Q_i = Q_ij[0];
+			float[] Q_j = Q_ij[1];
+
+			// guess the next working set while updating G
+			for(int c=0;c<nr_candidates;c++)
+				Q.prefetch(candidates[c],active_size);
 
 			double C_i = get_C(i);
 			double C_j = get_C(j);
@@ -441,23 +547,34 @@ class Solver
 		int Gmax_idx = -1;
 		int Gmin_idx = -1;
 		double obj_diff_min = INF;
+		nr_candidates = 0;
 
 		for(int t=0;t<active_size;t++)
 		{
 			if(y[t] == +1)
 			{
-				if (!is_upper_bound(t) && (-G[t] >= Gmax))
+				if(!is_upper_bound(t))
 				{
-					Gmax = -G[t];
-					Gmax_idx = t;
+					if(-G[t] >= Gmax)
+					{
+						Gmax = -G[t];
+						Gmax_idx = t;
+					}
+					if(candidates != null)
+						add_candidate(t, -G[t]);
 				}
 			}
 			else
 			{
-				if(!is_lower_bound(t) && (G[t] >= Gmax))
+				if(!is_lower_bound(t))
 				{
-					Gmax = G[t];
-					Gmax_idx = t;
+					if(G[t] >= Gmax)
+					{
+						Gmax = G[t];
+						Gmax_idx = t;
+					}
+					if(candidates != null)
+						add_candidate(t, G[t]);
 				}
 			}
 		}
@@ -0,0 +1,387 @@
+package libsvm;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * Dual coordinate descent for linear kernels,
+ * in Hsieh et al., ICML 2008, p. 408--415 (C-SVC)
+ * and Ho and Lin, JMLR 13(2012), p. 3323--3348 (epsilon-SVR).
+ *
+ * Instead of kernel columns, the primal weight vector
+ * <code>w = \sum_i \alpha_i y_i x_i</code> is kept up to date,
+ * so each coordinate step costs O(nnz(x_i)) time,
+ * and no memory beyond O(l) and the dimension of w is needed.
+ *
+ * The equality constraint <code>y^T \alpha = 0</code> of the SMO formulation
+ * has no place in coordinate descent; the bias is learned as the weight
+ * of an extra constant feature instead, and so is regularized like w.
+ * The solution therefore differs slightly from the one of Solver.
+ *
+ * The instances are either sparse, as in svm_problem, or dense float rows.
+ */
+final class Solver_Linear
+{
+	/** value of the constant feature that stands in for the bias */
+	private static final double BIAS = 1;
+	private static final int MAX_ITER = 1000;
+
+	/** sparse instances, or <code>null</code> */
+	private final svm_node[][] x;
+	/** dense instances, or <code>null</code> */
+	private final float[][] dense;
+	private final int l;
+	/** instance weights scaling C, or <code>null</code> */
+	private final double[] W;
+	/** w, the last entry is the weight of the bias feature */
+	private final double[] w;
+	/** <code>QD[i] = x_i^T x_i</code>, with the bias feature */
+	private final double[] QD;
+	private final int[] index;
+	private final Random rand = new Random(1);
+
+	Solver_Linear(svm_problem prob)
+	{
+		x = prob.x;
+		dense = null;
+		l = prob.l;
+		W = prob.W;
+		int max_index = 0;
+		QD = new double[l];
+		index = new int[l];
+		for(int i=0;i<l;i++)
+		{
+			svm_node[] x_i = x[i];
+			for(int k=0;k<x_i.length;k++)
+			{
+				max_index = Math.max(max_index, x_i[k].index);
+				QD[i] += x_i[k].value * x_i[k].value;
+			}
+			QD[i] += BIAS*BIAS;
+			index[i] = i;
+		}
+		w = new double[max_index+2];
+	}
+
+	/**
+	 * @param rows dense instances, of dimension dim
+	 * @param W instance weights, or <code>null</code>
+	 */
+	Solver_Linear(float[][] rows, int dim, double[] W)
+	{
+		x = null;
+		dense = rows;
+		l = rows.length;
+		this.W = W;
+		QD = new double[l];
+		index = new int[l];
+		for(int i=0;i<l;i++)
+		{
+			float[] x_i = rows[i];
+			for(int k=0;k<dim;k++)
+				QD[i] += (double)x_i[k] * x_i[k];
+			QD[i] += BIAS*BIAS;
+			index[i] = i;
+		}
+		w = new double[dim+1];
+	}
+
+	/**
+	 * @return w, without the weight of the bias feature
+	 */
+	double[] get_w()
+	{
+		return Arrays.copyOf(w, w.length-1);
+	}
+
+	/** @return <code>w^T x_i</code>, with the bias feature */
+	private double w_dot(int i)
+	{
+		double sum = w[w.length-1]*BIAS;
+		if(x != null)
+		{
+			svm_node[] x_i = x[i];
+			for(int k=0;k<x_i.length;k++)
+				sum += w[x_i[k].index] * x_i[k].value;
+		}
+		else
+		{
+			float[] x_i = dense[i];
+			for(int k=0;k<x_i.length;k++)
+				sum += w[k] * x_i[k];
+		}
+		return sum;
+	}
+
+	/** <code>w += d x_i</code>, with the bias feature */
+	private void add(int i, double d)
+	{
+		if(x != null)
+		{
+			svm_node[] x_i = x[i];
+			for(int k=0;k<x_i.length;k++)
+				w[x_i[k].index] += d * x_i[k].value;
+		}
+		else
+		{
+			float[] x_i = dense[i];
+			for(int k=0;k<x_i.length;k++)
+				w[k] += d * x_i[k];
+		}
+		w[w.length-1] += d*BIAS;
+	}
+
+	private void shuffle(int active_size)
+	{
+		for(int s=0;s<active_size;s++)
+		{
+			int j = s + rand.nextInt(active_size-s);
+			{ // swap(int, index[s], index[j]);
+				int tmp = index[s];
+				index[s] = index[j];
+				index[j] = tmp;
+			}
+		}
+	}
+
+	private double w_square()
+	{
+		double sum = 0;
+		for(int k=0;k<w.length;k++)
+			sum += w[k]*w[k];
+		return sum;
+	}
+
+	/**
+	 * Solves
+	 * <code>min 0.5(\alpha^T Q \alpha) - e^T \alpha,
+	 * 0 <= alpha_i <= Cp W_i for y_i = 1, 0 <= alpha_i <= Cn W_i for y_i = -1</code>
+	 * with <code>Q_ij = y_i y_j (x_i^T x_j + BIAS^2)</code>.
+	 * alpha must be zero initially.
+	 */
+	void Solve_C_SVC(byte[] y, double[] alpha, double Cp, double Cn,
+			 double eps, Solver.SolutionInfo si, int shrinking)
+	{
+		int iter = 0;
+		int active_size = l;
+		// bounds of the projected gradient of the previous pass, for shrinking
+		double PGmax_old = Double.POSITIVE_INFINITY;
+		double PGmin_old = Double.NEGATIVE_INFINITY;
+
+		while(iter < MAX_ITER)
+		{
+			double PGmax_new = Double.NEGATIVE_INFINITY;
+			double PGmin_new = Double.POSITIVE_INFINITY;
+
+			shuffle(active_size);
+			for(int s=0;s<active_size;s++)
+			{
+				int i = index[s];
+				double C = (y[i] > 0) ? Cp : Cn;
+				if(W != null)
+					C *= W[i];
+				double G = y[i]*w_dot(i) - 1;
+
+				double PG = 0;
+				if(alpha[i] == 0)
+				{
+					if(G > PGmax_old && shrinking != 0)
+					{
+						shrink(s--, --active_size);
+						continue;
+					}
+					else if(G < 0)
+						PG = G;
+				}
+				else if(alpha[i] == C)
+				{
+					if(G < PGmin_old && shrinking != 0)
+					{
+						shrink(s--, --active_size);
+						continue;
+					}
+					else if(G > 0)
+						PG = G;
+				}
+				else
+					PG = G;
+
+				PGmax_new = Math.max(PGmax_new, PG);
+				PGmin_new = Math.min(PGmin_new, PG);
+
+				if(Math.abs(PG) > 1e-12)
+				{
+					double alpha_old = alpha[i];
+					alpha[i] = Math.min(Math.max(alpha[i] - G/QD[i], 0), C);
+					add(i, (alpha[i] - alpha_old)*y[i]);
+				}
+			}
+
+			++iter;
+			if(iter % 10 == 0)
+				svm.LOG_COMMON.info(".");
+
+			if(PGmax_new - PGmin_new <= eps)
+			{
+				if(active_size == l)
+					break;
+				// check the shrunk variables in a final pass over all of them
+				svm.LOG_COMMON.info("*");
+				active_size = l;
+				PGmax_old = Double.POSITIVE_INFINITY;
+				PGmin_old = Double.NEGATIVE_INFINITY;
+				continue;
+			}
+			PGmax_old = (PGmax_new <= 0) ? Double.POSITIVE_INFINITY : PGmax_new;
+			PGmin_old = (PGmin_new >= 0) ? Double.NEGATIVE_INFINITY : PGmin_new;
+		}
+
+		if(iter >= MAX_ITER)
+			svm.LOG_COMMON.warning("reaching max number of iterations");
+
+		double sum_alpha = 0;
+		for(int i=0;i<l;i++)
+			sum_alpha += alpha[i];
+		si.obj = 0.5*w_square() - sum_alpha;
+		si.rho = -w[w.length-1]*BIAS;
+		si.upper_bound_p = Cp;
+		si.upper_bound_n = Cn;
+
+		svm.LOG_COMMON.log(Level.INFO, "optimization finished, #iter = {0}", iter);
+	}
+
+	/**
+	 * Solves
+	 * <code>min 0.5(\beta^T Q \beta) - y^T \beta + p \sum_i |\beta_i|,
+	 * -C W_i <= beta_i <= C W_i</code>
+	 * with <code>Q_ij = x_i^T x_j + BIAS^2</code>,
+	 * the dual of epsilon-SVR with <code>\beta = \alpha - \alpha^*</code>.
+	 * beta must be zero initially.
+	 */
+	void Solve_epsilon_SVR(double[] y, double[] beta, double C, double p,
+			       double eps, Solver.SolutionInfo si, int shrinking)
+	{
+		int iter = 0;
+		int active_size = l;
+		double Gmax_old = Double.POSITIVE_INFINITY;
+		double Gnorm1_init = -1;
+
+		while(iter < MAX_ITER)
+		{
+			double Gmax_new = 0;
+			double Gnorm1_new = 0;
+
+			shuffle(active_size);
+			for(int s=0;s<active_size;s++)
+			{
+				int i = index[s];
+				double C_i = (W == null) ? C : C*W[i];
+				double G = w_dot(i) - y[i];
+				double H = QD[i];
+				double Gp = G+p;
+				double Gn = G-p;
+
+				double violation = 0;
+				if(beta[i] == 0)
+				{
+					if(Gp < 0)
+						violation = -Gp;
+					else if(Gn > 0)
+						violation = Gn;
+					else if(Gp > Gmax_old && Gn < -Gmax_old && shrinking != 0)
+					{
+						shrink(s--, --active_size);
+						continue;
+					}
+				}
+				else if(beta[i] >= C_i)
+				{
+					if(Gp > 0)
+						violation = Gp;
+					else if(Gp < -Gmax_old && shrinking != 0)
+					{
+						shrink(s--, --active_size);
+						continue;
+					}
+				}
+				else if(beta[i] <= -C_i)
+				{
+					if(Gn < 0)
+						violation = -Gn;
+					else if(Gn > Gmax_old && shrinking != 0)
+					{
+						shrink(s--, --active_size);
+						continue;
+					}
+				}
+				else if(beta[i] > 0)
+					violation = Math.abs(Gp);
+				else
+					violation = Math.abs(Gn);
+
+				Gmax_new = Math.max(Gmax_new, violation);
+				Gnorm1_new += violation;
+
+				// Newton direction of the piecewise quadratic in beta_i
+				double d;
+				if(Gp < H*beta[i])
+					d = -Gp/H;
+				else if(Gn > H*beta[i])
+					d = -Gn/H;
+				else
+					d = -beta[i];
+
+				if(Math.abs(d) < 1e-12)
+					continue;
+
+				double beta_old = beta[i];
+				beta[i] = Math.min(Math.max(beta[i]+d, -C_i), C_i);
+				d = beta[i] - beta_old;
+				if(d != 0)
+					add(i, d);
+			}
+
+			if(iter == 0)
+				Gnorm1_init = Gnorm1_new;
+			++iter;
+			if(iter % 10 == 0)
+				svm.LOG_COMMON.info(".");
+
+			if(Gnorm1_new <= eps*Gnorm1_init)
+			{
+				if(active_size == l)
+					break;
+				svm.LOG_COMMON.info("*");
+				active_size = l;
+				Gmax_old = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			Gmax_old = Gmax_new;
+		}
+
+		if(iter >= MAX_ITER)
+			svm.LOG_COMMON.warning("reaching max number of iterations");
+
+		double v = 0;
+		for(int i=0;i<l;i++)
+			v += p*Math.abs(beta[i]) - y[i]*beta[i];
+		si.obj = 0.5*w_square() + v;
+		si.rho = -w[w.length-1]*BIAS;
+		si.upper_bound_p = C;
+		si.upper_bound_n = C;
+
+		svm.LOG_COMMON.log(Level.INFO, "optimization finished, #iter = {0}", iter);
+	}
+
+	/**
+	 * Moves the variable at position s out of the active set,
+	 * which now has the given size.
+	 */
+	private void shrink(int s, int active_size)
+	{
+		int tmp = index[s];
+		index[s] = index[active_size];
+		index[active_size] = tmp;
+	}
+}
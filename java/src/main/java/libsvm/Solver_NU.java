@@ -11,11 +11,11 @@ final class Solver_NU extends Solver
 
 	@Override
 	void Solve(int l, QMatrix Q, double[] p, byte[] y,
-		   double[] alpha, double Cp, double Cn, double eps,
+		   double[] alpha, double Cp, double Cn, double[] W, double eps,
 		   SolutionInfo si, int shrinking)
 	{
 		this.si = si;
-		super.Solve(l,Q,p,y,alpha,Cp,Cn,eps,si,shrinking);
+		super.Solve(l,Q,p,y,alpha,Cp,Cn,W,eps,si,shrinking);
 	}
 
 	/**
@@ -41,22 +41,34 @@ final class Solver_NU extends Solver
 		int Gmin_idx = -1;
 		double obj_diff_min = INF;
 
+		nr_candidates = 0;
+
 		for(int t=0;t<active_size;t++)
 		{
 			if(y[t] == +1)
 			{
-				if(!is_upper_bound(t) && (-G[t] >= Gmaxp))
+				if(!is_upper_bound(t))
 				{
-					Gmaxp = -G[t];
-					Gmaxp_idx = t;
+					if(-G[t] >= Gmaxp)
+					{
+						Gmaxp = -G[t];
+						Gmaxp_idx = t;
+					}
+					if(candidates != null)
+						add_candidate(t, -G[t]);
 				}
 			}
 			else
 			{
-				if(!is_lower_bound(t) && (G[t] >= Gmaxn))
+				if(!is_lower_bound(t))
 				{
-					Gmaxn = G[t];
-					Gmaxn_idx = t;
+					if(G[t] >= Gmaxn)
+					{
+						Gmaxn = G[t];
+						Gmaxn_idx = t;
+					}
+					if(candidates != null)
+						add_candidate(t, G[t]);
 				}
 			}
 		}
@@ -6,6 +6,8 @@ import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
@@ -24,6 +26,11 @@ public class svm
 	public static final Logger LOG_COMMON = Logger.getLogger(svm.class.getName() + "_COMMON");
 	public static final int LIBSVM_VERSION=321;
 	public static final Random rand = new Random();
+	/**
+	 * with LINEAR_AUTO, linear kernels are trained by dual coordinate descent
+	 * if the cache holds less than this many kernel columns
+	 */
+	private static final int LINEAR_AUTO_COLUMNS = 8;
 
 	private svm() {}
 
@@ -65,6 +72,32 @@ public class svm
 		return versionNumber;
 	}
 
+	/**
+	 * @return whether to train with dual coordinate descent instead of SMO,
+	 *   see <code>svm_parameter.linear_solver</code>
+	 */
+	private static boolean use_linear_solver(svm_problem prob, svm_parameter param)
+	{
+		if(param.kernel_type != svm_parameter.LINEAR)
+			return false;
+		switch(param.linear_solver)
+		{
+			case svm_parameter.LINEAR_DCD:
+				svm.LOG_COMMON.info("linear kernel: training by dual coordinate descent");
+				return true;
+			case svm_parameter.LINEAR_AUTO:
+				// SMO needs two kernel columns per iteration, and then some to reuse
+				if(4.0*prob.l*LINEAR_AUTO_COLUMNS <= param.cache_size*(1<<20))
+					return false;
+				svm.LOG_COMMON.log(Level.INFO, "linear kernel: the cache holds less than {0} kernel columns of {1} entries, "
+					+ "training by dual coordinate descent, which regularizes the bias too",
+					new Object[] {LINEAR_AUTO_COLUMNS, prob.l});
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	private static void solve_c_svc(svm_problem prob, svm_parameter param,
 					double[] alpha, Solver.SolutionInfo si,
 					double Cp, double Cn)
@@ -82,16 +115,22 @@ public class svm
 			if(prob.y[i] > 0) y[i] = +1; else y[i] = -1;
 		}
 
-		Solver s = new Solver();
-		s.Solve(l, new SVC_Q(prob,param,y), minus_ones, y,
-			alpha, Cp, Cn, param.eps, si, param.shrinking);
+		if(use_linear_solver(prob,param))
+			new Solver_Linear(prob).Solve_C_SVC(y, alpha, Cp, Cn,
+				param.eps, si, param.shrinking);
+		else
+		{
+			Solver s = new Solver();
+			s.Solve(l, new SVC_Q(prob,param,y), minus_ones, y,
+				alpha, Cp, Cn, prob.W, param.eps, si, param.shrinking);
+		}
 
 		double sum_alpha=0;
 		for(i=0;i<l;i++)
 			sum_alpha += alpha[i];
 
 		if (Cp==Cn)
-			svm.LOG_COMMON.log(Level.INFO, "nu = {0}", sum_alpha/(Cp*prob.l));
+			svm.LOG_COMMON.log(Level.INFO, "nu = {0}", sum_alpha/(Cp*sum_weights(prob)));
 
 		for(i=0;i<l;i++)
 			alpha[i] *= y[i];
@@ -112,18 +151,18 @@ public class svm
 			else
 				y[i] = -1;
 
-		double sum_pos = nu*l/2;
-		double sum_neg = nu*l/2;
+		double sum_pos = nu*sum_weights(prob)/2;
+		double sum_neg = nu*sum_weights(prob)/2;
 
 		for(i=0;i<l;i++)
 			if(y[i] == +1)
 			{
-				alpha[i] = Math.min(1.0,sum_pos);
+				alpha[i] = Math.min(weight(prob,i),sum_pos);
 				sum_pos -= alpha[i];
 			}
 			else
 			{
-				alpha[i] = Math.min(1.0,sum_neg);
+				alpha[i] = Math.min(weight(prob,i),sum_neg);
 				sum_neg -= alpha[i];
 			}
 
@@ -134,7 +173,7 @@ public class svm
 
 		Solver_NU s = new Solver_NU();
 		s.Solve(l, new SVC_Q(prob,param,y), zeros, y,
-			alpha, 1.0, 1.0, param.eps, si, param.shrinking);
+			alpha, 1.0, 1.0, prob.W, param.eps, si, param.shrinking);
 		double r = si.r;
 
 		svm.LOG_COMMON.log(Level.INFO, "C = {0}", 1/r);
@@ -156,14 +195,27 @@ public class svm
 		byte[] ones = new byte[l];
 		int i;
 
-		int n = (int)(param.nu*prob.l); // # of alpha's at upper bound
-
-		for(i=0;i<n;i++)
-			alpha[i] = 1;
-		if(n<prob.l)
-			alpha[n] = param.nu * prob.l - n;
-		for(i=n+1;i<l;i++)
-			alpha[i] = 0;
+		if(prob.W == null)
+		{
+			int n = (int)(param.nu*prob.l); // # of alpha's at upper bound
+
+			for(i=0;i<n;i++)
+				alpha[i] = 1;
+			if(n<prob.l)
+				alpha[n] = param.nu * prob.l - n;
+			for(i=n+1;i<l;i++)
+				alpha[i] = 0;
+		}
+		else
+		{
+			// the first alpha's at their upper bounds W_i, up to nu * sum(W)
+			double sum = param.nu * sum_weights(prob);
+			for(i=0;i<l;i++)
+			{
+				alpha[i] = Math.min(prob.W[i],sum);
+				sum -= alpha[i];
+			}
+		}
 
 		for(i=0;i<l;i++)
 		{
@@ -173,17 +225,31 @@ public class svm
 
 		Solver s = new Solver();
 		s.Solve(l, new ONE_CLASS_Q(prob,param), zeros, ones,
-			alpha, 1.0, 1.0, param.eps, si, param.shrinking);
+			alpha, 1.0, 1.0, prob.W, param.eps, si, param.shrinking);
 	}
 
 	private static void solve_epsilon_svr(svm_problem prob, svm_parameter param,
 					double[] alpha, Solver.SolutionInfo si)
 	{
 		int l = prob.l;
+		int i;
+
+		if(use_linear_solver(prob,param))
+		{
+			for(i=0;i<l;i++)
+				alpha[i] = 0;
+			new Solver_Linear(prob).Solve_epsilon_SVR(prob.y, alpha, param.C, param.p,
+				param.eps, si, param.shrinking);
+			double sum_alpha = 0;
+			for(i=0;i<l;i++)
+				sum_alpha += Math.abs(alpha[i]);
+			svm.LOG_COMMON.log(Level.INFO, "nu = {0}", sum_alpha/(param.C*sum_weights(prob)));
+			return;
+		}
+
 		double[] alpha2 = new double[2*l];
 		double[] linear_term = new double[2*l];
 		byte[] y = new byte[2*l];
-		int i;
 
 		for(i=0;i<l;i++)
 		{
@@ -198,7 +264,7 @@ public class svm
 
 		Solver s = new Solver();
 		s.Solve(2*l, new SVR_Q(prob,param), linear_term, y,
-			alpha2, param.C, param.C, param.eps, si, param.shrinking);
+			alpha2, param.C, param.C, twice(prob.W), param.eps, si, param.shrinking);
 
 		double sum_alpha = 0;
 		for(i=0;i<l;i++)
@@ -206,7 +272,7 @@ public class svm
 			alpha[i] = alpha2[i] - alpha2[i+l];
 			sum_alpha += Math.abs(alpha[i]);
 		}
-		svm.LOG_COMMON.log(Level.INFO, "nu = {0}", sum_alpha/(param.C*l));
+		svm.LOG_COMMON.log(Level.INFO, "nu = {0}", sum_alpha/(param.C*sum_weights(prob)));
 	}
 
 	private static void solve_nu_svr(svm_problem prob, svm_parameter param,
@@ -219,10 +285,10 @@ public class svm
 		byte[] y = new byte[2*l];
 		int i;
 
-		double sum = C * param.nu * l / 2;
+		double sum = C * param.nu * sum_weights(prob) / 2;
 		for(i=0;i<l;i++)
 		{
-			alpha2[i] = alpha2[i+l] = Math.min(sum,C);
+			alpha2[i] = alpha2[i+l] = Math.min(sum,C*weight(prob,i));
 			sum -= alpha2[i];
 
 			linear_term[i] = - prob.y[i];
@@ -234,7 +300,7 @@ public class svm
 
 		Solver_NU s = new Solver_NU();
 		s.Solve(2*l, new SVR_Q(prob,param), linear_term, y,
-			alpha2, C, C, param.eps, si, param.shrinking);
+			alpha2, C, C, twice(prob.W), param.eps, si, param.shrinking);
 
 		svm.LOG_COMMON.log(Level.INFO, "epsilon = {0}", (-si.r));
 
@@ -242,6 +308,41 @@ public class svm
 			alpha[i] = alpha2[i] - alpha2[i+l];
 	}
 
+	/**
+	 * @return the weight of instance i, 1 without weights
+	 */
+	private static double weight(svm_problem prob, int i)
+	{
+		return (prob.W == null) ? 1 : prob.W[i];
+	}
+
+	/**
+	 * @return the sum of the instance weights, l without weights
+	 */
+	private static double sum_weights(svm_problem prob)
+	{
+		if(prob.W == null)
+			return prob.l;
+		double sum = 0;
+		for(int i=0;i<prob.l;i++)
+			sum += prob.W[i];
+		return sum;
+	}
+
+	/**
+	 * @return W followed by W again, for the 2l variables of SVR; null for null
+	 */
+	private static double[] twice(double[] W)
+	{
+		if(W == null)
+			return null;
+		int l = W.length;
+		double[] W2 = new double[2*l];
+		System.arraycopy(W, 0, W2, 0, l);
+		System.arraycopy(W, 0, W2, l, l);
+		return W2;
+	}
+
 	private static class decision_function
 	{
 		double[] alpha;
@@ -288,12 +389,12 @@ public class svm
 				++nSV;
 				if(prob.y[i] > 0)
 				{
-					if(Math.abs(alpha[i]) >= si.upper_bound_p)
+					if(Math.abs(alpha[i]) >= si.upper_bound_p*weight(prob,i))
 					++nBSV;
 				}
 				else
 				{
-					if(Math.abs(alpha[i]) >= si.upper_bound_n)
+					if(Math.abs(alpha[i]) >= si.upper_bound_n*weight(prob,i))
 						++nBSV;
 				}
 			}
@@ -526,18 +627,25 @@ public class svm
 			subprob.l = prob.l-(end-begin);
 			subprob.x = new svm_node[subprob.l][];
 			subprob.y = new double[subprob.l];
+			subprob.W = (prob.W == null) ? null : new double[subprob.l];
+			subprob.kernel_matrix = prob.kernel_matrix;
+			subprob.kernel_store = prob.kernel_store;
 
 			k=0;
 			for(j=0;j<begin;j++)
 			{
 				subprob.x[k] = prob.x[perm[j]];
 				subprob.y[k] = prob.y[perm[j]];
+				if(prob.W != null)
+					subprob.W[k] = prob.W[perm[j]];
 				++k;
 			}
 			for(j=end;j<prob.l;j++)
 			{
 				subprob.x[k] = prob.x[perm[j]];
 				subprob.y[k] = prob.y[perm[j]];
+				if(prob.W != null)
+					subprob.W[k] = prob.W[perm[j]];
 				++k;
 			}
 			int p_count=0,n_count=0;
@@ -708,14 +816,241 @@ public class svm
 		count_ret[0] = count;
 	}
 
+	/**
+	 * @return the C of each class, with the weights of param applied
+	 */
+	private static double[] weighted_C(svm_parameter param, int nr_class, int[] label)
+	{
+		double[] weighted_C = new double[nr_class];
+		int i;
+		for(i=0;i<nr_class;i++)
+			weighted_C[i] = param.C;
+		for(i=0;i<param.nr_weight;i++)
+		{
+			int j;
+			for(j=0;j<nr_class;j++)
+				if(param.weight_label[i] == label[j])
+					break;
+			if(j == nr_class)
+				LOG.log(Level.WARNING, "class label {0} specified in weight is not found", param.weight_label[i]);
+			else
+				weighted_C[j] *= param.weight[i];
+		}
+		return weighted_C;
+	}
+
+	/**
+	 * Trains linear decision functions on features phi of the data
+	 * by dual coordinate descent, one-vs-one for classification;
+	 * sets nr_class, label and rho of the model.
+	 * @param dim the dimension of the features
+	 * @return the weight vector of each decision function
+	 */
+	private static double[][] svm_train_features(svm_problem prob, svm_parameter param,
+						     float[][] phi, int dim, svm_model model)
+	{
+		int l = prob.l;
+		Solver.SolutionInfo si = new Solver.SolutionInfo();
+		if(param.svm_type == svm_parameter.EPSILON_SVR)
+		{
+			Solver_Linear s = new Solver_Linear(phi,dim,prob.W);
+			s.Solve_epsilon_SVR(prob.y, new double[l], param.C, param.p,
+				param.eps, si, param.shrinking);
+			svm.LOG_COMMON.log(Level.INFO, "obj = {0}, rho = {1}", new Object[] {si.obj, si.rho});
+
+			model.nr_class = 2;
+			model.label = null;
+			model.rho = new double[] {si.rho};
+			return new double[][] {s.get_w()};
+		}
+
+		// classification
+		int[] tmp_nr_class = new int[1];
+		int[][] tmp_label = new int[1][];
+		int[][] tmp_start = new int[1][];
+		int[][] tmp_count = new int[1][];
+		int[] perm = new int[l];
+		svm_group_classes(prob,tmp_nr_class,tmp_label,tmp_start,tmp_count,perm);
+		int nr_class = tmp_nr_class[0];
+		int[] label = tmp_label[0];
+		int[] start = tmp_start[0];
+		int[] count = tmp_count[0];
+
+		if(nr_class == 1)
+			svm.LOG_COMMON.warning("training data in only one class. See README for details.");
+
+		double[] weighted_C = weighted_C(param,nr_class,label);
+
+		model.nr_class = nr_class;
+		model.label = label;
+		model.rho = new double[nr_class*(nr_class-1)/2];
+		double[][] w = new double[nr_class*(nr_class-1)/2][];
+
+		int p = 0;
+		for(int i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				int ci = count[i], cj = count[j];
+				float[][] sub_phi = new float[ci+cj][];
+				byte[] y = new byte[ci+cj];
+				double[] W = (prob.W == null) ? null : new double[ci+cj];
+				int k;
+				for(k=0;k<ci;k++)
+				{
+					sub_phi[k] = phi[perm[start[i]+k]];
+					y[k] = +1;
+					if(W != null)
+						W[k] = prob.W[perm[start[i]+k]];
+				}
+				for(k=0;k<cj;k++)
+				{
+					sub_phi[ci+k] = phi[perm[start[j]+k]];
+					y[ci+k] = -1;
+					if(W != null)
+						W[ci+k] = prob.W[perm[start[j]+k]];
+				}
+
+				Solver_Linear s = new Solver_Linear(sub_phi,dim,W);
+				s.Solve_C_SVC(y, new double[ci+cj], weighted_C[i], weighted_C[j],
+					param.eps, si, param.shrinking);
+				svm.LOG_COMMON.log(Level.INFO, "obj = {0}, rho = {1}", new Object[] {si.obj, si.rho});
+
+				w[p] = s.get_w();
+				model.rho[p] = si.rho;
+				++p;
+			}
+		return w;
+	}
+
+	/**
+	 * Trains a linear model on the Nystrom features of the data,
+	 * see <code>svm_parameter.nystrom_landmarks</code>.
+	 * The result is an ordinary model with the landmarks as support vectors.
+	 * For classification, one-vs-one decision functions all need all landmarks,
+	 * while the model format only lets a decision function use the support vectors
+	 * of its two classes; so each class but the last gets a copy of the landmarks,
+	 * and decision function (i,j), i &lt; j, uses the copy of class i.
+	 */
+	private static svm_model svm_train_nystrom(svm_problem prob, svm_parameter param)
+	{
+		svm_model model = new svm_model();
+		model.param = param;
+		model.probA = null; model.probB = null;
+		model.sv_indices = null;
+
+		Nystrom nystrom = new Nystrom(prob,param);
+		svm_node[][] Z = nystrom.landmarks();
+		int r = nystrom.rank();
+		int l = prob.l;
+		float[][] phi = new float[l][];
+		for(int i=0;i<l;i++)
+			phi[i] = nystrom.map(prob.x[i]);
+
+		double[][] w = svm_train_features(prob,param,phi,r,model);
+		if(param.svm_type == svm_parameter.EPSILON_SVR)
+		{
+			model.nSV = null;
+			model.l = r;
+			model.SV = Z;
+			model.sv_coef = new double[][] {nystrom.expand(w[0])};
+			return model;
+		}
+
+		int nr_class = model.nr_class;
+		model.nSV = new int[nr_class];
+		for(int i=0;i<nr_class-1;i++)
+			model.nSV[i] = r;
+		model.l = (nr_class-1)*r;
+		model.SV = new svm_node[model.l][];
+		for(int i=0;i<model.l;i++)
+			model.SV[i] = Z[i%r];
+		model.sv_coef = new double[nr_class-1][model.l];
+
+		int p = 0;
+		for(int i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				double[] beta = nystrom.expand(w[p]);
+				System.arraycopy(beta,0,model.sv_coef[j-1],i*r,r);
+				++p;
+			}
+		return model;
+	}
+
+	/**
+	 * Trains a linear model on random Fourier features of the data,
+	 * see <code>svm_parameter.rff_features</code>.
+	 * The model has no support vectors; it keeps the transform
+	 * and the feature weights of each decision function instead.
+	 */
+	private static svm_model svm_train_rff(svm_problem prob, svm_parameter param)
+	{
+		svm_model model = new svm_model();
+		model.param = param;
+		model.probA = null; model.probB = null;
+		model.sv_indices = null;
+
+		svm_rff rff = svm_rff.create(prob,param);
+		int l = prob.l;
+		float[][] z = new float[l][];
+		for(int i=0;i<l;i++)
+			z[i] = rff.map_float(prob.x[i]);
+
+		model.rff = rff;
+		model.w = svm_train_features(prob,param,z,rff.get_features(),model);
+		model.l = 0;
+		model.SV = new svm_node[0][];
+		model.sv_coef = new double[model.nr_class-1][0];
+		model.nSV = (param.svm_type == svm_parameter.EPSILON_SVR) ? null : new int[model.nr_class];
+		return model;
+	}
+
 	//
 	// Interface functions
 	//
-
 	public static svm_model svm_train(svm_problem prob, svm_parameter param)
 	{
+		svm_problem run = with_kernel_store(prob,param);
+		if(run == prob)
+			return train(prob,param);
+		try
+		{
+			return train(run,param);
+		}
+		finally
+		{
+			run.kernel_store.close();
+		}
+	}
+
+	/**
+	 * @return prob, or a copy with a kernel store for the training run
+	 *   if param asks for one and prob is not part of a run already
+	 */
+	private static svm_problem with_kernel_store(svm_problem prob, svm_parameter param)
+	{
+		if(param.kernel_store == null || prob.kernel_store != null)
+			return prob;
+		svm_problem run = new svm_problem();
+		run.l = prob.l;
+		run.y = prob.y;
+		run.x = prob.x;
+		run.W = prob.W;
+		run.kernel_matrix = prob.kernel_matrix;
+		run.kernel_store = new KernelStore.Run(prob,param);
+		return run;
+	}
+
+	private static svm_model train(svm_problem prob, svm_parameter param)
+	{
+		if(param.nystrom_landmarks > 0)
+			return svm_train_nystrom(prob,param);
+		if(param.rff_features > 0)
+			return svm_train_rff(prob,param);
+
 		svm_model model = new svm_model();
 		model.param = param;
+		model.kernel_matrix = prob.kernel_matrix;
 
 		if(param.svm_type == svm_parameter.ONE_CLASS ||
 		   param.svm_type == svm_parameter.EPSILON_SVR ||
@@ -782,24 +1117,16 @@ public class svm
 			int i;
 			for(i=0;i<l;i++)
 				x[i] = prob.x[perm[i]];
-
-			// calculate weighted C
-
-			double[] weighted_C = new double[nr_class];
-			for(i=0;i<nr_class;i++)
-				weighted_C[i] = param.C;
-			for(i=0;i<param.nr_weight;i++)
+			double[] W = null;
+			if(prob.W != null)
 			{
-				int j;
-				for(j=0;j<nr_class;j++)
-					if(param.weight_label[i] == label[j])
-						break;
-				if(j == nr_class)
-					LOG.log(Level.WARNING, "class label {0} specified in weight is not found", param.weight_label[i]);
-				else
-					weighted_C[j] *= param.weight[i];
+				W = new double[l];
+				for(i=0;i<l;i++)
+					W[i] = prob.W[perm[i]];
 			}
 
+			double[] weighted_C = weighted_C(param,nr_class,label);
+
 			// train k*(k-1)/2 models
 
 			boolean[] nonzero = new boolean[l];
@@ -824,16 +1151,23 @@ public class svm
 					sub_prob.l = ci+cj;
 					sub_prob.x = new svm_node[sub_prob.l][];
 					sub_prob.y = new double[sub_prob.l];
+					sub_prob.W = (W == null) ? null : new double[sub_prob.l];
+					sub_prob.kernel_matrix = prob.kernel_matrix;
+					sub_prob.kernel_store = prob.kernel_store;
 					int k;
 					for(k=0;k<ci;k++)
 					{
 						sub_prob.x[k] = x[si+k];
 						sub_prob.y[k] = +1;
+						if(W != null)
+							sub_prob.W[k] = W[si+k];
 					}
 					for(k=0;k<cj;k++)
 					{
 						sub_prob.x[ci+k] = x[sj+k];
 						sub_prob.y[ci+k] = -1;
+						if(W != null)
+							sub_prob.W[ci+k] = W[sj+k];
 					}
 
 					if(param.probability == 1)
@@ -952,6 +1286,24 @@ public class svm
 	 * Stratified cross validation
 	 */
 	public static void svm_cross_validation(svm_problem prob, svm_parameter param, int nr_fold, double[] target)
+	{
+		svm_problem run = with_kernel_store(prob,param);
+		if(run == prob)
+		{
+			cross_validation(prob,param,nr_fold,target);
+			return;
+		}
+		try
+		{
+			cross_validation(run,param,nr_fold,target);
+		}
+		finally
+		{
+			run.kernel_store.close();
+		}
+	}
+
+	private static void cross_validation(svm_problem prob, svm_parameter param, int nr_fold, double[] target)
 	{
 		int i;
 		int[] fold_start = new int[nr_fold+1];
@@ -1040,18 +1392,25 @@ public class svm
 			subprob.l = l-(end-begin);
 			subprob.x = new svm_node[subprob.l][];
 			subprob.y = new double[subprob.l];
+			subprob.W = (prob.W == null) ? null : new double[subprob.l];
+			subprob.kernel_matrix = prob.kernel_matrix;
+			subprob.kernel_store = prob.kernel_store;
 
 			k=0;
 			for(j=0;j<begin;j++)
 			{
 				subprob.x[k] = prob.x[perm[j]];
 				subprob.y[k] = prob.y[perm[j]];
+				if(prob.W != null)
+					subprob.W[k] = prob.W[perm[j]];
 				++k;
 			}
 			for(j=end;j<l;j++)
 			{
 				subprob.x[k] = prob.x[perm[j]];
 				subprob.y[k] = prob.y[perm[j]];
+				if(prob.W != null)
+					subprob.W[k] = prob.W[perm[j]];
 				++k;
 			}
 			svm_model submodel = svm_train(subprob,param);
@@ -1092,6 +1451,18 @@ public class svm
 				indices[i] = model.sv_indices[i];
 	}
 
+	/**
+	 * For precomputed kernels: sets <code>serials[i]</code>
+	 * to the sample serial number of the i-th support vector,
+	 * i.e. to the training instance whose kernel value goes to index i+1
+	 * of test instances predicted with <code>model.sv_kernel_rows</code>.
+	 */
+	public static void svm_get_sv_serials(svm_model model, int[] serials)
+	{
+		for(int i=0;i<model.l;i++)
+			serials[i] = (int)model.SV[i][0].value;
+	}
+
 	public static int svm_get_nr_sv(svm_model model)
 	{
 		return model.l;
@@ -1109,17 +1480,195 @@ public class svm
 		}
 	}
 
+	/**
+	 * Sets <code>kvalue[i] = K(x, SV[i])</code> for the first n support vectors,
+	 * taking them from x directly if the model expects rows against its support vectors only,
+	 * or looking both up by their sample serial number if the model has a kernel matrix.
+	 */
+	private static void sv_kernel_values(svm_model model, svm_node[] x, int n, double[] kvalue)
+	{
+		if(model.sv_kernel_rows)
+		{
+			for(int i=0;i<n;i++)
+				kvalue[i] = 0;
+			for(int k=0;k<x.length;k++)
+			{
+				int i = x[k].index-1;
+				if(i >= 0 && i < n)
+					kvalue[i] = x[k].value;
+			}
+			return;
+		}
+		if(model.sv_index != null)
+		{
+			model.sv_index.kernel_values(x,kvalue);
+			return;
+		}
+		svm_kernel_matrix K = model.kernel_matrix;
+		if(K == null)
+		{
+			if(model.parallel_scorer == null || !model.parallel_scorer.kernel_values(x,kvalue))
+				Kernel.k_function(x,model.SV,n,model.param,kvalue);
+			return;
+		}
+		int row = (int)x[0].value - 1;
+		for(int i=0;i<n;i++)
+			kvalue[i] = K.get(row,(int)model.SV[i][0].value - 1);
+	}
+
+	/**
+	 * For linear kernels: collapses the support vectors of each decision function
+	 * into its weight vector <code>w = \sum_i coef_i SV_i</code>,
+	 * so prediction costs O(nnz(x)) per decision function instead of O(nnz(SV)).
+	 * Sets <code>model.w</code>.
+	 */
+	public static void svm_collapse_linear(svm_model model)
+	{
+		if(model.param.kernel_type != svm_parameter.LINEAR)
+			throw new IllegalArgumentException("only linear models can be collapsed");
+
+		model.batch_scorer = null;
+		int max_index = 0;
+		for(int i=0;i<model.l;i++)
+		{
+			svm_node[] sv = model.SV[i];
+			if(sv.length > 0)
+				max_index = Math.max(max_index, sv[sv.length-1].index);
+		}
+
+		int nr_class = model.nr_class;
+		if(model.param.svm_type == svm_parameter.ONE_CLASS ||
+		   model.param.svm_type == svm_parameter.EPSILON_SVR ||
+		   model.param.svm_type == svm_parameter.NU_SVR)
+		{
+			double[][] w = new double[1][max_index+1];
+			add_svs(model,0,model.l,model.sv_coef[0],w[0]);
+			model.w = w;
+			return;
+		}
+
+		int[] start = new int[nr_class];
+		start[0] = 0;
+		for(int i=1;i<nr_class;i++)
+			start[i] = start[i-1]+model.nSV[i-1];
+
+		double[][] w = new double[nr_class*(nr_class-1)/2][max_index+1];
+		int p = 0;
+		for(int i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				add_svs(model,start[i],model.nSV[i],model.sv_coef[j-1],w[p]);
+				add_svs(model,start[j],model.nSV[j],model.sv_coef[i],w[p]);
+				p++;
+			}
+		model.w = w;
+	}
+
+	/**
+	 * Lets prediction compute the kernel values of an instance on the given number
+	 * of threads, each taking a range of the support vectors; 0 or 1 for one thread.
+	 * Decision values are the same as with one thread.
+	 * Models too small to gain from it are scored on the calling thread anyway.
+	 */
+	public static void svm_set_predict_threads(svm_model model, int threads)
+	{
+		if(threads < 0)
+			throw new IllegalArgumentException("threads < 0");
+		if(model.parallel_scorer != null)
+			model.parallel_scorer.shutdown();
+		model.parallel_scorer = (threads > 1) ? new ParallelScorer(model,threads) : null;
+	}
+
+	/**
+	 * For RBF kernels: indexes the support vectors in a ball tree, so prediction
+	 * takes kernel values below epsilon as 0 and skips computing them.
+	 * Sets <code>model.sv_index</code>, which tracks the resulting error bound.
+	 */
+	public static void svm_build_sv_index(svm_model model, double epsilon)
+	{
+		model.sv_index = new svm_sv_index(model,epsilon);
+		model.batch_scorer = null;
+	}
+
+	/**
+	 * For binary classification and one-class models with an RBF or sigmoid kernel:
+	 * lets svm_predict evaluate support vectors by decreasing |coef|
+	 * and stop once the label is certain.
+	 * Sets <code>model.early_exit</code>, which counts the support vectors evaluated.
+	 */
+	public static void svm_enable_early_exit(svm_model model)
+	{
+		model.early_exit = new svm_early_exit(model);
+	}
+
+	/**
+	 * Prunes support vectors of a model, so its prediction gets faster,
+	 * as long as no decision value on the validation set changes by more than tolerance;
+	 * rho is refitted to the remaining support vectors.
+	 * The model itself is not changed.
+	 * @return the compressed model
+	 */
+	public static svm_model svm_compress_model(svm_model model, svm_problem validation, double tolerance)
+	{
+		return ReducedSet.compress(model,validation,tolerance);
+	}
+
+	/**
+	 * <code>w += \sum_k coef[k] SV[k]</code> for k in [start,start+n)
+	 */
+	private static void add_svs(svm_model model, int start, int n, double[] coef, double[] w)
+	{
+		for(int k=start;k<start+n;k++)
+		{
+			svm_node[] sv = model.SV[k];
+			for(int t=0;t<sv.length;t++)
+				w[sv[t].index] += coef[k] * sv[t].value;
+		}
+	}
+
+	/**
+	 * @return <code>w^T x</code>, ignoring features beyond w
+	 */
+	private static double dot(double[] w, svm_node[] x)
+	{
+		double sum = 0;
+		for(int k=0;k<x.length;k++)
+			if(x[k].index < w.length)
+				sum += w[x[k].index] * x[k].value;
+		return sum;
+	}
+
 	public static double svm_predict_values(svm_model model, svm_node[] x, double[] dec_values)
+	{
+		if(model.scaling != null)
+			x = model.scaling.scale_reused(x);
+		return predict_values(model,x,dec_values);
+	}
+
+	/**
+	 * svm_predict_values of an instance scaled already
+	 */
+	private static double predict_values(svm_model model, svm_node[] x, double[] dec_values)
 	{
 		int i;
+		double[] z = (model.rff != null) ? model.rff.map(x) : null;
 		if(model.param.svm_type == svm_parameter.ONE_CLASS ||
 		   model.param.svm_type == svm_parameter.EPSILON_SVR ||
 		   model.param.svm_type == svm_parameter.NU_SVR)
 		{
-			double[] sv_coef = model.sv_coef[0];
 			double sum = 0;
-			for(i=0;i<model.l;i++)
-				sum += sv_coef[i] * Kernel.k_function(x,model.SV[i],model.param);
+			if(z != null)
+				sum = Kernel.dot(model.w[0],z);
+			else if(model.w != null)
+				sum = dot(model.w[0],x);
+			else
+			{
+				double[] sv_coef = model.sv_coef[0];
+				double[] kvalue = new double[model.l];
+				sv_kernel_values(model,x,model.l,kvalue);
+				for(i=0;i<model.l;i++)
+					sum += sv_coef[i] * kvalue[i];
+			}
 			sum -= model.rho[0];
 			dec_values[0] = sum;
 
@@ -1133,57 +1682,97 @@ public class svm
 			int nr_class = model.nr_class;
 			int l = model.l;
 
-			double[] kvalue = new double[l];
-			for(i=0;i<l;i++)
-				kvalue[i] = Kernel.k_function(x,model.SV[i],model.param);
+			double[] kvalue = null;
+			if(model.w == null)
+			{
+				kvalue = new double[l];
+				sv_kernel_values(model,x,l,kvalue);
+			}
 
 			int[] start = new int[nr_class];
 			start[0] = 0;
 			for(i=1;i<nr_class;i++)
 				start[i] = start[i-1]+model.nSV[i-1];
 
-			int[] vote = new int[nr_class];
-			for(i=0;i<nr_class;i++)
-				vote[i] = 0;
-
 			int p=0;
 			for(i=0;i<nr_class;i++)
 				for(int j=i+1;j<nr_class;j++)
 				{
 					double sum = 0;
-					int si = start[i];
-					int sj = start[j];
-					int ci = model.nSV[i];
-					int cj = model.nSV[j];
-
-					int k;
-					double[] coef1 = model.sv_coef[j-1];
-					double[] coef2 = model.sv_coef[i];
-					for(k=0;k<ci;k++)
-						sum += coef1[si+k] * kvalue[si+k];
-					for(k=0;k<cj;k++)
-						sum += coef2[sj+k] * kvalue[sj+k];
+					if(z != null)
+						sum = Kernel.dot(model.w[p],z);
+					else if(model.w != null)
+						sum = dot(model.w[p],x);
+					else
+					{
+						int si = start[i];
+						int sj = start[j];
+						int ci = model.nSV[i];
+						int cj = model.nSV[j];
+
+						int k;
+						double[] coef1 = model.sv_coef[j-1];
+						double[] coef2 = model.sv_coef[i];
+						for(k=0;k<ci;k++)
+							sum += coef1[si+k] * kvalue[si+k];
+						for(k=0;k<cj;k++)
+							sum += coef2[sj+k] * kvalue[sj+k];
+					}
 					sum -= model.rho[p];
 					dec_values[p] = sum;
-
-					if(dec_values[p] > 0)
-						++vote[i];
-					else
-						++vote[j];
 					p++;
 				}
 
-			int vote_max_idx = 0;
-			for(i=1;i<nr_class;i++)
-				if(vote[i] > vote[vote_max_idx])
-					vote_max_idx = i;
-
-			return model.label[vote_max_idx];
+			return vote(model,dec_values);
 		}
 	}
 
+	/**
+	 * @return the label the one-vs-one decision values vote for
+	 */
+	static double vote(svm_model model, double[] dec_values)
+	{
+		int nr_class = model.nr_class;
+		int[] vote = new int[nr_class];
+		int p=0;
+		for(int i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				if(dec_values[p] > 0)
+					++vote[i];
+				else
+					++vote[j];
+				p++;
+			}
+
+		int vote_max_idx = 0;
+		for(int i=1;i<nr_class;i++)
+			if(vote[i] > vote[vote_max_idx])
+				vote_max_idx = i;
+
+		return model.label[vote_max_idx];
+	}
+
 	public static double svm_predict(svm_model model, svm_node[] x)
 	{
+		if(model.scaling != null)
+			x = model.scaling.scale_reused(x);
+		return predict(model,x);
+	}
+
+	/**
+	 * svm_predict of an instance scaled already
+	 */
+	private static double predict(svm_model model, svm_node[] x)
+	{
+		if(model.early_exit != null)
+		{
+			boolean positive = model.early_exit.decide(x,model.param);
+			if(model.param.svm_type == svm_parameter.ONE_CLASS)
+				return positive?1:-1;
+			return model.label[positive?0:1];
+		}
+
 		int nr_class = model.nr_class;
 		double[] dec_values;
 		if(model.param.svm_type == svm_parameter.ONE_CLASS ||
@@ -1192,19 +1781,73 @@ public class svm
 			dec_values = new double[1];
 		else
 			dec_values = new double[nr_class*(nr_class-1)/2];
-		double pred_result = svm_predict_values(model, x, dec_values);
+		double pred_result = predict_values(model, x, dec_values);
 		return pred_result;
 	}
 
+	/**
+	 * Predicts x[0...n) at once; for many instances and dense support vectors,
+	 * this is faster than calling svm_predict for each.
+	 * Decision values agree with svm_predict_values up to rounding.
+	 * @param dec_values receives the decision values of x[q] in dec_values[q] if not <code>null</code>
+	 * @param target receives the prediction of x[q] in target[q]
+	 */
+	public static void svm_predict_batch(svm_model model, svm_node[][] x, int n, double[][] dec_values, double[] target)
+	{
+		int nr_class = model.nr_class;
+		int nr_dec;
+		if(model.param.svm_type == svm_parameter.ONE_CLASS ||
+		   model.param.svm_type == svm_parameter.EPSILON_SVR ||
+		   model.param.svm_type == svm_parameter.NU_SVR)
+			nr_dec = 1;
+		else
+			nr_dec = nr_class*(nr_class-1)/2;
+
+		BatchScorer scorer = null;
+		// early exit decides labels without decision values
+		if(model.early_exit == null || dec_values != null)
+		{
+			if(model.batch_scorer == null)
+				model.batch_scorer = BatchScorer.create(model);
+			scorer = model.batch_scorer;
+		}
+		if(scorer == null)
+		{
+			for(int q=0;q<n;q++)
+			{
+				svm_node[] x_q = (model.scaling != null) ? model.scaling.scale_reused(x[q]) : x[q];
+				target[q] = (dec_values != null) ? predict_values(model,x_q,dec_values[q]) : predict(model,x_q);
+			}
+			return;
+		}
+
+		if(dec_values == null)
+			dec_values = new double[n][nr_dec];
+		scorer.decision_values(x,n,model.scaling,dec_values);
+		for(int q=0;q<n;q++)
+		{
+			double[] dec_q = dec_values[q];
+			if(model.param.svm_type == svm_parameter.ONE_CLASS)
+				target[q] = (dec_q[0]>0)?1:-1;
+			else if(model.param.svm_type == svm_parameter.EPSILON_SVR ||
+				model.param.svm_type == svm_parameter.NU_SVR)
+				target[q] = dec_q[0];
+			else
+				target[q] = vote(model,dec_q);
+		}
+	}
+
 	public static double svm_predict_probability(svm_model model, svm_node[] x, double[] prob_estimates)
 	{
+		if(model.scaling != null)
+			x = model.scaling.scale_reused(x);
 		if ((model.param.svm_type == svm_parameter.C_SVC || model.param.svm_type == svm_parameter.NU_SVC) &&
 		    model.probA!=null && model.probB!=null)
 		{
 			int i;
 			int nr_class = model.nr_class;
 			double[] dec_values = new double[nr_class*(nr_class-1)/2];
-			svm_predict_values(model, x, dec_values);
+			predict_values(model, x, dec_values);
 
 			double min_prob=1e-7;
 			double[][] pairwise_prob=new double[nr_class][nr_class];
@@ -1226,7 +1869,7 @@ public class svm
 			return model.label[prob_max_idx];
 		}
 		else
-			return svm_predict(model, x);
+			return predict(model, x);
 	}
 
 	static final String svm_type_table[] =
@@ -1260,6 +1903,13 @@ public class svm
 		   param.kernel_type == svm_parameter.SIGMOID)
 			fp.writeBytes("coef0 "+param.coef0+"\n");
 
+		if(model.rff != null)
+		{
+			fp.writeBytes("rff_features "+model.rff.get_features()+"\n");
+			fp.writeBytes("rff_dim "+model.rff.get_dim()+"\n");
+			fp.writeBytes("rff_seed "+model.rff.get_seed()+"\n");
+		}
+
 		int nr_class = model.nr_class;
 		int l = model.l;
 		fp.writeBytes("nr_class "+nr_class+"\n");
@@ -1303,6 +1953,13 @@ public class svm
 			fp.writeBytes("\n");
 		}
 
+		if(model.scaling != null)
+		{
+			// the ranges follow in the format of svm_scale -s
+			fp.writeBytes("scaling " + model.scaling.nr_lines() + "\n");
+			fp.writeBytes(model.scaling.toString());
+		}
+
 		fp.writeBytes("SV\n");
 		double[][] sv_coef = model.sv_coef;
 		svm_node[][] SV = model.SV;
@@ -1321,6 +1978,19 @@ public class svm
 			fp.writeBytes("\n");
 		}
 
+		if(model.rff != null)
+		{
+			// the feature weights of each decision function
+			fp.writeBytes("W\n");
+			for(int k=0;k<model.w.length;k++)
+			{
+				double[] w = model.w[k];
+				for(int j=0;j<w.length;j++)
+					fp.writeBytes(w[j]+" ");
+				fp.writeBytes("\n");
+			}
+		}
+
 		fp.close();
 	}
 
@@ -1338,6 +2008,7 @@ public class svm
 	{
 		svm_parameter param = new svm_parameter();
 		model.param = param;
+		int rff_dim = 0;
 		try
 		{
 			while(true)
@@ -1385,6 +2056,20 @@ public class svm
 					param.gamma = atof(arg);
 				else if(cmd.startsWith("coef0"))
 					param.coef0 = atof(arg);
+				else if(cmd.startsWith("rff_features"))
+					param.rff_features = atoi(arg);
+				else if(cmd.startsWith("rff_dim"))
+					rff_dim = atoi(arg);
+				else if(cmd.startsWith("rff_seed"))
+					param.rff_seed = atoi(arg);
+				else if(cmd.startsWith("scaling"))
+				{
+					int n = atoi(arg);
+					List<String> lines = new ArrayList<String>(n);
+					for(int i=0;i<n;i++)
+						lines.add(fp.readLine());
+					model.scaling = svm_scaling.parse(lines);
+				}
 				else if(cmd.startsWith("nr_class"))
 					model.nr_class = atoi(arg);
 				else if(cmd.startsWith("total_sv"))
@@ -1439,6 +2124,8 @@ public class svm
 					return false;
 				}
 			}
+			if(param.rff_features > 0)
+				model.rff = new svm_rff(param.rff_features,rff_dim,param.gamma,param.rff_seed);
 		}
 		catch(Exception e)
 		{
@@ -1493,6 +2180,27 @@ public class svm
 			}
 		}
 
+		// read the feature weights of random Fourier feature models
+
+		if(model.rff != null)
+		{
+			String line = fp.readLine();
+			if(line == null || !line.startsWith("W"))
+			{
+				System.err.print("ERROR: failed to read model\n");
+				return null;
+			}
+			int n = model.nr_class*(model.nr_class-1)/2;
+			int D = model.rff.get_features();
+			model.w = new double[n][D];
+			for(int k=0;k<n;k++)
+			{
+				StringTokenizer st = new StringTokenizer(fp.readLine());
+				for(int j=0;j<D;j++)
+					model.w[k][j] = atof(st.nextToken());
+			}
+		}
+
 		fp.close();
 		return model;
 	}
@@ -1525,6 +2233,26 @@ public class svm
 		if(param.degree < 0)
 			return "degree of polynomial kernel < 0";
 
+		if(prob.kernel_matrix != null)
+		{
+			if(kernel_type != svm_parameter.PRECOMPUTED)
+				return "kernel_matrix is only used with precomputed kernels";
+			for(int i=0;i<prob.l;i++)
+				if(prob.x[i].length == 0 || prob.x[i][0].index != 0 ||
+				   (int)prob.x[i][0].value <= 0 ||
+				   (int)prob.x[i][0].value > prob.kernel_matrix.get_size())
+					return "sample serial number out of range of kernel_matrix";
+		}
+
+		if(prob.W != null)
+		{
+			if(prob.W.length != prob.l)
+				return "number of instance weights != l";
+			for(int i=0;i<prob.l;i++)
+				if(!(prob.W[i] > 0) || Double.isInfinite(prob.W[i]))
+					return "instance weight <= 0";
+		}
+
 		// cache_size,eps,C,nu,p,shrinking
 
 		if(param.cache_size <= 0)
@@ -1549,13 +2277,61 @@ public class svm
 			return "p < 0";
 
 		if(param.shrinking != 0 &&
-		   param.shrinking != 1)
-			return "shrinking != 0 and shrinking != 1";
+		   param.shrinking != 1 &&
+		   param.shrinking != 2)
+			return "shrinking != 0, 1 and 2";
 
 		if(param.probability != 0 &&
 		   param.probability != 1)
 			return "probability != 0 and probability != 1";
 
+		if(param.prefetch_threads < 0)
+			return "prefetch_threads < 0";
+
+		if(param.kernel_store != null && param.kernel_store_size <= 0)
+			return "kernel_store_size <= 0";
+
+		if(param.linear_solver != svm_parameter.LINEAR_AUTO &&
+		   param.linear_solver != svm_parameter.LINEAR_SMO &&
+		   param.linear_solver != svm_parameter.LINEAR_DCD)
+			return "unknown linear solver";
+
+		if(param.linear_solver == svm_parameter.LINEAR_DCD &&
+		   (kernel_type != svm_parameter.LINEAR ||
+		    (svm_type != svm_parameter.C_SVC && svm_type != svm_parameter.EPSILON_SVR)))
+			return "dual coordinate descent needs a linear kernel and C-SVC or epsilon-SVR";
+
+		if(param.nystrom_landmarks < 0)
+			return "nystrom_landmarks < 0";
+
+		if(param.nystrom_landmarks > 0)
+		{
+			if(svm_type != svm_parameter.C_SVC && svm_type != svm_parameter.EPSILON_SVR)
+				return "Nystrom approximation needs C-SVC or epsilon-SVR";
+			if(kernel_type == svm_parameter.PRECOMPUTED)
+				return "Nystrom approximation needs a kernel function";
+			if(param.probability != 0)
+				return "Nystrom approximation does not support probability estimates";
+			if(param.nystrom_sampling != svm_parameter.NYSTROM_RANDOM &&
+			   param.nystrom_sampling != svm_parameter.NYSTROM_KMEANS)
+				return "unknown Nystrom sampling";
+		}
+
+		if(param.rff_features < 0)
+			return "rff_features < 0";
+
+		if(param.rff_features > 0)
+		{
+			if(svm_type != svm_parameter.C_SVC && svm_type != svm_parameter.EPSILON_SVR)
+				return "random Fourier features need C-SVC or epsilon-SVR";
+			if(kernel_type != svm_parameter.RBF)
+				return "random Fourier features need an RBF kernel";
+			if(param.probability != 0)
+				return "random Fourier features do not support probability estimates";
+			if(param.nystrom_landmarks > 0)
+				return "random Fourier features and Nystrom approximation cannot be combined";
+		}
+
 		if(param.probability == 1 &&
 		   svm_type == svm_parameter.ONE_CLASS)
 			return "one-class SVM probability output not supported yet";
@@ -1568,17 +2344,19 @@ public class svm
 			int max_nr_class = 16;
 			int nr_class = 0;
 			int[] label = new int[max_nr_class];
-			int[] count = new int[max_nr_class];
+			// the sum of the instance weights, with weights
+			double[] count = new double[max_nr_class];
 
 			int i;
 			for(i=0;i<l;i++)
 			{
 				int this_label = (int)prob.y[i];
+				double w = (prob.W == null) ? 1 : prob.W[i];
 				int j;
 				for(j=0;j<nr_class;j++)
 					if(this_label == label[j])
 					{
-						++count[j];
+						count[j] += w;
 						break;
 					}
 
@@ -1591,22 +2369,22 @@ public class svm
 						System.arraycopy(label,0,new_data,0,label.length);
 						label = new_data;
 
-						new_data = new int[max_nr_class];
-						System.arraycopy(count,0,new_data,0,count.length);
-						count = new_data;
+						double[] new_count = new double[max_nr_class];
+						System.arraycopy(count,0,new_count,0,count.length);
+						count = new_count;
 					}
 					label[nr_class] = this_label;
-					count[nr_class] = 1;
+					count[nr_class] = w;
 					++nr_class;
 				}
 			}
 
 			for(i=0;i<nr_class;i++)
 			{
-				int n1 = count[i];
+				double n1 = count[i];
 				for(int j=i+1;j<nr_class;j++)
 				{
-					int n2 = count[j];
+					double n2 = count[j];
 					if(param.nu*(n1+n2)/2 > Math.min(n1,n2))
 						return "specified nu is infeasible";
 				}
@@ -0,0 +1,280 @@
+package libsvm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * Predicts single instances submitted by many threads in batches:
+ * a dispatcher thread collects the requests arriving within max_delay
+ * of the first one, or up to max_batch of them, scores them together
+ * by svm_predict_batch, and completes the callers' futures.
+ *
+ * Larger max_batch and max_delay give more throughput under load,
+ * at the cost of up to max_delay more latency per request when idle.
+ * The metrics tell the batch sizes reached and the delay requests spend queued.
+ */
+public class svm_batching_predictor
+{
+	private final svm_model model;
+	private final int max_batch;
+	private final long max_delay_nanos;
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final Thread dispatcher;
+	/** guarded by this, so no request is queued after the dispatcher drained the queue */
+	private boolean closed;
+
+	// metrics, written by the dispatcher only
+	private volatile long batches;
+	private volatile long requests;
+	private volatile long max_batch_size;
+	private volatile long total_queue_nanos;
+	private volatile long max_queue_nanos;
+
+	/** a prediction pending in the queue */
+	private static final class Request implements Future<Double>
+	{
+		final svm_node[] x;
+		final long submitted = System.nanoTime();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private double result;
+		private Throwable failure;
+
+		Request(svm_node[] x)
+		{
+			this.x = x;
+		}
+
+		void complete(double result, Throwable failure)
+		{
+			this.result = result;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			return false;
+		}
+
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		public boolean isDone()
+		{
+			return done.getCount() == 0;
+		}
+
+		public Double get() throws InterruptedException, ExecutionException
+		{
+			done.await();
+			return value();
+		}
+
+		public Double get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			if(!done.await(timeout, unit))
+				throw new TimeoutException();
+			return value();
+		}
+
+		private Double value() throws ExecutionException
+		{
+			if(failure != null)
+				throw new ExecutionException(failure);
+			return result;
+		}
+	}
+
+	/**
+	 * @param max_batch the most instances scored at once
+	 * @param max_delay how long to wait for more requests after the first one of a batch,
+	 *   in microseconds; 0 to take only those already queued
+	 */
+	public svm_batching_predictor(svm_model model, int max_batch, long max_delay)
+	{
+		if(max_batch < 1)
+			throw new IllegalArgumentException("max_batch < 1");
+		if(max_delay < 0)
+			throw new IllegalArgumentException("max_delay < 0");
+		this.model = model;
+		this.max_batch = max_batch;
+		max_delay_nanos = TimeUnit.MICROSECONDS.toNanos(max_delay);
+		dispatcher = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				dispatch();
+			}
+		}, "libsvm-batching-predictor");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Queues x for prediction.
+	 * @return the future prediction, as svm_predict returns it
+	 */
+	public Future<Double> submit(svm_node[] x)
+	{
+		Request request = new Request(x);
+		synchronized(this)
+		{
+			if(!closed)
+			{
+				queue.add(request);
+				return request;
+			}
+		}
+		request.complete(0, new IllegalStateException("predictor is closed"));
+		return request;
+	}
+
+	/**
+	 * Predicts x, waiting for its batch to be scored.
+	 */
+	public double predict(svm_node[] x) throws InterruptedException
+	{
+		try
+		{
+			return submit(x).get();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IllegalStateException("prediction failed", cause);
+		}
+	}
+
+	private void dispatch()
+	{
+		List<Request> batch = new ArrayList<Request>(max_batch);
+		svm_node[][] x = new svm_node[max_batch][];
+		double[] target = new double[max_batch];
+		while(true)
+		{
+			batch.clear();
+			try
+			{
+				Request first = queue.take();
+				batch.add(first);
+				long deadline = first.submitted + max_delay_nanos;
+				while(batch.size() < max_batch)
+				{
+					queue.drainTo(batch, max_batch - batch.size());
+					long wait = deadline - System.nanoTime();
+					if(batch.size() >= max_batch || wait <= 0)
+						break;
+					Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if(next == null)
+						break;
+					batch.add(next);
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// closed
+				for(int q=0;q<batch.size();q++)
+					batch.get(q).complete(0, new IllegalStateException("predictor is closed"));
+				break;
+			}
+
+			int n = batch.size();
+			long start = System.nanoTime();
+			for(int q=0;q<n;q++)
+			{
+				Request request = batch.get(q);
+				x[q] = request.x;
+				long queued = start - request.submitted;
+				total_queue_nanos += queued;
+				if(queued > max_queue_nanos)
+					max_queue_nanos = queued;
+			}
+			try
+			{
+				svm.svm_predict_batch(model,x,n,null,target);
+				for(int q=0;q<n;q++)
+					batch.get(q).complete(target[q], null);
+			}
+			catch(RuntimeException e)
+			{
+				svm.LOG_COMMON.log(Level.WARNING, "batch prediction failed", e);
+				for(int q=0;q<n;q++)
+					batch.get(q).complete(0, e);
+			}
+			for(int q=0;q<n;q++)
+				x[q] = null;
+			++batches;
+			requests += n;
+			if(n > max_batch_size)
+				max_batch_size = n;
+		}
+
+		Request request;
+		while((request = queue.poll()) != null)
+			request.complete(0, new IllegalStateException("predictor is closed"));
+	}
+
+	/**
+	 * Stops the dispatcher; requests not scored yet fail.
+	 */
+	public void close()
+	{
+		synchronized(this)
+		{
+			closed = true;
+		}
+		dispatcher.interrupt();
+	}
+
+	/** @return the number of batches scored */
+	public long get_batches()
+	{
+		return batches;
+	}
+
+	/** @return the number of requests scored */
+	public long get_requests()
+	{
+		return requests;
+	}
+
+	/** @return the average number of requests per batch */
+	public double get_mean_batch_size()
+	{
+		long b = batches;
+		return (b == 0) ? 0 : (double)requests / b;
+	}
+
+	/** @return the largest batch so far */
+	public long get_max_batch_size()
+	{
+		return max_batch_size;
+	}
+
+	/** @return the average time requests wait before their batch is scored, in microseconds */
+	public double get_mean_queue_delay()
+	{
+		long r = requests;
+		return (r == 0) ? 0 : total_queue_nanos / 1e3 / r;
+	}
+
+	/** @return the longest time a request waited before its batch was scored, in microseconds */
+	public double get_max_queue_delay()
+	{
+		return max_queue_nanos / 1e3;
+	}
+}
@@ -0,0 +1,127 @@
+package libsvm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Early-exit prediction for binary classification and one-class models
+ * with a bounded kernel: RBF, <code>K in (0,1]</code>, or SIGMOID, <code>K in (-1,1)</code>.
+ *
+ * The support vectors are evaluated in order of decreasing |coef|.
+ * After each one, the decision value of the support vectors not yet evaluated
+ * lies within bounds given by the sums of their coefficients;
+ * once the sign of the decision value is the same at both ends of these bounds,
+ * the label is decided and the remaining support vectors are skipped.
+ * The labels are those of svm_predict, up to rounding of decision values
+ * within a few ulps of zero.
+ *
+ * Counts the support vectors evaluated, see get_fraction.
+ */
+public class svm_early_exit
+{
+	/** support vectors in evaluation order */
+	private final svm_node[][] SV;
+	private final double[] coef;
+	/**
+	 * <code>[lo[t], hi[t]]</code> bounds <code>\sum_{k>=t} coef[k] K(x,SV[k])</code>
+	 */
+	private final double[] lo;
+	private final double[] hi;
+	private final double rho;
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong evaluated = new AtomicLong();
+
+	svm_early_exit(svm_model model)
+	{
+		int svm_type = model.param.svm_type;
+		int kernel_type = model.param.kernel_type;
+		if(svm_type != svm_parameter.ONE_CLASS &&
+		   !((svm_type == svm_parameter.C_SVC || svm_type == svm_parameter.NU_SVC) && model.nr_class == 2))
+			throw new IllegalArgumentException("early exit needs a binary classification or one-class model");
+		if(kernel_type != svm_parameter.RBF && kernel_type != svm_parameter.SIGMOID)
+			throw new IllegalArgumentException("early exit needs an RBF or sigmoid kernel");
+		if(model.kernel_matrix != null || model.rff != null)
+			throw new IllegalArgumentException("early exit needs a model with support vectors");
+
+		int l = model.l;
+		final double[] c = model.sv_coef[0];
+		Integer[] order = new Integer[l];
+		for(int i=0;i<l;i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(Math.abs(c[b]), Math.abs(c[a]));
+			}
+		});
+
+		SV = new svm_node[l][];
+		coef = new double[l];
+		for(int t=0;t<l;t++)
+		{
+			SV[t] = model.SV[order[t]];
+			coef[t] = c[order[t]];
+		}
+
+		rho = model.rho[0];
+		lo = new double[l+1];
+		hi = new double[l+1];
+		boolean nonnegative = (kernel_type == svm_parameter.RBF);
+		for(int t=l-1;t>=0;t--)
+		{
+			double a = coef[t];
+			if(nonnegative)
+			{
+				lo[t] = lo[t+1] + Math.min(a, 0);
+				hi[t] = hi[t+1] + Math.max(a, 0);
+			}
+			else
+			{
+				lo[t] = lo[t+1] - Math.abs(a);
+				hi[t] = hi[t+1] + Math.abs(a);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the decision value of x is positive
+	 */
+	boolean decide(svm_node[] x, svm_parameter param)
+	{
+		int l = SV.length;
+		double sum = -rho;
+		int t = 0;
+		while(t < l)
+		{
+			if(sum + lo[t] > 0 || sum + hi[t] <= 0)
+				break;
+			sum += coef[t] * Kernel.k_function(x,SV[t],param);
+			++t;
+		}
+		queries.incrementAndGet();
+		evaluated.addAndGet(t);
+		return sum + lo[t] > 0;
+	}
+
+	/**
+	 * @return the number of predictions made
+	 */
+	public long get_queries()
+	{
+		return queries.get();
+	}
+
+	/**
+	 * @return the average fraction of the support vectors evaluated per prediction
+	 */
+	public double get_fraction()
+	{
+		long n = queries.get();
+		if(n == 0 || SV.length == 0)
+			return 0;
+		return (double)evaluated.get() / n / SV.length;
+	}
+}
@@ -0,0 +1,251 @@
+package libsvm;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A precomputed kernel matrix over n training instances,
+ * stored as 4 byte floats instead of one svm_node per entry.
+ * It is either stored in full (row-major),
+ * or as its upper triangle if the kernel is symmetric.
+ *
+ * Instances refer to it by their sample serial number,
+ * given as the only node <code>0:serial</code> in <code>svm_problem.x[i]</code>;
+ * serial numbers run from 1 to n.
+ *
+ * Binary file format (little-endian):
+ * <code>
+ *   int   magic 0x4d4b534c ("LSKM")
+ *   int   flags, bit 0: symmetric (upper triangle only)
+ *   int   n
+ *   int   reserved, 0
+ *   float entries; full: K(0,0),K(0,1),...,K(n-1,n-1)
+ *                  symmetric: K(i,j) for i = 0..n-1, j = i..n-1
+ * </code>
+ * Files may be memory-mapped, so matrices larger than the heap can be used.
+ */
+public class svm_kernel_matrix
+{
+	private static final int MAGIC = 0x4d4b534c;
+	private static final int FLAG_SYMMETRIC = 1;
+	private static final int HEADER_SIZE = 16;
+	/** entries per buffer, 2^28 floats = 1 GiB */
+	private static final int SEGMENT_SHIFT = 28;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private final int n;
+	private final boolean symmetric;
+	private final FloatBuffer[] segments;
+
+	/**
+	 * Creates a zero matrix in heap memory.
+	 */
+	public svm_kernel_matrix(int n, boolean symmetric)
+	{
+		this(n, symmetric, new FloatBuffer[segment_count(entries(n, symmetric))]);
+		long left = entries(n, symmetric);
+		for(int s=0;s<segments.length;s++)
+		{
+			int len = (int)Math.min(left, SEGMENT_MASK+1);
+			segments[s] = FloatBuffer.allocate(len);
+			left -= len;
+		}
+	}
+
+	private svm_kernel_matrix(int n, boolean symmetric, FloatBuffer[] segments)
+	{
+		this.n = n;
+		this.symmetric = symmetric;
+		this.segments = segments;
+	}
+
+	/**
+	 * @return the number of instances
+	 */
+	public int get_size()
+	{
+		return n;
+	}
+
+	/**
+	 * @return whether only the upper triangle is stored
+	 */
+	public boolean is_symmetric()
+	{
+		return symmetric;
+	}
+
+	private static long entries(int n, boolean symmetric)
+	{
+		return symmetric ? (long)n*(n+1)/2 : (long)n*n;
+	}
+
+	private static int segment_count(long entries)
+	{
+		return (int)((entries + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+	}
+
+	private long position(int i, int j)
+	{
+		if(!symmetric)
+			return (long)i*n + j;
+		if(i > j)
+		{ // swap(int, i, j);
+			int tmp = i;
+			i = j;
+			j = tmp;
+		}
+		return (long)i*n - (long)i*(i-1)/2 + (j-i);
+	}
+
+	/**
+	 * @param i zero-based instance, i.e. sample serial number - 1
+	 * @param j zero-based instance, i.e. sample serial number - 1
+	 * @return K(x_i, x_j)
+	 */
+	public float get(int i, int j)
+	{
+		long p = position(i, j);
+		return segments[(int)(p >>> SEGMENT_SHIFT)].get((int)(p & SEGMENT_MASK));
+	}
+
+	/**
+	 * Sets K(x_i, x_j), and K(x_j, x_i) too for symmetric matrices.
+	 * Not supported for memory-mapped matrices.
+	 */
+	public void set(int i, int j, float value)
+	{
+		long p = position(i, j);
+		segments[(int)(p >>> SEGMENT_SHIFT)].put((int)(p & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * Converts a problem in the textual precomputed kernel format,
+	 * where <code>x[i]</code> is <code>0:serial 1:K(serial,1) ... n:K(serial,n)</code>.
+	 * Instances missing in the problem give zero rows.
+	 */
+	public static svm_kernel_matrix from_problem(svm_problem prob, boolean symmetric)
+	{
+		int n = 0;
+		for(int i=0;i<prob.l;i++)
+		{
+			svm_node[] x = prob.x[i];
+			n = Math.max(n, (int)x[0].value);
+			if(x.length > 1)
+				n = Math.max(n, x[x.length-1].index);
+		}
+
+		svm_kernel_matrix K = new svm_kernel_matrix(n, symmetric);
+		for(int i=0;i<prob.l;i++)
+		{
+			svm_node[] x = prob.x[i];
+			int s = (int)x[0].value - 1;
+			for(int k=1;k<x.length;k++)
+				if(!symmetric || s <= x[k].index-1)
+					K.set(s, x[k].index-1, (float)x[k].value);
+		}
+		return K;
+	}
+
+	/**
+	 * Reads a matrix in the binary format.
+	 * @param map whether to memory-map the file, instead of reading it into the heap
+	 */
+	public static svm_kernel_matrix load(String file_name, boolean map) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(file_name, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			read_fully(channel, header, 0);
+			header.flip();
+			if(header.getInt() != MAGIC)
+				throw new IOException("not a kernel matrix file: " + file_name);
+			boolean symmetric = (header.getInt() & FLAG_SYMMETRIC) != 0;
+			int n = header.getInt();
+			long entries = entries(n, symmetric);
+			if(n < 0 || channel.size() != HEADER_SIZE + 4*entries)
+				throw new IOException("kernel matrix file has the wrong size: " + file_name);
+
+			FloatBuffer[] segments = new FloatBuffer[segment_count(entries)];
+			for(int s=0;s<segments.length;s++)
+			{
+				long offset = HEADER_SIZE + 4*((long)s << SEGMENT_SHIFT);
+				long len = 4*Math.min(entries - ((long)s << SEGMENT_SHIFT), SEGMENT_MASK+1);
+				ByteBuffer bytes;
+				if(map)
+					bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+				else
+				{
+					bytes = ByteBuffer.allocate((int)len);
+					read_fully(channel, bytes, offset);
+					bytes.flip();
+				}
+				segments[s] = bytes.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+			return new svm_kernel_matrix(n, symmetric, segments);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	private static void read_fully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+	{
+		while(dst.hasRemaining())
+		{
+			int read = channel.read(dst, position);
+			if(read < 0)
+				throw new IOException("unexpected end of kernel matrix file");
+			position += read;
+		}
+	}
+
+	/**
+	 * Writes the matrix in the binary format.
+	 */
+	public void save(String file_name) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file_name);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(symmetric ? FLAG_SYMMETRIC : 0);
+			buffer.putInt(n);
+			buffer.putInt(0);
+			for(int s=0;s<segments.length;s++)
+			{
+				FloatBuffer segment = segments[s].duplicate();
+				segment.clear();
+				while(segment.hasRemaining())
+				{
+					if(buffer.remaining() < 4)
+						write_fully(channel, buffer);
+					buffer.putFloat(segment.get());
+				}
+			}
+			write_fully(channel, buffer);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void write_fully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -32,4 +32,59 @@ public class svm_model implements java.io.Serializable
 	 * <code>nSV[0] + nSV[1] + ... + nSV[k-1] = l</code>
 	 */
 	public int[] nSV;
+	/**
+	 * The kernel matrix of the training problem, if any.
+	 * Instances to predict are then looked up in it by their sample serial number.
+	 * Not saved with the model.
+	 */
+	public transient svm_kernel_matrix kernel_matrix;
+	/**
+	 * For precomputed kernels: whether instances to predict hold their kernel values
+	 * against the support vectors only, as <code>1:K(x,SV[0]) ... l:K(x,SV[l-1])</code>,
+	 * instead of against all training instances.
+	 * svm_get_sv_serials tells which training instances these are.
+	 * Not saved with the model.
+	 */
+	public transient boolean sv_kernel_rows;
+	/**
+	 * For linear kernels, optional: the weight vector of each decision function
+	 * (<code>w[k*(k-1)/2][max index + 1]</code>),
+	 * used instead of the support vectors in prediction.
+	 * Set by svm_collapse_linear; not saved with the model.
+	 * For random Fourier feature models: the weights of the features
+	 * (<code>w[k*(k-1)/2][D]</code>), saved with the model.
+	 */
+	public double[][] w;
+	/**
+	 * The random Fourier features the model is trained on, if any;
+	 * instances are then mapped through it and scored by w,
+	 * and the model has no support vectors.
+	 */
+	public svm_rff rff;
+	/**
+	 * The feature ranges the model was trained with, if any;
+	 * instances to predict are then scaled through them first,
+	 * and the support vectors are in the scaled space.
+	 * Saved with the model.
+	 */
+	public svm_scaling scaling;
+	/**
+	 * For binary classification and one-class models with bounded kernels, optional:
+	 * svm_predict stops evaluating support vectors once the label is certain.
+	 * Set by svm_enable_early_exit; not saved with the model.
+	 */
+	public transient svm_early_exit early_exit;
+	/**
+	 * For RBF kernels, optional: a ball tree over the support vectors,
+	 * so prediction skips those far from the instance.
+	 * Set by svm_build_sv_index; not saved with the model.
+	 */
+	public transient svm_sv_index sv_index;
+	/**
+	 * Optional: computes the kernel values of one instance on several threads.
+	 * Set by svm_set_predict_threads; not saved with the model.
+	 */
+	transient ParallelScorer parallel_scorer;
+	/** Dense support vectors for svm_predict_batch, made on first use. */
+	transient BatchScorer batch_scorer;
 }
@@ -0,0 +1,550 @@
+package libsvm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Named models loaded from files, for serving many models in one JVM.
+ *
+ * Models are loaded on background threads, and a new version of a model
+ * replaces the old one atomically once it is fully loaded:
+ * callers acquire a lease on the current version and release it when done,
+ * so a prediction never sees a model half loaded, and an old version is
+ * dropped once the last lease on it is released.
+ *
+ * The estimated memory of the resident models is kept within a budget
+ * by unloading the least recently acquired models no lease is held on;
+ * acquiring an unloaded model loads it again.
+ * Memory estimates assume a 64-bit JVM with compressed references.
+ *
+ * Model files are read in the text format of svm_save_model, or as a serialized
+ * svm_model (java.io.ObjectOutputStream), which is recognized by its stream header.
+ */
+public class svm_model_registry
+{
+	private final long budget;
+	private final ThreadPoolExecutor executor;
+	/** by name, in order of registration; guarded by this */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	/** counts acquisitions, to order models by their last use; guarded by this */
+	private long clock;
+
+	// metrics, guarded by this
+	/** memory of all versions not yet dropped */
+	private long resident_bytes;
+	private long loads;
+	private long load_nanos;
+	private long evictions;
+	/** guarded by this */
+	private final List<unload_listener> listeners = new ArrayList<unload_listener>();
+
+	/**
+	 * Told when a version of a model is dropped, so state kept for it can be dropped too:
+	 * once it is no longer current and the last lease on it is released.
+	 * It is called with the registry locked, and must not call the registry.
+	 */
+	public interface unload_listener
+	{
+		void unloaded(String name, int version);
+	}
+
+	/** a version of a model */
+	private static final class Version
+	{
+		final String name;
+		final svm_model model;
+		final long bytes;
+		final int number;
+		int leases;
+		/** no longer current, dropped when the last lease is released */
+		boolean retired;
+
+		Version(String name, svm_model model, long bytes, int number)
+		{
+			this.name = name;
+			this.model = model;
+			this.bytes = bytes;
+			this.number = number;
+		}
+	}
+
+	/** a named model */
+	private static final class Entry
+	{
+		final String name;
+		String file;
+		/** the current version, null while unloaded */
+		Version current;
+		/** the load in progress, if any */
+		FutureTask<svm_model> loading;
+		int versions;
+		long last_load_nanos;
+		/** the clock at the last acquisition */
+		long last_used;
+
+		Entry(String name, String file)
+		{
+			this.name = name;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * A model in use; release it when done.
+	 */
+	public final class lease
+	{
+		private Version version;
+
+		private lease(Version version)
+		{
+			this.version = version;
+		}
+
+		/** @return the model, valid until the lease is released */
+		public svm_model get_model()
+		{
+			return version.model;
+		}
+
+		/** @return the version of the model, counting loads of its name from 1 */
+		public int get_version()
+		{
+			return version.number;
+		}
+
+		public void release()
+		{
+			synchronized(svm_model_registry.this)
+			{
+				if(version == null)
+					return;
+				Version v = version;
+				version = null;
+				if(--v.leases == 0)
+				{
+					if(v.retired)
+						dropped(v);
+					else
+						enforce_budget(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param budget the memory the resident models may take, in bytes;
+	 *   the models in use are never unloaded, even above the budget
+	 * @param threads the number of threads loading models
+	 */
+	public svm_model_registry(long budget, int threads)
+	{
+		if(budget < 0)
+			throw new IllegalArgumentException("budget < 0");
+		if(threads < 1)
+			throw new IllegalArgumentException("threads < 1");
+		this.budget = budget;
+		executor = new ThreadPoolExecutor(threads, threads,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "libsvm-model-loader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Registers a model file under a name, or a new file for a registered name,
+	 * and starts loading it in the background.
+	 * Until it is loaded, acquire returns the previous version, if any.
+	 * @return the pending load
+	 */
+	public synchronized Future<svm_model> register(String name, String file)
+	{
+		Entry e = entries.get(name);
+		if(e == null)
+		{
+			e = new Entry(name, file);
+			entries.put(name, e);
+		}
+		else if(!e.file.equals(file))
+		{
+			e.file = file;
+			// a load of the old file must not be installed
+			if(e.loading != null)
+				e.loading.cancel(false);
+			e.loading = null;
+		}
+		return load(e);
+	}
+
+	/**
+	 * Loads a registered model again from its file in the background,
+	 * to replace the current version once loaded.
+	 * @return the pending load
+	 */
+	public synchronized Future<svm_model> reload(String name)
+	{
+		return load(entry(name));
+	}
+
+	/**
+	 * Removes a model; leases held on it stay valid until released.
+	 */
+	public synchronized void unregister(String name)
+	{
+		Entry e = entry(name);
+		entries.remove(name);
+		if(e.loading != null)
+			e.loading.cancel(false);
+		e.loading = null;
+		unload(e);
+	}
+
+	/**
+	 * @return a lease on the current version of a model,
+	 *   loading it first if it is not loaded
+	 * @throws IOException if the model file cannot be read
+	 */
+	public lease acquire(String name) throws IOException
+	{
+		while(true)
+		{
+			Future<svm_model> pending;
+			synchronized(this)
+			{
+				Entry e = entry(name);
+				e.last_used = ++clock;
+				if(e.current != null)
+				{
+					e.current.leases++;
+					return new lease(e.current);
+				}
+				pending = load(e);
+			}
+			try
+			{
+				pending.get();
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while loading model " + name);
+			}
+			catch(ExecutionException ex)
+			{
+				Throwable cause = ex.getCause();
+				if(cause instanceof IOException)
+					throw (IOException)cause;
+				throw new IOException("failed to load model " + name, cause);
+			}
+			catch(CancellationException ex)
+			{
+				// replaced by a load of another file, wait for that one
+			}
+		}
+	}
+
+	private Entry entry(String name)
+	{
+		Entry e = entries.get(name);
+		if(e == null)
+			throw new IllegalArgumentException("unknown model " + name);
+		return e;
+	}
+
+	/** reads a model file and installs it as the current version */
+	private final class Load implements Callable<svm_model>
+	{
+		final Entry entry;
+		final String file;
+		FutureTask<svm_model> job;
+
+		Load(Entry entry)
+		{
+			this.entry = entry;
+			file = entry.file;
+		}
+
+		public svm_model call() throws IOException
+		{
+			long start = System.nanoTime();
+			svm_model model = null;
+			try
+			{
+				model = read_model(file);
+			}
+			finally
+			{
+				// a failed load must not be handed out again, whatever it threw
+				if(model == null)
+					synchronized(svm_model_registry.this)
+					{
+						if(entry.loading == job)
+							entry.loading = null;
+					}
+			}
+			long elapsed = System.nanoTime() - start;
+			if(install(entry, job, model, elapsed))
+				svm.LOG_COMMON.log(Level.INFO, "Loaded model {0} from {1} in {2} ms",
+						new Object[] {entry.name, file, elapsed/1000000});
+			return model;
+		}
+	}
+
+	/**
+	 * Starts loading a model unless it is being loaded already.
+	 */
+	private Future<svm_model> load(Entry e)
+	{
+		if(e.loading != null)
+			return e.loading;
+		Load load = new Load(e);
+		load.job = new FutureTask<svm_model>(load);
+		e.loading = load.job;
+		executor.execute(load.job);
+		return load.job;
+	}
+
+	/**
+	 * Makes a loaded model the current version, unless its load was superseded.
+	 * @return whether it was installed
+	 */
+	private synchronized boolean install(Entry e, FutureTask<svm_model> job, svm_model model, long elapsed)
+	{
+		if(e.loading != job)
+			return false;
+		e.loading = null;
+		Version v = new Version(e.name, model, estimate_bytes(model), ++e.versions);
+		unload(e);
+		e.current = v;
+		e.last_load_nanos = elapsed;
+		resident_bytes += v.bytes;
+		loads++;
+		load_nanos += elapsed;
+		enforce_budget(e);
+		return true;
+	}
+
+	/**
+	 * Drops the current version of a model, once no lease is held on it.
+	 */
+	private void unload(Entry e)
+	{
+		Version v = e.current;
+		if(v == null)
+			return;
+		e.current = null;
+		v.retired = true;
+		if(v.leases == 0)
+			dropped(v);
+	}
+
+	/**
+	 * Accounts for a retired version no lease is held on any more.
+	 */
+	private void dropped(Version v)
+	{
+		resident_bytes -= v.bytes;
+		for(unload_listener l : listeners)
+			l.unloaded(v.name, v.number);
+	}
+
+	/**
+	 * Adds a listener told about each version of a model dropped from now on.
+	 */
+	public synchronized void add_unload_listener(unload_listener l)
+	{
+		listeners.add(l);
+	}
+
+	/**
+	 * Unloads the least recently acquired idle models while over the budget.
+	 * @param keep a model not to unload, or null
+	 */
+	private void enforce_budget(Entry keep)
+	{
+		while(resident_bytes > budget)
+		{
+			Entry lru = null;
+			for(Entry e : entries.values())
+				if(e != keep && e.current != null && e.current.leases == 0 &&
+				   (lru == null || e.last_used < lru.last_used))
+					lru = e;
+			if(lru == null)
+				break;
+			unload(lru);
+			evictions++;
+			svm.LOG_COMMON.log(Level.INFO, "Unloaded model {0} to stay within the memory budget", lru.name);
+		}
+	}
+
+	/**
+	 * Reads a model in the text format or as a serialized svm_model.
+	 */
+	static svm_model read_model(String file) throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try
+		{
+			in.mark(2);
+			int b0 = in.read(), b1 = in.read();
+			in.reset();
+			if(b0 == 0xAC && b1 == 0xED)
+			{
+				try
+				{
+					return (svm_model)new ObjectInputStream(in).readObject();
+				}
+				catch(ClassNotFoundException ex)
+				{
+					throw new IOException("not a serialized model: " + file, ex);
+				}
+				catch(ClassCastException ex)
+				{
+					throw new IOException("not a serialized model: " + file, ex);
+				}
+			}
+			svm_model model;
+			try
+			{
+				model = svm.svm_load_model(new BufferedReader(new InputStreamReader(in)));
+			}
+			catch(RuntimeException ex)
+			{
+				// e.g. a malformed number or a truncated support vector section
+				throw new IOException("malformed model file " + file, ex);
+			}
+			if(model == null)
+				throw new IOException("failed to read model " + file);
+			return model;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the estimated memory of a model, in bytes
+	 */
+	static long estimate_bytes(svm_model model)
+	{
+		// object header 12 bytes, array header 16 bytes, references 4 bytes
+		long bytes = 64;
+		for(int i=0;i<model.l;i++)
+		{
+			svm_node[] sv = model.SV[i];
+			bytes += 16 + 4L*sv.length + 24L*sv.length;
+		}
+		bytes += 16 + 4L*model.l;
+		if(model.sv_coef != null)
+			for(double[] c : model.sv_coef)
+				bytes += 16 + 8L*c.length;
+		if(model.w != null)
+			for(double[] c : model.w)
+				bytes += 16 + 8L*c.length;
+		if(model.rff != null)
+			bytes += (long)model.rff.get_dim()*(16 + 8L*model.rff.get_features()) + 8L*model.rff.get_features();
+		if(model.rho != null)
+			bytes += 16 + 8L*model.rho.length;
+		if(model.probA != null)
+			bytes += 2*(16 + 8L*model.probA.length);
+		if(model.sv_indices != null)
+			bytes += 16 + 4L*model.sv_indices.length;
+		return bytes;
+	}
+
+	/**
+	 * Stops the loader threads; loads not yet started are dropped.
+	 */
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	/** @return the registered names, in order of registration */
+	public synchronized List<String> get_names()
+	{
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/** @return whether a model is loaded */
+	public synchronized boolean is_resident(String name)
+	{
+		return entry(name).current != null;
+	}
+
+	/** @return the current version of a model, 0 while unloaded */
+	public synchronized int get_version(String name)
+	{
+		Version v = entry(name).current;
+		return (v == null) ? 0 : v.number;
+	}
+
+	/** @return the estimated memory of a model, 0 while unloaded */
+	public synchronized long get_bytes(String name)
+	{
+		Version v = entry(name).current;
+		return (v == null) ? 0 : v.bytes;
+	}
+
+	/** @return how long the last load of a model took, in milliseconds */
+	public synchronized double get_load_time(String name)
+	{
+		return entry(name).last_load_nanos / 1e6;
+	}
+
+	/** @return the estimated memory of all loaded models, including old versions still in use */
+	public synchronized long get_resident_bytes()
+	{
+		return resident_bytes;
+	}
+
+	public long get_budget()
+	{
+		return budget;
+	}
+
+	/** @return the number of models loaded */
+	public synchronized long get_loads()
+	{
+		return loads;
+	}
+
+	/** @return the average time a load took, in milliseconds */
+	public synchronized double get_mean_load_time()
+	{
+		return (loads == 0) ? 0 : load_nanos / 1e6 / loads;
+	}
+
+	/** @return the number of models unloaded to stay within the budget */
+	public synchronized long get_evictions()
+	{
+		return evictions;
+	}
+}
@@ -16,6 +16,15 @@ public class svm_parameter implements Cloneable,java.io.Serializable
 	public static final int SIGMOID = 3;
 	public static final int PRECOMPUTED = 4;
 
+	// linear_solver
+	public static final int LINEAR_AUTO = 0;
+	public static final int LINEAR_SMO = 1;
+	public static final int LINEAR_DCD = 2;
+
+	// nystrom_sampling
+	public static final int NYSTROM_RANDOM = 0;
+	public static final int NYSTROM_KMEANS = 1;
+
 	public int svm_type;
 	public int kernel_type;
 	/** for poly */
@@ -42,10 +51,58 @@ public class svm_parameter implements Cloneable,java.io.Serializable
 	public double nu;
 	/** for EPSILON_SVR */
 	public double p;
-	/** use the shrinking heuristics */
+	/**
+	 * use the shrinking heuristics:
+	 * 0 -- no shrinking,
+	 * 1 -- shrinking by moving the cached kernel columns,
+	 * 2 -- shrinking by index indirection, leaving the kernel cache in place
+	 */
 	public int shrinking;
 	/** do probability estimates */
 	public int probability;
+	/**
+	 * number of threads computing kernel columns speculatively
+	 * while the solver updates the gradient; 0 to disable
+	 */
+	public int prefetch_threads;
+	/**
+	 * directory to persist kernel columns in across training runs,
+	 * <code>null</code> to disable
+	 */
+	public String kernel_store;
+	/** size limit of the kernel store directory in MB */
+	public double kernel_store_size;
+	/**
+	 * solver for LINEAR kernels with C_SVC and EPSILON_SVR:
+	 * LINEAR_SMO -- the SMO solver, over kernel columns,
+	 * LINEAR_DCD -- dual coordinate descent over the primal weight vector,
+	 *   with the bias regularized like the weights,
+	 * LINEAR_AUTO -- dual coordinate descent if the cache holds less than 8 kernel columns,
+	 *   so SMO would recompute nearly every column it uses; the model then differs
+	 *   from the one of LINEAR_SMO, as the bias is regularized and eps is checked differently
+	 */
+	public int linear_solver;
+	/**
+	 * for C_SVC and EPSILON_SVR: number of landmarks of the Nystrom approximation
+	 * of the kernel, a linear model is then trained on the approximate features;
+	 * 0 for exact training
+	 */
+	public int nystrom_landmarks;
+	/**
+	 * how the Nystrom landmarks are chosen:
+	 * NYSTROM_RANDOM -- instances chosen at random,
+	 * NYSTROM_KMEANS -- centers of k-means clusters; instances chosen at random
+	 *   if the dense centers would take more than 2^24 entries
+	 */
+	public int nystrom_sampling;
+	/**
+	 * for RBF kernels with C_SVC and EPSILON_SVR: number of random Fourier features
+	 * approximating the kernel, a linear model is then trained on them
+	 * (see svm_rff); 0 for exact training
+	 */
+	public int rff_features;
+	/** seed of the random Fourier features */
+	public int rff_seed;
 
 	@Override
 	public Object clone()
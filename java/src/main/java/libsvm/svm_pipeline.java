@@ -0,0 +1,815 @@
+package libsvm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+
+/**
+ * Streams instances from a data file or from memory through preprocessing
+ * stages into a sink, such as a problem to train on or a model to predict with,
+ * without writing intermediate files:
+ * <code>
+ *   svm_pipeline.problem_builder builder = new svm_pipeline.problem_builder();
+ *   svm_pipeline pipeline = new svm_pipeline().learn_scaling(-1, 1).dedup();
+ *   pipeline.run(reader, builder);
+ *   svm_problem prob = builder.get_problem();
+ * </code>
+ *
+ * Stages run in the order they are added. Each counts the instances it receives
+ * and passes on, and the time it spends on them, downstream stages excluded;
+ * log_stats reports them. learn_scaling holds all instances until the end of
+ * the input, since the ranges are only known then; the other stages stream.
+ * A pipeline runs once, on the calling thread.
+ */
+public class svm_pipeline
+{
+	/** receives the instances that come out of a pipeline */
+	public interface sink
+	{
+		/**
+		 * @param weight the instance weight, 1 unless given by the data
+		 *   or summed up by collapse
+		 */
+		void accept(double y, svm_node[] x, double weight) throws IOException;
+
+		/** called after the last instance */
+		void finish() throws IOException;
+	}
+
+	/**
+	 * A step of a pipeline: process gets each instance, and passes those
+	 * to keep on, changed or not, by emit.
+	 */
+	public static abstract class stage implements sink
+	{
+		private final String name;
+		private sink next;
+		private long in;
+		private long out;
+		private long nanos;
+		/** time spent in the next stages, included in nanos until the stage is done */
+		private long downstream_nanos;
+
+		protected stage(String name)
+		{
+			this.name = name;
+		}
+
+		protected abstract void process(double y, svm_node[] x, double weight) throws IOException;
+
+		/** passes on instances held back, at the end of the input */
+		protected void flush() throws IOException
+		{
+		}
+
+		protected final void emit(double y, svm_node[] x, double weight) throws IOException
+		{
+			out++;
+			long t = System.nanoTime();
+			next.accept(y, x, weight);
+			downstream_nanos += System.nanoTime() - t;
+		}
+
+		public final void accept(double y, svm_node[] x, double weight) throws IOException
+		{
+			in++;
+			long t = System.nanoTime();
+			process(y, x, weight);
+			nanos += System.nanoTime() - t;
+		}
+
+		public final void finish() throws IOException
+		{
+			long t = System.nanoTime();
+			flush();
+			nanos += System.nanoTime() - t;
+			// the sink stage ends the chain
+			if(next != null)
+				next.finish();
+		}
+
+		public String get_name()
+		{
+			return name;
+		}
+
+		/** @return the number of instances received */
+		public long get_in()
+		{
+			return in;
+		}
+
+		/** @return the number of instances passed on */
+		public long get_out()
+		{
+			return out;
+		}
+
+		/** @return the time spent in this stage, in nanoseconds */
+		public long get_nanos()
+		{
+			return nanos - downstream_nanos;
+		}
+	}
+
+	/** the sink at the end, as a stage so its time is counted */
+	private static final class SinkStage extends stage
+	{
+		private final sink sink;
+
+		SinkStage(sink sink)
+		{
+			super("sink");
+			this.sink = sink;
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			sink.accept(y, x, weight);
+		}
+
+		protected void flush() throws IOException
+		{
+			sink.finish();
+		}
+	}
+
+	/** the instances of a data file, or of a problem in memory */
+	private static final class Source extends stage
+	{
+		private long started;
+
+		Source(String name)
+		{
+			super(name);
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			emit(y, x, weight);
+		}
+
+		/** passes on an instance read, timed from start to stop rather than by accept */
+		void read(double y, svm_node[] x, double weight) throws IOException
+		{
+			((stage)this).in++;
+			emit(y, x, weight);
+		}
+
+		void start()
+		{
+			started = System.nanoTime();
+		}
+
+		void stop()
+		{
+			((stage)this).nanos += System.nanoTime() - started;
+		}
+	}
+
+	private static final class ScaleStage extends stage
+	{
+		private final svm_scaling scaling;
+
+		ScaleStage(svm_scaling scaling)
+		{
+			super("scale");
+			this.scaling = scaling;
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			emit(scaling.scale_target(y), scaling.scale(x), weight);
+		}
+	}
+
+	/** finds the ranges as svm_scale does, then scales the held instances by them */
+	private static final class LearnScalingStage extends stage
+	{
+		private final double lower;
+		private final double upper;
+		private final double[] y_limits;
+		private final List<svm_node[]> xs = new ArrayList<svm_node[]>();
+		private double[] ys = new double[16];
+		private double[] ws = new double[16];
+		private double[] min = new double[0];
+		private double[] max = new double[0];
+		/** the number of instances each feature is present in */
+		private long[] count = new long[0];
+		private double y_min = Double.MAX_VALUE;
+		private double y_max = -Double.MAX_VALUE;
+		private svm_scaling scaling;
+
+		LearnScalingStage(double lower, double upper, double[] y_limits)
+		{
+			super("learn_scaling");
+			this.lower = lower;
+			this.upper = upper;
+			this.y_limits = y_limits;
+		}
+
+		protected void process(double y, svm_node[] x, double weight)
+		{
+			int n = xs.size();
+			if(n == ys.length)
+			{
+				ys = Arrays.copyOf(ys, 2*n);
+				ws = Arrays.copyOf(ws, 2*n);
+			}
+			ys[n] = y;
+			ws[n] = weight;
+			xs.add(x);
+			y_min = Math.min(y_min, y);
+			y_max = Math.max(y_max, y);
+			for(svm_node node : x)
+			{
+				int index = node.index;
+				if(index < 0)
+					throw new IllegalArgumentException("negative feature index " + index);
+				if(index >= count.length)
+				{
+					int m = count.length;
+					int k = Math.max(index+1, 2*m);
+					min = Arrays.copyOf(min, k);
+					max = Arrays.copyOf(max, k);
+					count = Arrays.copyOf(count, k);
+					Arrays.fill(min, m, k, Double.MAX_VALUE);
+					Arrays.fill(max, m, k, -Double.MAX_VALUE);
+				}
+				min[index] = Math.min(min[index], node.value);
+				max[index] = Math.max(max[index], node.value);
+				count[index]++;
+			}
+		}
+
+		protected void flush() throws IOException
+		{
+			int n = xs.size();
+			for(int i=1;i<count.length;i++)
+			{
+				// a feature absent from an instance has the value 0 there
+				if(count[i] == 0)
+					min[i] = max[i] = 0;
+				else if(count[i] < n)
+				{
+					min[i] = Math.min(min[i], 0);
+					max[i] = Math.max(max[i], 0);
+				}
+			}
+			double[] y_range = (y_limits == null) ? null :
+				new double[] {y_limits[0], y_limits[1], y_min, y_max};
+			scaling = new svm_scaling(lower, upper, min, max, y_range);
+			for(int i=0;i<n;i++)
+			{
+				svm_node[] x = xs.set(i, null);
+				emit(scaling.scale_target(ys[i]), scaling.scale(x), ws[i]);
+			}
+			xs.clear();
+		}
+	}
+
+	private static final class FilterStage extends stage
+	{
+		private final BitSet keep;
+
+		FilterStage(BitSet keep)
+		{
+			super("filter_features");
+			this.keep = (BitSet)keep.clone();
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			int n = 0;
+			for(svm_node node : x)
+				if(node.index >= 0 && keep.get(node.index))
+					n++;
+			if(n == x.length)
+			{
+				emit(y, x, weight);
+				return;
+			}
+			svm_node[] kept = new svm_node[n];
+			n = 0;
+			for(svm_node node : x)
+				if(node.index >= 0 && keep.get(node.index))
+					kept[n++] = node;
+			emit(y, kept, weight);
+		}
+	}
+
+	/** an instance with its label, equal to another of the same label, indices and values */
+	private static final class Row
+	{
+		final double y;
+		final svm_node[] x;
+		final int hash;
+
+		Row(double y, svm_node[] x)
+		{
+			this.y = y;
+			this.x = x;
+			long h = Double.doubleToLongBits(y);
+			for(svm_node node : x)
+			{
+				h = (h ^ node.index) * 0x9E3779B97F4A7C15L;
+				h = (h ^ Double.doubleToLongBits(node.value)) * 0x9E3779B97F4A7C15L;
+			}
+			hash = (int)(h ^ (h >>> 32));
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Row))
+				return false;
+			Row r = (Row)o;
+			if(hash != r.hash || Double.doubleToLongBits(y) != Double.doubleToLongBits(r.y) ||
+				x.length != r.x.length)
+				return false;
+			for(int i=0;i<x.length;i++)
+				if(x[i].index != r.x[i].index ||
+					Double.doubleToLongBits(x[i].value) != Double.doubleToLongBits(r.x[i].value))
+					return false;
+			return true;
+		}
+	}
+
+	/** passes on the first of identical instances only */
+	private static final class DedupStage extends stage
+	{
+		private final HashSet<Row> seen = new HashSet<Row>();
+
+		DedupStage()
+		{
+			super("dedup");
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			if(seen.add(new Row(y, x)))
+				emit(y, x, weight);
+		}
+
+		protected void flush()
+		{
+			seen.clear();
+		}
+	}
+
+	/**
+	 * Passes on one instance per group of identical ones, in the order of their
+	 * first occurrence, weighted by the sum of their weights, at the end of the input.
+	 */
+	private static final class CollapseStage extends stage
+	{
+		/** the summed weight of each distinct instance, in the order first seen */
+		private final LinkedHashMap<Row, double[]> rows = new LinkedHashMap<Row, double[]>();
+
+		CollapseStage()
+		{
+			super("collapse");
+		}
+
+		protected void process(double y, svm_node[] x, double weight)
+		{
+			Row row = new Row(y, x);
+			double[] sum = rows.get(row);
+			if(sum == null)
+				rows.put(row, new double[] {weight});
+			else
+				sum[0] += weight;
+		}
+
+		protected void flush() throws IOException
+		{
+			Iterator<Map.Entry<Row, double[]>> it = rows.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<Row, double[]> e = it.next();
+				it.remove();
+				emit(e.getKey().y, e.getKey().x, e.getValue()[0]);
+			}
+		}
+	}
+
+	private static final class SubsampleStage extends stage
+	{
+		private final double rate;
+		private final Random random;
+
+		SubsampleStage(double rate, long seed)
+		{
+			super("subsample");
+			this.rate = rate;
+			this.random = new Random(seed);
+		}
+
+		protected void process(double y, svm_node[] x, double weight) throws IOException
+		{
+			if(random.nextDouble() < rate)
+				emit(y, x, weight);
+		}
+	}
+
+	/**
+	 * Collects the instances into a problem, with instance weights W
+	 * unless all weights are 1.
+	 */
+	public static class problem_builder implements sink
+	{
+		private final List<svm_node[]> xs = new ArrayList<svm_node[]>();
+		private double[] ys = new double[16];
+		private double[] ws = new double[16];
+		private boolean weighted;
+		private int max_index;
+		private svm_problem prob;
+
+		public void accept(double y, svm_node[] x, double weight)
+		{
+			int n = xs.size();
+			if(n == ys.length)
+			{
+				ys = Arrays.copyOf(ys, 2*n);
+				ws = Arrays.copyOf(ws, 2*n);
+			}
+			ys[n] = y;
+			ws[n] = weight;
+			weighted |= weight != 1;
+			xs.add(x);
+			if(x.length > 0)
+				max_index = Math.max(max_index, x[x.length-1].index);
+		}
+
+		public void finish()
+		{
+			prob = new svm_problem();
+			prob.l = xs.size();
+			prob.y = Arrays.copyOf(ys, prob.l);
+			prob.x = xs.toArray(new svm_node[prob.l][]);
+			if(weighted)
+				prob.W = Arrays.copyOf(ws, prob.l);
+		}
+
+		/** @return the problem, once the pipeline is done */
+		public svm_problem get_problem()
+		{
+			if(prob == null)
+				throw new IllegalStateException("the pipeline has not finished");
+			return prob;
+		}
+
+		/** @return the largest feature index of the last features of the instances */
+		public int get_max_index()
+		{
+			return max_index;
+		}
+	}
+
+	/**
+	 * Predicts the instances by a model, writing a label per line if out
+	 * is not null, and evaluates the predictions against the instances' labels.
+	 * A model carrying feature ranges scales the instances itself,
+	 * so the pipeline must not scale them by the same ranges again.
+	 */
+	public static class prediction_sink implements sink
+	{
+		private final svm_model model;
+		private final Writer out;
+		private long total;
+		private double total_weight;
+		private double correct;
+		private double error;
+
+		public prediction_sink(svm_model model, Writer out)
+		{
+			this.model = model;
+			this.out = out;
+		}
+
+		public void accept(double y, svm_node[] x, double weight) throws IOException
+		{
+			double v = svm.svm_predict(model, x);
+			if(out != null)
+				out.write(v + "\n");
+			total++;
+			total_weight += weight;
+			if(v == y)
+				correct += weight;
+			error += weight*(v-y)*(v-y);
+		}
+
+		public void finish() throws IOException
+		{
+			if(out != null)
+				out.flush();
+		}
+
+		/** @return the number of instances predicted */
+		public long get_total()
+		{
+			return total;
+		}
+
+		/** @return the weighted fraction of instances predicted with their label */
+		public double get_accuracy()
+		{
+			return (total == 0) ? 0 : correct / total_weight;
+		}
+
+		/** @return the weighted mean squared error of the predictions, for regression */
+		public double get_mean_squared_error()
+		{
+			return (total == 0) ? 0 : error / total_weight;
+		}
+	}
+
+	/**
+	 * Writes the instances in the format run reads, with the weight
+	 * as <code>cost:weight</code> after the label unless it is 1.
+	 */
+	public static class problem_writer implements sink
+	{
+		private final Writer out;
+
+		public problem_writer(Writer out)
+		{
+			this.out = out;
+		}
+
+		public void accept(double y, svm_node[] x, double weight) throws IOException
+		{
+			StringBuilder line = new StringBuilder();
+			append_value(line, y);
+			if(weight != 1)
+			{
+				line.append(" cost:");
+				append_value(line, weight);
+			}
+			for(svm_node node : x)
+			{
+				line.append(' ').append(node.index).append(':');
+				append_value(line, node.value);
+			}
+			line.append('\n');
+			out.write(line.toString());
+		}
+
+		/** writes values exactly, integers without a fraction */
+		private static void append_value(StringBuilder line, double value)
+		{
+			if(value == Math.rint(value) && Math.abs(value) < 1e15)
+				line.append((long)value);
+			else
+				line.append(value);
+		}
+
+		public void finish() throws IOException
+		{
+			out.flush();
+		}
+	}
+
+	private final List<stage> stages = new ArrayList<stage>();
+	private Source source;
+
+	/**
+	 * Scales instances and targets by stored ranges.
+	 */
+	public svm_pipeline scale(svm_scaling scaling)
+	{
+		return add(new ScaleStage(scaling));
+	}
+
+	/**
+	 * Scales features onto [lower, upper] by the ranges of all instances,
+	 * as svm_scale -l lower -u upper does; get_scaling returns the ranges.
+	 */
+	public svm_pipeline learn_scaling(double lower, double upper)
+	{
+		if(!(upper > lower))
+			throw new IllegalArgumentException("inconsistent lower/upper specification");
+		return add(new LearnScalingStage(lower, upper, null));
+	}
+
+	/**
+	 * Scales features onto [lower, upper] and targets onto [y_lower, y_upper]
+	 * by the ranges of all instances.
+	 */
+	public svm_pipeline learn_scaling(double lower, double upper, double y_lower, double y_upper)
+	{
+		if(!(upper > lower) || !(y_upper > y_lower))
+			throw new IllegalArgumentException("inconsistent lower/upper specification");
+		return add(new LearnScalingStage(lower, upper, new double[] {y_lower, y_upper}));
+	}
+
+	/**
+	 * Keeps the features whose indices are set in keep, and drops the others.
+	 */
+	public svm_pipeline filter_features(BitSet keep)
+	{
+		return add(new FilterStage(keep));
+	}
+
+	/**
+	 * Drops instances identical to an earlier one in label, indices and values.
+	 */
+	public svm_pipeline dedup()
+	{
+		return add(new DedupStage());
+	}
+
+	/**
+	 * Replaces identical instances in label, indices and values by one,
+	 * weighted by the sum of their weights, which for all SVM types gives
+	 * the same optimum as training on all of them. Only the probability
+	 * estimates of <code>probability == 1</code> differ, as the internal
+	 * cross validation they come from splits the instances differently.
+	 * Holds the distinct instances until the end of the input.
+	 */
+	public svm_pipeline collapse()
+	{
+		return add(collapse_stage());
+	}
+
+	/**
+	 * @return a new stage as added by collapse, to add by add(stage)
+	 *   when its counters are needed afterwards
+	 */
+	public static stage collapse_stage()
+	{
+		return new CollapseStage();
+	}
+
+	/**
+	 * Keeps each instance with probability rate, by a generator seeded with seed.
+	 */
+	public svm_pipeline subsample(double rate, long seed)
+	{
+		if(!(rate > 0 && rate <= 1))
+			throw new IllegalArgumentException("subsample rate must be in (0,1]");
+		return add(new SubsampleStage(rate, seed));
+	}
+
+	/**
+	 * Adds a stage of one's own.
+	 */
+	public svm_pipeline add(stage s)
+	{
+		if(source != null)
+			throw new IllegalStateException("the pipeline has run");
+		stages.add(s);
+		return this;
+	}
+
+	/**
+	 * Parses instances in the format of svm_train, one per line, and streams them
+	 * through the stages into the sink. Blank lines are skipped.
+	 * As in SVM-light, <code>cost:weight</code> after the label gives the instance
+	 * a weight other than 1.
+	 */
+	public void run(BufferedReader in, sink sink) throws IOException
+	{
+		Source parse = start("parse", sink);
+		parse.start();
+		long line_number = 0;
+		String line;
+		while((line = in.readLine()) != null)
+		{
+			line_number++;
+			StringTokenizer st = new StringTokenizer(line," \t\n\r\f:");
+			if(!st.hasMoreTokens())
+				continue;
+			double y;
+			double weight = 1;
+			svm_node[] x;
+			try
+			{
+				y = parse_value(st.nextToken());
+				int m = st.countTokens()/2;
+				// the first index, unless it is the cost
+				String token = (m > 0) ? st.nextToken() : null;
+				if("cost".equals(token))
+				{
+					weight = parse_value(st.nextToken());
+					if(!(weight > 0))
+						throw new NumberFormatException("cost <= 0");
+					m--;
+					token = (m > 0) ? st.nextToken() : null;
+				}
+				x = new svm_node[m];
+				for(int j=0;j<m;j++)
+				{
+					x[j] = new svm_node();
+					x[j].index = Integer.parseInt((j == 0) ? token : st.nextToken());
+					x[j].value = parse_value(st.nextToken());
+				}
+				if(st.hasMoreTokens())
+					throw new NumberFormatException("index without a value");
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Wrong input format at line " + line_number + ": " + e.getMessage(), e);
+			}
+			parse.read(y, x, weight);
+		}
+		parse.stop();
+		parse.finish();
+	}
+
+	/**
+	 * Streams the instances of a problem through the stages into the sink.
+	 */
+	public void run(svm_problem prob, sink sink) throws IOException
+	{
+		Source read = start("problem", sink);
+		read.start();
+		for(int i=0;i<prob.l;i++)
+			read.read(prob.y[i], prob.x[i], (prob.W == null) ? 1 : prob.W[i]);
+		read.stop();
+		read.finish();
+	}
+
+	private Source start(String name, sink sink)
+	{
+		if(source != null)
+			throw new IllegalStateException("the pipeline has run");
+		source = new Source(name);
+		stage previous = source;
+		for(stage s : stages)
+		{
+			if(s.next != null)
+				throw new IllegalStateException("stage " + s.get_name() + " is in a pipeline already");
+			previous.next = s;
+			previous = s;
+		}
+		SinkStage end = new SinkStage(sink);
+		previous.next = end;
+		stages.add(0, source);
+		stages.add(end);
+		return source;
+	}
+
+	private static double parse_value(String s)
+	{
+		double d = Double.parseDouble(s);
+		if(Double.isNaN(d) || Double.isInfinite(d))
+			throw new NumberFormatException("NaN or Infinity in input");
+		return d;
+	}
+
+	/**
+	 * @return the ranges of the last scaling stage, learned once the pipeline has run,
+	 *   or null without scaling
+	 */
+	public svm_scaling get_scaling()
+	{
+		for(int i=stages.size()-1;i>=0;i--)
+		{
+			stage s = stages.get(i);
+			if(s instanceof ScaleStage)
+				return ((ScaleStage)s).scaling;
+			if(s instanceof LearnScalingStage)
+				return ((LearnScalingStage)s).scaling;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the stages, from the source to the sink once the pipeline has run
+	 */
+	public List<stage> get_stages()
+	{
+		return new ArrayList<stage>(stages);
+	}
+
+	/**
+	 * Logs the counters of each stage.
+	 */
+	public void log_stats()
+	{
+		for(stage s : stages)
+		{
+			double seconds = s.get_nanos() / 1e9;
+			svm.LOG_COMMON.log(Level.INFO, "{0}: {1} in, {2} out, {3} ms, {4} instances/s",
+				new Object[] {s.get_name(), s.get_in(), s.get_out(),
+					String.format("%.1f", seconds*1e3),
+					(seconds > 0) ? String.format("%.0f", s.get_in()/seconds) : "-"});
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package libsvm;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of predictions, for traffic that repeats the same instances.
+ *
+ * Instances are looked up by a 64-bit hash of their indices and values,
+ * and a hit is verified against a copy of the instance, so colliding
+ * hashes never return the prediction of another instance.
+ * An entry holds the label, and the decision values or probability estimates
+ * once they have been asked for.
+ *
+ * The cache serves one model at a time: asking for a prediction of another
+ * model, such as a new version replacing the old one, empties it first.
+ * The model is referenced weakly, so the cache does not keep a model
+ * on the heap that its owner has dropped.
+ * The least recently used entries are evicted beyond max_entries
+ * or beyond max_bytes of estimated memory.
+ * All methods are thread-safe; predictions are computed outside the lock.
+ */
+public class svm_prediction_cache
+{
+	private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private final long max_entries;
+	private final long max_bytes;
+	/** guarded by this */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	/** the model the entries are of, weakly; guarded by this */
+	private WeakReference<svm_model> model;
+	private long bytes;
+
+	// metrics, guarded by this
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/** an instance, as copies of its indices and values */
+	private static final class Key
+	{
+		final long hash;
+		final int[] index;
+		final double[] value;
+
+		Key(svm_node[] x)
+		{
+			int n = x.length;
+			index = new int[n];
+			value = new double[n];
+			long h = n;
+			for(int i=0;i<n;i++)
+			{
+				index[i] = x[i].index;
+				value[i] = x[i].value;
+				h = (h ^ index[i]) * MULTIPLIER;
+				h = (h ^ Double.doubleToLongBits(value[i])) * MULTIPLIER;
+			}
+			hash = h ^ (h >>> 29);
+		}
+
+		public int hashCode()
+		{
+			return (int)(hash ^ (hash >>> 32));
+		}
+
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			// values compare by their bits, as the hash does
+			return hash == k.hash && Arrays.equals(index, k.index) && Arrays.equals(value, k.value);
+		}
+
+		long bytes()
+		{
+			// the key object and its arrays, and the map entry
+			return 32 + 16 + 4L*index.length + 16 + 8L*value.length + 40;
+		}
+	}
+
+	/** the predictions of an instance */
+	private static final class Entry
+	{
+		boolean has_label;
+		double label;
+		double[] dec_values;
+		double dec_label;
+		double[] prob_estimates;
+		double prob_label;
+
+		long bytes()
+		{
+			return 48 + ((dec_values == null) ? 0 : 16 + 8L*dec_values.length) +
+				((prob_estimates == null) ? 0 : 16 + 8L*prob_estimates.length);
+		}
+	}
+
+	/**
+	 * @param max_entries the most predictions kept
+	 * @param max_bytes the most estimated memory taken, in bytes
+	 */
+	public svm_prediction_cache(long max_entries, long max_bytes)
+	{
+		if(max_entries < 1 || max_bytes < 1)
+			throw new IllegalArgumentException("max_entries and max_bytes must be positive");
+		this.max_entries = max_entries;
+		this.max_bytes = max_bytes;
+	}
+
+	/**
+	 * @return svm_predict(model,x), from the cache if it holds it
+	 */
+	public double predict(svm_model model, svm_node[] x)
+	{
+		Key key = new Key(x);
+		Double label = cached_label(model, key);
+		if(label != null)
+			return label;
+		return store_label(model, key, svm.svm_predict(model,x));
+	}
+
+	/**
+	 * @return svm_predict(model,x), from the cache if it holds it,
+	 *   else as predicted by a batching predictor of the model
+	 */
+	public double predict(svm_model model, svm_node[] x, svm_batching_predictor batcher) throws InterruptedException
+	{
+		Key key = new Key(x);
+		Double label = cached_label(model, key);
+		if(label != null)
+			return label;
+		return store_label(model, key, batcher.predict(x));
+	}
+
+	private synchronized Double cached_label(svm_model model, Key key)
+	{
+		Entry e = lookup(model, key);
+		if(e != null)
+		{
+			if(e.has_label)
+			{
+				hits++;
+				return e.label;
+			}
+			// svm_predict_values returns the same label
+			if(e.dec_values != null)
+			{
+				hits++;
+				return e.dec_label;
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	private synchronized double store_label(svm_model model, Key key, double label)
+	{
+		Entry e = store(model, key);
+		if(e != null && !e.has_label)
+		{
+			e.has_label = true;
+			e.label = label;
+			added(e, 0);
+		}
+		return label;
+	}
+
+	/**
+	 * @return svm_predict_values(model,x,dec_values), from the cache if it holds it
+	 */
+	public double predict_values(svm_model model, svm_node[] x, double[] dec_values)
+	{
+		Key key = new Key(x);
+		synchronized(this)
+		{
+			Entry e = lookup(model, key);
+			if(e != null && e.dec_values != null)
+			{
+				hits++;
+				System.arraycopy(e.dec_values, 0, dec_values, 0, e.dec_values.length);
+				return e.dec_label;
+			}
+			misses++;
+		}
+		int nr_dec = (model.nSV == null) ? 1 : model.nr_class*(model.nr_class-1)/2;
+		double label = svm.svm_predict_values(model,x,dec_values);
+		synchronized(this)
+		{
+			Entry e = store(model, key);
+			if(e != null && e.dec_values == null)
+			{
+				e.dec_values = Arrays.copyOf(dec_values, nr_dec);
+				e.dec_label = label;
+				added(e, 16 + 8L*nr_dec);
+			}
+		}
+		return label;
+	}
+
+	/**
+	 * @return svm_predict_probability(model,x,prob_estimates), from the cache if it holds it
+	 */
+	public double predict_probability(svm_model model, svm_node[] x, double[] prob_estimates)
+	{
+		Key key = new Key(x);
+		synchronized(this)
+		{
+			Entry e = lookup(model, key);
+			if(e != null && e.prob_estimates != null)
+			{
+				hits++;
+				System.arraycopy(e.prob_estimates, 0, prob_estimates, 0, e.prob_estimates.length);
+				return e.prob_label;
+			}
+			misses++;
+		}
+		double label = svm.svm_predict_probability(model,x,prob_estimates);
+		synchronized(this)
+		{
+			Entry e = store(model, key);
+			if(e != null && e.prob_estimates == null)
+			{
+				e.prob_estimates = Arrays.copyOf(prob_estimates, model.nr_class);
+				e.prob_label = label;
+				added(e, 16 + 8L*model.nr_class);
+			}
+		}
+		return label;
+	}
+
+	/**
+	 * @return the entry of an instance of the model, or null;
+	 *   empties the cache first if it holds another model
+	 */
+	private Entry lookup(svm_model model, Key key)
+	{
+		if(!holds(model))
+		{
+			if(!entries.isEmpty())
+				invalidations++;
+			clear_entries();
+			this.model = new WeakReference<svm_model>(model);
+			return null;
+		}
+		return entries.get(key);
+	}
+
+	/**
+	 * @return the entry to store predictions of an instance in, or null if the cache
+	 *   moved on to another model while the prediction was computed
+	 */
+	private Entry store(svm_model model, Key key)
+	{
+		if(!holds(model))
+			return null;
+		Entry e = entries.get(key);
+		if(e == null)
+		{
+			e = new Entry();
+			entries.put(key, e);
+			bytes += key.bytes() + e.bytes();
+		}
+		return e;
+	}
+
+	/** @return whether the entries are of the given model */
+	private boolean holds(svm_model model)
+	{
+		return this.model != null && this.model.get() == model;
+	}
+
+	/**
+	 * Accounts for an entry grown by the given number of bytes and evicts others
+	 * if the cache is over its bounds.
+	 */
+	private void added(Entry e, long grown)
+	{
+		bytes += grown;
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while((entries.size() > max_entries || bytes > max_bytes) && it.hasNext())
+		{
+			Map.Entry<Key, Entry> eldest = it.next();
+			if(eldest.getValue() == e)
+				continue;
+			bytes -= eldest.getKey().bytes() + eldest.getValue().bytes();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private void clear_entries()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public synchronized void clear()
+	{
+		clear_entries();
+		model = null;
+	}
+
+	/** @return the number of predictions served from the cache */
+	public synchronized long get_hits()
+	{
+		return hits;
+	}
+
+	/** @return the number of predictions computed */
+	public synchronized long get_misses()
+	{
+		return misses;
+	}
+
+	/** @return the fraction of predictions served from the cache */
+	public synchronized double get_hit_rate()
+	{
+		long n = hits + misses;
+		return (n == 0) ? 0 : (double)hits / n;
+	}
+
+	/** @return the number of entries held */
+	public synchronized int get_entries()
+	{
+		return entries.size();
+	}
+
+	/** @return the estimated memory of the entries, in bytes */
+	public synchronized long get_bytes()
+	{
+		return bytes;
+	}
+
+	/** @return the number of entries evicted to stay within the bounds */
+	public synchronized long get_evictions()
+	{
+		return evictions;
+	}
+
+	/** @return the number of times the cache was emptied for another model */
+	public synchronized long get_invalidations()
+	{
+		return invalidations;
+	}
+}
@@ -5,4 +5,21 @@ public class svm_problem implements java.io.Serializable
 	public int l;
 	public double[] y;
 	public svm_node[][] x;
+	/**
+	 * Optional instance weights, all positive: instance i weighs as much as
+	 * W[i] copies of it, its C (or for one-class and nu-SVM, the bound of its alpha)
+	 * being scaled by W[i]. If <code>null</code>, every instance has weight 1.
+	 */
+	public double[] W;
+	/**
+	 * For precomputed kernels only, optional:
+	 * the kernel values, where <code>x[i]</code> then is just <code>0:serial</code>.
+	 * If <code>null</code>, x holds the full kernel rows.
+	 */
+	public transient svm_kernel_matrix kernel_matrix;
+	/**
+	 * The kernel store of the training run this is a sub-problem of,
+	 * set by svm_train and svm_cross_validation; <code>null</code> if none.
+	 */
+	transient KernelStore.Run kernel_store;
 }
@@ -0,0 +1,148 @@
+package libsvm;
+
+import java.util.Random;
+
+/**
+ * Random Fourier features approximating the RBF kernel
+ * (Rahimi and Recht, NIPS 2007):
+ *
+ * <code>exp(-gamma ||x-y||^2) ~ z(x)^T z(y),
+ *   z_k(x) = sqrt(2/D) cos(omega_k^T x + b_k),  k = 1...D</code>
+ *
+ * with <code>omega_k ~ N(0, 2 gamma I)</code> and <code>b_k ~ U[0, 2 pi)</code>.
+ * A linear model on z approximates a kernel model, and predicting costs
+ * O(D nnz(x)) time, however many support vectors the exact model would have.
+ *
+ * The transform is generated from a seed by java.util.Random, whose sequence
+ * is fixed by its specification, so (D, gamma, seed) reproduce it exactly
+ * and, with dim, are all a model file needs to store.
+ * Each input index j has a generator of its own, seeded from seed and j,
+ * whose first D Gaussians give entry j of omega_0...omega_{D-1};
+ * a generator seeded with seed gives b_0...b_{D-1}.
+ * So omega can be drawn for any index: the entries for indices below dim,
+ * those of the training data, are kept, and those of features only seen
+ * in prediction are drawn when needed, so such features count in
+ * <code>||x-y||^2</code> as they do in the exact kernel.
+ */
+public class svm_rff implements java.io.Serializable
+{
+	private final int features;
+	private final int dim;
+	private final double gamma;
+	private final int seed;
+	/** <code>omega[j][k]</code>: entry j of omega_k, by input index for sparse inputs, j &lt; dim */
+	private final double[][] omega;
+	private final double scale;
+	private final double[] phase;
+
+	/**
+	 * @param features D, the number of random features
+	 * @param dim the input dimension, i.e. the largest feature index + 1
+	 * @param gamma the gamma of the RBF kernel
+	 * @param seed seed of the generator
+	 */
+	public svm_rff(int features, int dim, double gamma, int seed)
+	{
+		if(features <= 0 || dim < 0)
+			throw new IllegalArgumentException("invalid random feature dimensions " + features + ", " + dim);
+		this.features = features;
+		this.dim = dim;
+		this.gamma = gamma;
+		this.seed = seed;
+
+		scale = Math.sqrt(2*gamma);
+		omega = new double[dim][];
+		for(int j=0;j<dim;j++)
+			omega[j] = draw_omega(j);
+		Random rand = new Random(seed);
+		phase = new double[features];
+		for(int k=0;k<features;k++)
+			phase[k] = 2*Math.PI * rand.nextDouble();
+	}
+
+	/**
+	 * @return entry j of omega_0...omega_{D-1}, from the generator of index j
+	 */
+	private double[] draw_omega(int j)
+	{
+		// SplitMix64 finalizer of seed and j, so nearby indices get unrelated generators
+		long h = seed * 0x9E3779B97F4A7C15L + j;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		Random rand = new Random(h ^ (h >>> 31));
+		double[] omega_j = new double[features];
+		for(int k=0;k<features;k++)
+			omega_j[k] = scale * rand.nextGaussian();
+		return omega_j;
+	}
+
+	/**
+	 * @return a transform of the given dimension for the data of prob
+	 */
+	static svm_rff create(svm_problem prob, svm_parameter param)
+	{
+		int max_index = 0;
+		for(int i=0;i<prob.l;i++)
+		{
+			svm_node[] x = prob.x[i];
+			if(x.length > 0)
+				max_index = Math.max(max_index, x[x.length-1].index);
+		}
+		return new svm_rff(param.rff_features, max_index+1, param.gamma, param.rff_seed);
+	}
+
+	public int get_features()
+	{
+		return features;
+	}
+
+	public int get_dim()
+	{
+		return dim;
+	}
+
+	public double get_gamma()
+	{
+		return gamma;
+	}
+
+	public int get_seed()
+	{
+		return seed;
+	}
+
+	/**
+	 * @return z(x), of length D
+	 */
+	public double[] map(svm_node[] x)
+	{
+		double[] z = new double[features];
+		for(int t=0;t<x.length;t++)
+		{
+			int j = x[t].index;
+			double v = x[t].value;
+			if(j < 0 || v == 0)
+				continue;
+			// features the training data lacks are drawn each time, not kept
+			double[] omega_j = (j < dim) ? omega[j] : draw_omega(j);
+			for(int k=0;k<features;k++)
+				z[k] += omega_j[k] * v;
+		}
+		double norm = Math.sqrt(2.0/features);
+		for(int k=0;k<features;k++)
+			z[k] = norm * Math.cos(z[k] + phase[k]);
+		return z;
+	}
+
+	/**
+	 * @return z(x) as floats, for training
+	 */
+	float[] map_float(svm_node[] x)
+	{
+		double[] z = map(x);
+		float[] result = new float[features];
+		for(int k=0;k<features;k++)
+			result[k] = (float)z[k];
+		return result;
+	}
+}
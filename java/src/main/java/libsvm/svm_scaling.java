@@ -0,0 +1,349 @@
+package libsvm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * The feature ranges svm_scale saves with -s and restores with -r,
+ * applied to instances as they are read or predicted instead of in a separate pass.
+ *
+ * Feature i with range [feature_min[i], feature_max[i]] maps linearly onto [lower, upper];
+ * a feature absent from an instance has the value 0, which may map to a nonzero value.
+ * Features with a single value, which svm_scale leaves out of the saved file, are dropped,
+ * and so are features the ranges do not cover. This differs from svm_scale -r,
+ * which scales features missing from the range file by the ranges of the data
+ * it is scaling; here the scaled instances keep the features the model was trained on.
+ * Targets map from [y_min, y_max] onto [y_lower, y_upper] if y scaling is on.
+ *
+ * Prediction scales each instance into nodes of the calling thread that later
+ * predictions reuse, see scale_reused; svm_predict_batch scales instances
+ * while copying them into its dense blocks.
+ */
+public class svm_scaling implements java.io.Serializable
+{
+	private final double lower;
+	private final double upper;
+	/** by feature index, NaN where the feature is dropped */
+	private final double[] feature_min;
+	private final double[] feature_max;
+	private final boolean y_scaling;
+	private final double y_lower;
+	private final double y_upper;
+	private final double y_min;
+	private final double y_max;
+	/** number of features scaled */
+	private final int nr_scaled;
+	/** the nodes of scale_reused, by thread */
+	private transient ThreadLocal<Reused> reused;
+
+	/**
+	 * Nodes a thread scales instances into: scaled instances with n nonzero features
+	 * are the array by_length[n], which holds nodes[0,n).
+	 */
+	private static final class Reused
+	{
+		final svm_node[] nodes;
+		final svm_node[][] by_length;
+
+		Reused(int nr_scaled)
+		{
+			nodes = new svm_node[nr_scaled];
+			by_length = new svm_node[nr_scaled+1][];
+		}
+	}
+
+	/**
+	 * @param feature_min the minimum of each feature by index,
+	 *   feature_min[i] == feature_max[i] for features to drop
+	 * @param y_range y_lower, y_upper, y_min, y_max, or null for no y scaling
+	 */
+	public svm_scaling(double lower, double upper, double[] feature_min, double[] feature_max, double[] y_range)
+	{
+		if(feature_min.length != feature_max.length)
+			throw new IllegalArgumentException("feature_min and feature_max differ in length");
+		this.lower = lower;
+		this.upper = upper;
+		int n = feature_min.length;
+		this.feature_min = new double[n];
+		this.feature_max = new double[n];
+		int scaled = 0;
+		for(int i=0;i<n;i++)
+		{
+			if(i == 0 || feature_min[i] == feature_max[i])
+			{
+				this.feature_min[i] = Double.NaN;
+				this.feature_max[i] = Double.NaN;
+				continue;
+			}
+			this.feature_min[i] = feature_min[i];
+			this.feature_max[i] = feature_max[i];
+			++scaled;
+		}
+		nr_scaled = scaled;
+		y_scaling = y_range != null;
+		y_lower = y_scaling ? y_range[0] : 0;
+		y_upper = y_scaling ? y_range[1] : 0;
+		y_min = y_scaling ? y_range[2] : 0;
+		y_max = y_scaling ? y_range[3] : 0;
+		reused = new_reused();
+	}
+
+	private ThreadLocal<Reused> new_reused()
+	{
+		return new ThreadLocal<Reused>()
+		{
+			protected Reused initialValue()
+			{
+				return new Reused(nr_scaled);
+			}
+		};
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		reused = new_reused();
+	}
+
+	/**
+	 * Reads ranges in the format of svm_scale -s.
+	 */
+	public static svm_scaling load(String file_name) throws IOException
+	{
+		BufferedReader fp = new BufferedReader(new FileReader(file_name));
+		try
+		{
+			return read(fp);
+		}
+		finally
+		{
+			fp.close();
+		}
+	}
+
+	/**
+	 * Reads ranges in the format of svm_scale -s, up to the end of the stream.
+	 */
+	public static svm_scaling read(BufferedReader fp) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while((line = fp.readLine()) != null)
+			lines.add(line);
+		return parse(lines);
+	}
+
+	static svm_scaling parse(List<String> lines) throws IOException
+	{
+		try
+		{
+			int k = 0;
+			double[] y_range = null;
+			if(lines.get(k).trim().equals("y"))
+			{
+				StringTokenizer st = new StringTokenizer(lines.get(k+1));
+				StringTokenizer st2 = new StringTokenizer(lines.get(k+2));
+				y_range = new double[] {
+					Double.parseDouble(st.nextToken()), Double.parseDouble(st.nextToken()),
+					Double.parseDouble(st2.nextToken()), Double.parseDouble(st2.nextToken())};
+				k += 3;
+			}
+			if(!lines.get(k).trim().equals("x"))
+				throw new IOException("expected x in scaling ranges");
+			StringTokenizer st = new StringTokenizer(lines.get(k+1));
+			double lower = Double.parseDouble(st.nextToken());
+			double upper = Double.parseDouble(st.nextToken());
+			k += 2;
+
+			int max_index = 0;
+			int n = lines.size();
+			int[] index = new int[n-k];
+			double[] min = new double[n-k];
+			double[] max = new double[n-k];
+			int m = 0;
+			for(;k<n;k++)
+			{
+				st = new StringTokenizer(lines.get(k));
+				if(!st.hasMoreTokens())
+					continue;
+				index[m] = Integer.parseInt(st.nextToken());
+				min[m] = Double.parseDouble(st.nextToken());
+				max[m] = Double.parseDouble(st.nextToken());
+				if(index[m] < 1)
+					throw new IOException("invalid feature index " + index[m] + " in scaling ranges");
+				max_index = Math.max(max_index, index[m]);
+				m++;
+			}
+			double[] feature_min = new double[max_index+1];
+			double[] feature_max = new double[max_index+1];
+			for(int j=0;j<m;j++)
+			{
+				feature_min[index[j]] = min[j];
+				feature_max[index[j]] = max[j];
+			}
+			return new svm_scaling(lower, upper, feature_min, feature_max, y_range);
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new IOException("truncated scaling ranges", e);
+		}
+		catch(RuntimeException e)
+		{
+			throw new IOException("malformed scaling ranges", e);
+		}
+	}
+
+	/**
+	 * @return the ranges in the format of svm_scale -s
+	 */
+	public String toString()
+	{
+		Formatter formatter = new Formatter(new StringBuilder());
+		if(y_scaling)
+		{
+			formatter.format("y%n");
+			formatter.format("%.16g %.16g%n", y_lower, y_upper);
+			formatter.format("%.16g %.16g%n", y_min, y_max);
+		}
+		formatter.format("x%n");
+		formatter.format("%.16g %.16g%n", lower, upper);
+		for(int i=1;i<feature_min.length;i++)
+			if(!Double.isNaN(feature_min[i]))
+				formatter.format("%d %.16g %.16g%n", i, feature_min[i], feature_max[i]);
+		return formatter.toString();
+	}
+
+	/**
+	 * @return the number of lines of toString()
+	 */
+	int nr_lines()
+	{
+		return (y_scaling ? 3 : 0) + 2 + nr_scaled;
+	}
+
+	/**
+	 * @return the scaled value of feature index
+	 */
+	private double scale(int index, double value)
+	{
+		double min = feature_min[index], max = feature_max[index];
+		if(value == min)
+			return lower;
+		if(value == max)
+			return upper;
+		return lower + (upper-lower) * (value-min)/(max-min);
+	}
+
+	/**
+	 * @return the scaled instance, a new array; x itself is not changed
+	 */
+	public svm_node[] scale(svm_node[] x)
+	{
+		svm_node[] nodes = new svm_node[nr_scaled];
+		int n = scale(x, nodes);
+		svm_node[] result = new svm_node[n];
+		System.arraycopy(nodes, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Scales x into nodes of the calling thread, reused by its next call,
+	 * so predicting allocates nothing per instance once each length has occurred.
+	 * @return the scaled instance, valid until this thread calls scale_reused again
+	 */
+	svm_node[] scale_reused(svm_node[] x)
+	{
+		Reused r = reused.get();
+		int n = scale(x, r.nodes);
+		svm_node[] result = r.by_length[n];
+		if(result == null)
+		{
+			result = new svm_node[n];
+			System.arraycopy(r.nodes, 0, result, 0, n);
+			r.by_length[n] = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the nonzero scaled features of x to nodes[0,n),
+	 * creating the nodes that are <code>null</code>.
+	 * @return n
+	 */
+	private int scale(svm_node[] x, svm_node[] nodes)
+	{
+		int dim = feature_min.length;
+		// absent features become lower + (upper-lower)*(0-min)/(max-min), nonzero in general
+		int n = 0;
+		int t = 0;
+		for(int i=1;i<dim;i++)
+		{
+			if(Double.isNaN(feature_min[i]))
+				continue;
+			while(t < x.length && x[t].index >= 0 && x[t].index < i)
+				++t;
+			double value = (t < x.length && x[t].index == i) ? x[t].value : 0;
+			double v = scale(i, value);
+			if(v != 0)
+			{
+				if(nodes[n] == null)
+					nodes[n] = new svm_node();
+				nodes[n].index = i;
+				nodes[n].value = v;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the scaled features of x below dim to <code>dense[offset+i]</code>,
+	 * leaving the entries of dropped features as they are.
+	 * @return the squared norm of the scaled instance, over all its features
+	 */
+	double scale_dense(svm_node[] x, double[] dense, int offset, int dim)
+	{
+		int end = feature_min.length;
+		double square = 0;
+		int t = 0;
+		for(int i=1;i<end;i++)
+		{
+			if(Double.isNaN(feature_min[i]))
+				continue;
+			while(t < x.length && x[t].index >= 0 && x[t].index < i)
+				++t;
+			double value = (t < x.length && x[t].index == i) ? x[t].value : 0;
+			double v = scale(i, value);
+			square += v*v;
+			if(i < dim)
+				dense[offset+i] = v;
+		}
+		return square;
+	}
+
+	/**
+	 * @return the scaled target, or y itself without y scaling
+	 */
+	public double scale_target(double y)
+	{
+		if(!y_scaling)
+			return y;
+		if(y == y_min)
+			return y_lower;
+		if(y == y_max)
+			return y_upper;
+		return y_lower + (y_upper-y_lower) * (y-y_min)/(y_max-y_min);
+	}
+
+	/** @return whether targets are scaled */
+	public boolean get_y_scaling()
+	{
+		return y_scaling;
+	}
+}
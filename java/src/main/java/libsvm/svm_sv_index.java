@@ -0,0 +1,256 @@
+package libsvm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ball tree over the support vectors of an RBF model, so prediction
+ * only evaluates the kernel for support vectors near the instance.
+ *
+ * Support vectors farther from x than <code>r = sqrt(-ln(epsilon)/gamma)</code>
+ * have <code>K(x,SV) = exp(-gamma ||x-SV||^2) &lt; epsilon</code>;
+ * their kernel values are taken as 0.
+ * A decision value then differs from the exact one by less than
+ * epsilon times the sum of |coef| of the support vectors skipped;
+ * this bound is tracked per prediction, see get_max_error.
+ *
+ * Each node of the tree is a ball around one of its support vectors, its pivot,
+ * so the tree needs no memory for dense centers.
+ * Nodes are split at the median of the projection onto two far apart
+ * support vectors, which keeps the tree balanced.
+ * A node is skipped if <code>||x-pivot|| - radius &gt; r</code>;
+ * leaves within reach are evaluated in full.
+ */
+public class svm_sv_index
+{
+	private static final int LEAF_SIZE = 16;
+
+	private final svm_node[][] SV;
+	private final double gamma;
+	private final double epsilon;
+	/** the cutoff radius */
+	private final double cutoff;
+
+	/** support vectors in tree order, node t holds perm[start[t]...end[t]) */
+	private final int[] perm;
+	private final int[] start;
+	private final int[] end;
+	private final int[] pivot;
+	private final double[] radius;
+	/** sum of the largest |coef| of the node's support vectors */
+	private final double[] weight;
+	/** children, -1 for leaves */
+	private final int[] left;
+	private final int[] right;
+	private int nr_node;
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong evaluated = new AtomicLong();
+	private volatile double max_error;
+
+	svm_sv_index(svm_model model, double epsilon)
+	{
+		if(model.param.kernel_type != svm_parameter.RBF)
+			throw new IllegalArgumentException("the support vector index needs an RBF kernel");
+		if(model.kernel_matrix != null || model.rff != null)
+			throw new IllegalArgumentException("the support vector index needs a model with support vectors");
+		if(!(epsilon > 0 && epsilon < 1))
+			throw new IllegalArgumentException("epsilon must be in (0,1)");
+
+		SV = model.SV;
+		gamma = model.param.gamma;
+		this.epsilon = epsilon;
+		cutoff = Math.sqrt(-Math.log(epsilon)/gamma);
+
+		int l = model.l;
+		perm = new int[l];
+		for(int i=0;i<l;i++)
+			perm[i] = i;
+		double[] coef = new double[l];
+		for(int k=0;k<model.nr_class-1;k++)
+			for(int i=0;i<l;i++)
+				coef[i] = Math.max(coef[i], Math.abs(model.sv_coef[k][i]));
+
+		// leaves hold more than LEAF_SIZE/2 support vectors, unless the root is one
+		int max_node = 2*(2*l/LEAF_SIZE+1);
+		start = new int[max_node];
+		end = new int[max_node];
+		pivot = new int[max_node];
+		radius = new double[max_node];
+		weight = new double[max_node];
+		left = new int[max_node];
+		right = new int[max_node];
+		nr_node = 0;
+		if(l > 0)
+			build(0, l, coef, new double[l]);
+	}
+
+	/**
+	 * @return the node holding perm[lo...hi)
+	 */
+	private int build(int lo, int hi, double[] coef, final double[] key)
+	{
+		int t = nr_node++;
+		start[t] = lo;
+		end[t] = hi;
+		left[t] = right[t] = -1;
+		for(int s=lo;s<hi;s++)
+			weight[t] += coef[perm[s]];
+
+		// a is the support vector farthest from an arbitrary one, b the one farthest from a;
+		// the pivot is the one closest to both
+		int a = farthest(perm[lo], lo, hi);
+		int b = farthest(a, lo, hi);
+		int c = a;
+		double best = Double.POSITIVE_INFINITY;
+		for(int s=lo;s<hi;s++)
+		{
+			int i = perm[s];
+			double da = Kernel.distance_square(SV[i],SV[a]);
+			double db = Kernel.distance_square(SV[i],SV[b]);
+			key[i] = da - db;
+			if(da + db < best)
+			{
+				best = da + db;
+				c = i;
+			}
+		}
+		pivot[t] = c;
+		double r = 0;
+		for(int s=lo;s<hi;s++)
+			r = Math.max(r, Kernel.distance_square(SV[c],SV[perm[s]]));
+		radius[t] = Math.sqrt(r);
+
+		if(hi-lo <= LEAF_SIZE)
+			return t;
+
+		Integer[] order = new Integer[hi-lo];
+		for(int s=lo;s<hi;s++)
+			order[s-lo] = perm[s];
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer p, Integer q)
+			{
+				return Double.compare(key[p], key[q]);
+			}
+		});
+		for(int s=lo;s<hi;s++)
+			perm[s] = order[s-lo];
+
+		int mid = (lo+hi)>>>1;
+		left[t] = build(lo, mid, coef, key);
+		right[t] = build(mid, hi, coef, key);
+		return t;
+	}
+
+	/**
+	 * @return the support vector in perm[lo...hi) farthest from SV[i]
+	 */
+	private int farthest(int i, int lo, int hi)
+	{
+		int best = i;
+		double best_dist = -1;
+		for(int s=lo;s<hi;s++)
+		{
+			double d = Kernel.distance_square(SV[i],SV[perm[s]]);
+			if(d > best_dist)
+			{
+				best_dist = d;
+				best = perm[s];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Sets <code>kvalue[i] = K(x,SV[i])</code> for the support vectors within the cutoff
+	 * radius and those in the same leaves, 0 for the others.
+	 */
+	void kernel_values(svm_node[] x, double[] kvalue)
+	{
+		int l = SV.length;
+		Arrays.fill(kvalue, 0, l, 0);
+		if(l == 0)
+			return;
+
+		int nr_evaluated = 0;
+		double error = 0;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0)
+		{
+			int t = stack[--top];
+			double d = Math.sqrt(Kernel.distance_square(x,SV[pivot[t]]));
+			++nr_evaluated;
+			if(d - radius[t] > cutoff)
+			{
+				error += weight[t];
+				continue;
+			}
+			if(left[t] < 0)
+			{
+				for(int s=start[t];s<end[t];s++)
+				{
+					int i = perm[s];
+					kvalue[i] = Math.exp(-gamma*Kernel.distance_square(x,SV[i]));
+				}
+				nr_evaluated += end[t]-start[t];
+				continue;
+			}
+			if(top+2 > stack.length)
+				stack = Arrays.copyOf(stack, 2*stack.length);
+			stack[top++] = right[t];
+			stack[top++] = left[t];
+		}
+		error *= epsilon;
+
+		queries.incrementAndGet();
+		evaluated.addAndGet(nr_evaluated);
+		if(error > max_error)
+			update_max_error(error);
+	}
+
+	private synchronized void update_max_error(double error)
+	{
+		if(error > max_error)
+			max_error = error;
+	}
+
+	/**
+	 * @return the number of predictions made
+	 */
+	public long get_queries()
+	{
+		return queries.get();
+	}
+
+	/**
+	 * @return the average number of distances computed per prediction,
+	 *   including those to node pivots, relative to the number of support vectors
+	 */
+	public double get_fraction()
+	{
+		long n = queries.get();
+		if(n == 0 || SV.length == 0)
+			return 0;
+		return (double)evaluated.get() / n / SV.length;
+	}
+
+	/**
+	 * @return the largest bound on the error of a decision value so far
+	 */
+	public double get_max_error()
+	{
+		return max_error;
+	}
+
+	/**
+	 * @return the cutoff radius
+	 */
+	public double get_cutoff()
+	{
+		return cutoff;
+	}
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Runs an svm_train, svm_predict or svm_scale command line in svm_daemon,
+ * with the same arguments, output and exit status as running the tool itself.
+ * If no daemon is listening, or this user cannot read its token file,
+ * the tool runs in this JVM instead.
+ */
+class svm_client
+{
+	private static void exit_with_help()
+	{
+		System.err.print("Usage: svm_client [-p port] svm_train|svm_predict|svm_scale [arguments]\n"
+			+ "\n"
+			+ "Runs the tool with the arguments in svm_daemon, listening on the loopback port\n"
+			+ "(default " + svm_daemon.DEFAULT_PORT + "), or in this JVM if no daemon is listening\n"
+			+ "or ~/.libsvm_daemon_port.token, the daemon's token for this user, cannot be read.\n"
+			+ "The daemon runs one job at a time: a job waits until the jobs sent before it\n"
+			+ "have finished, so concurrent clients get no parallelism.\n");
+		System.exit(1);
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		int port = svm_daemon.DEFAULT_PORT;
+		int i = 0;
+		if(argv.length >= 2 && argv[0].equals("-p"))
+		{
+			port = Integer.parseInt(argv[1]);
+			i = 2;
+		}
+		if(i >= argv.length)
+			exit_with_help();
+		String tool = argv[i];
+		String[] args = new String[argv.length-i-1];
+		System.arraycopy(argv, i+1, args, 0, args.length);
+		if(!tool.equals("svm_train") && !tool.equals("svm_predict") && !tool.equals("svm_scale"))
+			exit_with_help();
+
+		// the daemon of another user on this port would not accept our jobs anyway
+		String token = svm_daemon.read_token(port);
+		if(token == null)
+		{
+			run_here(tool, args);
+			return;
+		}
+		Socket socket;
+		try
+		{
+			socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		}
+		catch(ConnectException e)
+		{
+			run_here(tool, args);
+			return;
+		}
+		System.exit(run_remote(socket, token, tool, args));
+	}
+
+	private static void run_here(String tool, String[] args) throws IOException
+	{
+		if(tool.equals("svm_train"))
+			svm_train.main(args);
+		else if(tool.equals("svm_predict"))
+			svm_predict.main(args);
+		else
+			svm_scale.main(args);
+	}
+
+	/**
+	 * @return the exit status of the job
+	 */
+	private static int run_remote(Socket socket, String token, String tool, String[] args) throws IOException
+	{
+		try
+		{
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			StringBuilder job = new StringBuilder("libsvm-job\n");
+			job.append("token ").append(token).append('\n');
+			job.append("cwd ").append(new File("").getAbsolutePath()).append('\n');
+			job.append("tool ").append(tool).append('\n');
+			for(String arg : args)
+			{
+				if(arg.indexOf('\n') >= 0)
+					throw new IllegalArgumentException("argument with a line break: " + arg);
+				job.append("arg ").append(arg).append('\n');
+			}
+			job.append("end\n");
+			out.write(job.toString().getBytes("UTF-8"));
+			out.flush();
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			byte[] buf = new byte[8192];
+			String frame;
+			while((frame = svm_daemon.read_line(in)) != null)
+			{
+				char kind = frame.charAt(0);
+				int n = Integer.parseInt(frame.substring(2));
+				if(kind == 'x')
+					return n;
+				PrintStream target = (kind == 'o') ? System.out : System.err;
+				while(n > 0)
+				{
+					int r = in.read(buf, 0, Math.min(n, buf.length));
+					if(r < 0)
+						break;
+					target.write(buf, 0, r);
+					n -= r;
+				}
+				target.flush();
+			}
+			System.err.print("svm_client: the daemon closed the connection\n");
+			return 1;
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+}
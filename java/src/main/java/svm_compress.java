@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_parameter;
+import libsvm.svm_pipeline;
+import libsvm.svm_problem;
+
+/**
+ * Compresses a model by pruning support vectors,
+ * and reports the prediction time and accuracy of both models on the validation set.
+ */
+class svm_compress
+{
+	private static final Logger LOG = Logger.getLogger(svm_compress.class.getName());
+
+	private static void logHelp()
+	{
+		LOG.info("Usage: svm_compress [options] model_file validation_file output_model_file");
+		LOG.info("");
+		LOG.info("Removes support vectors as long as no decision value on validation_file");
+		LOG.info("changes by more than the tolerance, and refits rho.");
+		LOG.info("");
+		LOG.info("Options:");
+		LOG.info("-e tolerance : set the largest change of a decision value (default 0.01)");
+		LOG.info("-q : quiet mode (no progress outputs)");
+		LOG.info("--help : display this help and exit");
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		svm_train.setupLogging();
+
+		double tolerance = 0.01;
+		int i;
+		try
+		{
+			for(i=0;i<argv.length;i++)
+			{
+				if(argv[i].charAt(0) != '-') break;
+				if(argv[i].equals("--help"))
+				{
+					logHelp();
+					System.exit(0);
+				}
+				switch(argv[i].charAt(1))
+				{
+					case 'q':
+						svm.svm_setLogLevel(Level.OFF);
+						break;
+					case 'e':
+						if(++i >= argv.length)
+							throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+						tolerance = Double.parseDouble(argv[i]);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option: " + argv[i]);
+				}
+			}
+			if(i+3 != argv.length)
+				throw new IllegalArgumentException("Expected model_file, validation_file and output_model_file");
+		}
+		catch(IllegalArgumentException ex)
+		{
+			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
+			logHelp();
+			System.exit(1);
+			return;
+		}
+
+		svm_model model = svm.svm_load_model(argv[i]);
+		if(model == null)
+		{
+			LOG.log(Level.SEVERE, "can''t open model file {0}", argv[i]);
+			System.exit(1);
+		}
+		svm_problem validation = read_problem(argv[i+1]);
+
+		svm_model compressed;
+		try
+		{
+			compressed = svm.svm_compress_model(model,validation,tolerance);
+		}
+		catch(IllegalArgumentException ex)
+		{
+			LOG.severe(ex.getMessage());
+			System.exit(1);
+			return;
+		}
+		svm.svm_save_model(argv[i+2],compressed);
+
+		LOG.info("model\t#SV\tresult\ttime per instance (us)");
+		report("original", model, validation);
+		report("compressed", compressed, validation);
+	}
+
+	private static void report(String name, svm_model model, svm_problem prob)
+	{
+		double[] target = new double[prob.l];
+		// once to warm up, then timed
+		for(int i=0;i<prob.l;i++)
+			target[i] = svm.svm_predict(model,prob.x[i]);
+		long start = System.nanoTime();
+		for(int i=0;i<prob.l;i++)
+			target[i] = svm.svm_predict(model,prob.x[i]);
+		double micros = (System.nanoTime() - start) / 1e3 / prob.l;
+
+		String result;
+		int svm_type = svm.svm_get_svm_type(model);
+		// weighted instances count as often as their weights
+		double n = 0;
+		for(int i=0;i<prob.l;i++)
+			n += (prob.W == null) ? 1 : prob.W[i];
+		if(svm_type == svm_parameter.EPSILON_SVR || svm_type == svm_parameter.NU_SVR)
+		{
+			double error = 0;
+			for(int i=0;i<prob.l;i++)
+				error += ((prob.W == null) ? 1 : prob.W[i])*(target[i]-prob.y[i])*(target[i]-prob.y[i]);
+			result = String.format("MSE %.4f", error/n);
+		}
+		else
+		{
+			double correct = 0;
+			for(int i=0;i<prob.l;i++)
+				if(target[i] == prob.y[i])
+					correct += (prob.W == null) ? 1 : prob.W[i];
+			result = String.format("accuracy %.3f%%", 100.0*correct/n);
+		}
+		LOG.info(String.format("%s\t%d\t%s\t%.1f", name, svm.svm_get_nr_sv(model), result, micros));
+	}
+
+	/**
+	 * Reads a problem from file (in SVM-light format, with instance weights).
+	 */
+	private static svm_problem read_problem(String file_name) throws IOException
+	{
+		svm_pipeline.problem_builder builder = new svm_pipeline.problem_builder();
+		BufferedReader fp = new BufferedReader(new FileReader(file_name));
+		try
+		{
+			new svm_pipeline().run(fp, builder);
+		}
+		finally
+		{
+			fp.close();
+		}
+		return builder.get_problem();
+	}
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import libsvm.svm;
+
+/**
+ * Runs svm_train, svm_predict and svm_scale jobs in a long-running JVM,
+ * so each job saves the JVM start-up, class loading and JIT warm-up;
+ * svm_client submits them with the usual command lines.
+ *
+ * A job is sent over a loopback connection as UTF-8 lines
+ * <code>
+ *   libsvm-job
+ *   token token of the daemon
+ *   cwd directory of the client
+ *   tool svm_train|svm_predict|svm_scale
+ *   arg argument                  (once per argument)
+ *   end
+ * </code>
+ * and answered by frames <code>o n</code> and <code>e n</code>, each followed by
+ * n bytes the tool wrote to standard output or standard error,
+ * then by <code>x status</code> with the exit status of the tool.
+ *
+ * Arguments other than options and numbers are file names, and relative ones
+ * are resolved against the directory of the client, as is the model file
+ * svm_train names after the training file.
+ *
+ * Trust model: a job reads and writes any file its arguments name, with the permissions
+ * of the user running the daemon, so only that user may submit jobs.
+ * The daemon listens on the loopback interface only, and at start-up writes a random token
+ * to <code>~/.libsvm_daemon_port.token</code>, readable by its owner only; a job whose token
+ * does not match is refused before it runs. Other local users cannot read the token,
+ * but root and processes running as the owner can, and are trusted alike.
+ *
+ * Jobs call the run method of the tools, which returns the exit status
+ * where main would call System.exit.
+ * The tools write through System.out, System.err and the global logging
+ * configuration, so jobs run one at a time; connections wait their turn,
+ * and a long training job holds up every job sent after it.
+ */
+class svm_daemon
+{
+	private static final Logger LOG = Logger.getLogger(svm_daemon.class.getName());
+
+	static final int DEFAULT_PORT = 9191;
+
+	/** writes to the client in frames of one kind */
+	private static final class FrameOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		private final char kind;
+
+		FrameOutputStream(OutputStream out, char kind)
+		{
+			this.out = out;
+			this.kind = kind;
+		}
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+				return;
+			synchronized(out)
+			{
+				out.write((kind + " " + len + "\n").getBytes("UTF-8"));
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+	}
+
+	private static void logHelp()
+	{
+		LOG.info("Usage: svm_daemon [options]");
+		LOG.info("");
+		LOG.info("Runs svm_train, svm_predict and svm_scale jobs sent by svm_client,");
+		LOG.info("one at a time, in this JVM. Only clients that can read the token file");
+		LOG.info("~/.libsvm_daemon_port.token, which is readable by this user only, may send jobs.");
+		LOG.info("");
+		LOG.info("Options:");
+		LOG.info("-p port : listen on this loopback port (default " + DEFAULT_PORT + ")");
+		LOG.info("--help : display this help and exit");
+		LOG.info("--version : output version information and exit");
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		svm_train.setupLogging();
+
+		int port = DEFAULT_PORT;
+		try
+		{
+			for(int i=0;i<argv.length;i++)
+			{
+				if(argv[i].equals("--help"))
+				{
+					logHelp();
+					System.exit(0);
+				}
+				if(argv[i].equals("--version"))
+				{
+					LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-daemon", svm.getVersion()});
+					System.exit(0);
+				}
+				if(!argv[i].equals("-p"))
+					throw new IllegalArgumentException("Unknown option: " + argv[i]);
+				if(++i >= argv.length)
+					throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+				port = Integer.parseInt(argv[i]);
+			}
+		}
+		catch(IllegalArgumentException ex)
+		{
+			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
+			logHelp();
+			System.exit(1);
+		}
+
+		ServerSocket server_socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		final String token;
+		try
+		{
+			token = create_token(server_socket.getLocalPort());
+		}
+		catch(IOException ex)
+		{
+			LOG.log(Level.SEVERE, "can't write token file " + token_file(server_socket.getLocalPort()), ex);
+			System.exit(1);
+			return;
+		}
+		LOG.log(Level.INFO, "Accepting jobs on 127.0.0.1:{0}", Integer.toString(server_socket.getLocalPort()));
+		ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "svm-daemon-job");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		while(true)
+		{
+			final Socket socket = server_socket.accept();
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					serve(socket, token);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the file the token of the daemon on a port is kept in
+	 */
+	static File token_file(int port)
+	{
+		return new File(System.getProperty("user.home"), ".libsvm_daemon_" + port + ".token");
+	}
+
+	/**
+	 * @return the token in the token file of a port, <code>null</code> if it cannot be read
+	 */
+	static String read_token(int port)
+	{
+		try
+		{
+			return new String(Files.readAllBytes(token_file(port).toPath()), "UTF-8").trim();
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a new random token to the token file of a port, readable by the owner only.
+	 * @return the token
+	 */
+	private static String create_token(int port) throws IOException
+	{
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for(int k=0;k<bytes.length;k++)
+			token.append(String.format("%02x", bytes[k] & 0xff));
+
+		Path path = token_file(port).toPath();
+		// a fresh file, so no one else holds it open or links it elsewhere
+		Files.deleteIfExists(path);
+		try
+		{
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch(UnsupportedOperationException e)
+		{
+			// not a POSIX file system
+			File file = path.toFile();
+			if(!file.createNewFile())
+				throw new IOException("cannot create " + file);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, token.toString().getBytes("UTF-8"));
+		path.toFile().deleteOnExit();
+		return token.toString();
+	}
+
+	private static void serve(Socket socket, String token)
+	{
+		try
+		{
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			String tool = null;
+			File cwd = null;
+			List<String> args = new ArrayList<String>();
+			if(!"libsvm-job".equals(read_line(in)))
+				throw new IOException("not a job");
+			String line = read_line(in);
+			if(line == null || !line.startsWith("token ") ||
+			   !MessageDigest.isEqual(line.substring(6).getBytes("UTF-8"), token.getBytes("UTF-8")))
+			{
+				LOG.warning("Refused a job with a wrong token");
+				byte[] message = "svm_daemon: wrong token\n".getBytes("UTF-8");
+				out.write(("e " + message.length + "\n").getBytes("UTF-8"));
+				out.write(message);
+				out.write("x 1\n".getBytes("UTF-8"));
+				out.flush();
+				return;
+			}
+			while((line = read_line(in)) != null && !line.equals("end"))
+			{
+				if(line.startsWith("cwd "))
+					cwd = new File(line.substring(4));
+				else if(line.startsWith("tool "))
+					tool = line.substring(5);
+				else if(line.startsWith("arg "))
+					args.add(line.substring(4));
+				else
+					throw new IOException("unknown request line: " + line);
+			}
+			if(line == null || tool == null || cwd == null)
+				throw new IOException("incomplete job");
+
+			int status;
+			synchronized(svm_daemon.class)
+			{
+				status = run(tool, resolve(tool, args, cwd), out);
+			}
+			out.write(("x " + status + "\n").getBytes("UTF-8"));
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			LOG.log(Level.WARNING, "Job failed", e);
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Runs a tool with its output sent to the client.
+	 * @return the exit status
+	 */
+	private static int run(String tool, String[] argv, OutputStream out)
+	{
+		PrintStream saved_out = System.out;
+		PrintStream saved_err = System.err;
+		PrintStream job_out = new PrintStream(new FrameOutputStream(out, 'o'), true);
+		PrintStream job_err = new PrintStream(new FrameOutputStream(out, 'e'), true);
+		int status = 0;
+		System.setOut(job_out);
+		System.setErr(job_err);
+		// log to the job's System.err
+		svm_train.setupLogging();
+		try
+		{
+			if(tool.equals("svm_train"))
+				status = svm_train.run(argv);
+			else if(tool.equals("svm_predict"))
+				status = svm_predict.run(argv);
+			else if(tool.equals("svm_scale"))
+				status = svm_scale.run(argv);
+			else
+			{
+				job_err.println("svm_daemon: unknown tool " + tool);
+				status = 1;
+			}
+		}
+		catch(Throwable e)
+		{
+			e.printStackTrace(job_err);
+			status = 1;
+		}
+		finally
+		{
+			job_out.flush();
+			job_err.flush();
+			System.setOut(saved_out);
+			System.setErr(saved_err);
+			// logging went to the job's System.err, and -q turns the library log off
+			svm_train.setupLogging();
+			svm.svm_setLogLevel(null);
+		}
+		return status;
+	}
+
+	/**
+	 * @return the arguments with relative file names resolved against cwd
+	 */
+	static String[] resolve(String tool, List<String> args, File cwd)
+	{
+		int n = args.size();
+		List<String> resolved = new ArrayList<String>(n+1);
+		int nr_files = 0;
+		String first_file = null;
+		boolean cross_validation = false;
+		for(int i=0;i<n;i++)
+		{
+			String arg = args.get(i);
+			if(arg.startsWith("-") && !is_number(arg))
+			{
+				resolved.add(arg);
+				if(arg.equals("-v"))
+					cross_validation = true;
+				// the value of an option, a file name for those taking one
+				if(!is_flag(arg) && i+1 < n)
+					resolved.add(resolve(args.get(++i), cwd));
+				continue;
+			}
+			resolved.add(resolve(arg, cwd));
+			if(!is_number(arg) && nr_files++ == 0)
+				first_file = arg;
+		}
+		// svm_train writes the model next to the client, not the daemon
+		if(tool.equals("svm_train") && !cross_validation && nr_files == 1)
+		{
+			String name = first_file.substring(first_file.lastIndexOf('/')+1);
+			resolved.add(new File(cwd, name + ".model").getPath());
+		}
+		return resolved.toArray(new String[resolved.size()]);
+	}
+
+	private static String resolve(String arg, File cwd)
+	{
+		if(is_number(arg) || new File(arg).isAbsolute())
+			return arg;
+		return new File(cwd, arg).getPath();
+	}
+
+	/**
+	 * @return whether an option takes no value
+	 */
+	private static boolean is_flag(String option)
+	{
+		return option.equals("-q") || option.equals("--help") || option.equals("--version") ||
+			option.equals("--collapse") || option.equals("--early-exit") || option.equals("--sv-kernel") ||
+			option.equals("--dedup");
+	}
+
+	private static boolean is_number(String s)
+	{
+		try
+		{
+			Double.parseDouble(s);
+			return true;
+		}
+		catch(NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return the next UTF-8 line without its terminator, <code>null</code> at the end of the stream
+	 */
+	static String read_line(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while((c = in.read()) >= 0 && c != '\n')
+			line.write(c);
+		if(c < 0 && line.size() == 0)
+			return null;
+		return line.toString("UTF-8");
+	}
+}
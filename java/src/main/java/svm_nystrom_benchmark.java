@@ -0,0 +1,192 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import libsvm.svm;
+import libsvm.svm_parameter;
+import libsvm.svm_pipeline;
+import libsvm.svm_problem;
+
+/**
+ * Compares the cross validation accuracy and training time
+ * of Nystrom approximations with m landmarks against exact training.
+ */
+class svm_nystrom_benchmark
+{
+	private static final Logger LOG = Logger.getLogger(svm_nystrom_benchmark.class.getName());
+
+	private static void logHelp()
+	{
+		LOG.info("Usage: svm_nystrom_benchmark [options] data_file");
+		LOG.info("");
+		LOG.info("Compares cross validation results of Nystrom approximations with exact training,");
+		LOG.info("e.g. svm_nystrom_benchmark ../heart_scale");
+		LOG.info("");
+		LOG.info("Options:");
+		LOG.info("-s svm_type : 0 -- C-SVC, 3 -- epsilon-SVR (default 0)");
+		LOG.info("-t kernel_type : set type of kernel function (default 2)");
+		LOG.info("-g gamma : set gamma in kernel function (default 1/num_features)");
+		LOG.info("-c cost : set the parameter C (default 1)");
+		LOG.info("-v n : n-fold cross validation (default 5)");
+		LOG.info("-m m1,m2,... : numbers of landmarks (default 10,20,50,100,200,500)");
+		LOG.info("-a method : landmark sampling, 0 -- random, 1 -- k-means (default 0);");
+		LOG.info("	k-means samples at random instead if m times the number of features exceeds 2^24");
+		LOG.info("--help : display this help and exit");
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		svm_train.setupLogging();
+
+		svm_parameter param = new svm_parameter();
+		param.svm_type = svm_parameter.C_SVC;
+		param.kernel_type = svm_parameter.RBF;
+		param.degree = 3;
+		param.gamma = 0;
+		param.coef0 = 0;
+		param.nu = 0.5;
+		param.cache_size = 100;
+		param.C = 1;
+		param.eps = 1e-3;
+		param.p = 0.1;
+		param.shrinking = 1;
+		param.probability = 0;
+		param.nr_weight = 0;
+		param.weight_label = new int[0];
+		param.weight = new double[0];
+		param.nystrom_sampling = svm_parameter.NYSTROM_RANDOM;
+		int nr_fold = 5;
+		String landmarks = "10,20,50,100,200,500";
+
+		int i;
+		try
+		{
+			for(i=0;i<argv.length;i++)
+			{
+				if(argv[i].charAt(0) != '-') break;
+				if(argv[i].equals("--help"))
+				{
+					logHelp();
+					System.exit(0);
+				}
+				if(++i >= argv.length)
+					throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+				switch(argv[i-1].charAt(1))
+				{
+					case 's':
+						param.svm_type = Integer.parseInt(argv[i]);
+						break;
+					case 't':
+						param.kernel_type = Integer.parseInt(argv[i]);
+						break;
+					case 'g':
+						param.gamma = Double.parseDouble(argv[i]);
+						break;
+					case 'c':
+						param.C = Double.parseDouble(argv[i]);
+						break;
+					case 'v':
+						nr_fold = Integer.parseInt(argv[i]);
+						break;
+					case 'm':
+						landmarks = argv[i];
+						break;
+					case 'a':
+						param.nystrom_sampling = Integer.parseInt(argv[i]);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option: " + argv[i-1]);
+				}
+			}
+			if(i >= argv.length)
+				throw new IllegalArgumentException("No data file-name given");
+		}
+		catch(IllegalArgumentException ex)
+		{
+			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
+			logHelp();
+			System.exit(1);
+			return;
+		}
+
+		svm_problem prob = read_problem(argv[i], param);
+		svm.svm_setLogLevel(Level.OFF);
+
+		String error_msg = svm.svm_check_parameter(prob,param);
+		if(error_msg != null)
+		{
+			LOG.severe(error_msg);
+			System.exit(1);
+		}
+
+		LOG.log(Level.INFO, "{0} instances, {1}-fold cross validation", new Object[] {prob.l, nr_fold});
+		LOG.info("landmarks\tresult\ttime (s)");
+		run(prob, param, nr_fold, "exact");
+		StringTokenizer st = new StringTokenizer(landmarks, ",");
+		while(st.hasMoreTokens())
+		{
+			int m = Integer.parseInt(st.nextToken().trim());
+			if(m > prob.l)
+				continue;
+			svm_parameter nystrom_param = (svm_parameter)param.clone();
+			nystrom_param.nystrom_landmarks = m;
+			run(prob, nystrom_param, nr_fold, Integer.toString(m));
+		}
+	}
+
+	private static void run(svm_problem prob, svm_parameter param, int nr_fold, String name)
+	{
+		double[] target = new double[prob.l];
+		// the same folds and landmark choices for each run
+		svm.rand.setSeed(0);
+		long start = System.nanoTime();
+		svm.svm_cross_validation(prob,param,nr_fold,target);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		String result;
+		// weighted instances count as often as their weights
+		double n = 0;
+		for(int i=0;i<prob.l;i++)
+			n += (prob.W == null) ? 1 : prob.W[i];
+		if(param.svm_type == svm_parameter.EPSILON_SVR ||
+		   param.svm_type == svm_parameter.NU_SVR)
+		{
+			double error = 0;
+			for(int i=0;i<prob.l;i++)
+				error += ((prob.W == null) ? 1 : prob.W[i])*(target[i]-prob.y[i])*(target[i]-prob.y[i]);
+			result = String.format("MSE %.4f", error/n);
+		}
+		else
+		{
+			double correct = 0;
+			for(int i=0;i<prob.l;i++)
+				if(target[i] == prob.y[i])
+					correct += (prob.W == null) ? 1 : prob.W[i];
+			result = String.format("accuracy %.3f%%", 100.0*correct/n);
+		}
+		LOG.info(String.format("%s\t%s\t%.3f", name, result, seconds));
+	}
+
+	/**
+	 * Reads a problem from file (in SVM-light format, with instance weights).
+	 */
+	private static svm_problem read_problem(String file_name, svm_parameter param) throws IOException
+	{
+		svm_pipeline.problem_builder builder = new svm_pipeline.problem_builder();
+		BufferedReader fp = new BufferedReader(new FileReader(file_name));
+		try
+		{
+			new svm_pipeline().run(fp, builder);
+		}
+		finally
+		{
+			fp.close();
+		}
+		int max_index = builder.get_max_index();
+		if(param.gamma == 0 && max_index > 0)
+			param.gamma = 1.0/max_index;
+		return builder.get_problem();
+	}
+}
@@ -12,6 +12,7 @@ import libsvm.svm;
 import libsvm.svm_model;
 import libsvm.svm_node;
 import libsvm.svm_parameter;
+import libsvm.svm_scaling;
 
 class svm_predict {
 	private static final Logger LOG = Logger.getLogger(svm_predict.class.getName());
@@ -26,13 +27,53 @@ class svm_predict {
 		return Integer.parseInt(s);
 	}
 
-	private static void predict(BufferedReader input, DataOutputStream output, svm_model model, int predict_probability) throws IOException
+	/** accuracy of predictions against the targets */
+	private static class Evaluation
 	{
 		int correct = 0;
 		int total = 0;
 		double error = 0;
 		double sumv = 0, sumy = 0, sumvv = 0, sumyy = 0, sumvy = 0;
 
+		void add(double v, double target)
+		{
+			if(v == target)
+				++correct;
+			error += (v-target)*(v-target);
+			sumv += v;
+			sumy += target;
+			sumvv += v*v;
+			sumyy += target*target;
+			sumvy += v*target;
+			++total;
+		}
+
+		void log(int svm_type)
+		{
+			if(svm_type == svm_parameter.EPSILON_SVR ||
+			   svm_type == svm_parameter.NU_SVR)
+			{
+				LOG.log(Level.INFO, "Mean squared error = {0} (regression)", error/total);
+				LOG.log(Level.INFO, "Squared correlation coefficient = {0} (regression)",
+						((total*sumvy-sumv*sumy)*(total*sumvy-sumv*sumy))
+						/ ((total*sumvv-sumv*sumv)*(total*sumyy-sumy*sumy)));
+			}
+			else
+			{
+				LOG.log(Level.INFO, "Accuracy = {0}% ({1}/{2}) (classification)",
+						new Object[] {(double)correct/total*100, correct, total});
+			}
+		}
+	}
+
+	/**
+	 * @param batch instances scored at once by svm_predict_batch, 1 for one at a time;
+	 *   0 for one at a time without reporting the throughput
+	 */
+	private static void predict(BufferedReader input, DataOutputStream output, svm_model model, int predict_probability, int batch) throws IOException
+	{
+		Evaluation evaluation = new Evaluation();
+
 		int svm_type=svm.svm_get_svm_type(model);
 		int nr_class=svm.svm_get_nr_class(model);
 		double[] prob_estimates=null;
@@ -56,61 +97,82 @@ class svm_predict {
 				output.writeBytes("\n");
 			}
 		}
+
+		// instances waiting to be scored
+		int size = Math.max(batch,1);
+		svm_node[][] xs = new svm_node[size][];
+		double[] targets = new double[size];
+		double[] vs = new double[size];
+		int n = 0;
+		long nanos = 0;
+		int scored = 0;
 		while(true)
 		{
 			String line = input.readLine();
-			if(line == null) break;
+			if(line != null)
+			{
+				StringTokenizer st = new StringTokenizer(line," \t\f:");
 
-			StringTokenizer st = new StringTokenizer(line," \t\f:");
+				double target = atof(st.nextToken());
+				// targets are compared in the scaled space of the predictions
+				if(model.scaling != null)
+					target = model.scaling.scale_target(target);
+				int m = st.countTokens()/2;
+				// the first index, after the instance weight cost:w of training data, if any
+				String token = (m > 0) ? st.nextToken() : null;
+				if("cost".equals(token))
+				{
+					st.nextToken();
+					m--;
+					token = (m > 0) ? st.nextToken() : null;
+				}
+				svm_node[] x = new svm_node[m];
+				for(int j=0;j<m;j++)
+				{
+					x[j] = new svm_node();
+					x[j].index = atoi((j == 0) ? token : st.nextToken());
+					x[j].value = atof(st.nextToken());
+				}
 
-			double target = atof(st.nextToken());
-			int m = st.countTokens()/2;
-			svm_node[] x = new svm_node[m];
-			for(int j=0;j<m;j++)
-			{
-				x[j] = new svm_node();
-				x[j].index = atoi(st.nextToken());
-				x[j].value = atof(st.nextToken());
+				if (predict_probability==1 && (svm_type==svm_parameter.C_SVC || svm_type==svm_parameter.NU_SVC))
+				{
+					double v = svm.svm_predict_probability(model,x,prob_estimates);
+					output.writeBytes(v+" ");
+					for(int j=0;j<nr_class;j++)
+						output.writeBytes(prob_estimates[j]+" ");
+					output.writeBytes("\n");
+					evaluation.add(v,target);
+					continue;
+				}
+				xs[n] = x;
+				targets[n] = target;
+				++n;
 			}
 
-			double v;
-			if (predict_probability==1 && (svm_type==svm_parameter.C_SVC || svm_type==svm_parameter.NU_SVC))
-			{
-				v = svm.svm_predict_probability(model,x,prob_estimates);
-				output.writeBytes(v+" ");
-				for(int j=0;j<nr_class;j++)
-					output.writeBytes(prob_estimates[j]+" ");
-				output.writeBytes("\n");
-			}
-			else
+			if(n == size || (line == null && n > 0))
 			{
-				v = svm.svm_predict(model,x);
-				output.writeBytes(v+"\n");
-			}
+				long start = System.nanoTime();
+				if(batch > 1)
+					svm.svm_predict_batch(model,xs,n,null,vs);
+				else
+					vs[0] = svm.svm_predict(model,xs[0]);
+				nanos += System.nanoTime() - start;
+				scored += n;
 
-			if(v == target)
-				++correct;
-			error += (v-target)*(v-target);
-			sumv += v;
-			sumy += target;
-			sumvv += v*v;
-			sumyy += target*target;
-			sumvy += v*target;
-			++total;
-		}
-		if(svm_type == svm_parameter.EPSILON_SVR ||
-		   svm_type == svm_parameter.NU_SVR)
-		{
-			LOG.log(Level.INFO, "Mean squared error = {0} (regression)", error/total);
-			LOG.log(Level.INFO, "Squared correlation coefficient = {0} (regression)",
-					((total*sumvy-sumv*sumy)*(total*sumvy-sumv*sumy))
-					/ ((total*sumvv-sumv*sumv)*(total*sumyy-sumy*sumy)));
-		}
-		else
-		{
-			LOG.log(Level.INFO, "Accuracy = {0}% ({1}/{2}) (classification)",
-					new Object[] {(double)correct/total*100, correct, total});
+				for(int q=0;q<n;q++)
+				{
+					output.writeBytes(vs[q]+"\n");
+					evaluation.add(vs[q],targets[q]);
+				}
+				n = 0;
+			}
+			if(line == null)
+				break;
 		}
+		evaluation.log(svm_type);
+		if(batch > 0 && scored > 0)
+			LOG.log(Level.INFO, "Throughput = {0} instances/s ({1} at a time)",
+					new Object[] {Math.round(scored/(nanos/1e9)), batch});
 	}
 
 	private static void logHelp()
@@ -122,6 +184,16 @@ class svm_predict {
 		LOG.info("");
 		LOG.info("Options:");
 		LOG.info("-b probability_estimates: whether to predict probability estimates, 0 or 1 (default 0); one-class SVM not supported yet");
+		LOG.info("--sv-kernel : for precomputed kernels, test_file rows hold kernel values against the support vectors only,");
+		LOG.info("	\"label 1:K(x,SV_1) ... n:K(x,SV_n)\", in the order listed by svm_sv_indices");
+		LOG.info("--collapse : for linear kernels, predict with one weight vector per decision function");
+		LOG.info("--batch n : score n instances at a time, and report the throughput (1: one at a time)");
+		LOG.info("--threads n : compute the kernel values of each instance on n threads, for large models (default 1)");
+		LOG.info("--sv-index epsilon : for RBF kernels, skip support vectors with kernel values below epsilon");
+		LOG.info("--early-exit : for binary and one-class models with RBF or sigmoid kernels,");
+		LOG.info("	stop evaluating support vectors once the label is certain");
+		LOG.info("--scale range_file : scale instances by the ranges of svm_scale -s, as svm_scale -r would,");
+		LOG.info("	except that features missing from range_file are dropped rather than scaled by their own ranges");
 		LOG.info("--help : display this help and exit");
 		LOG.info("--version : output version information and exit");
 	}
@@ -130,7 +202,23 @@ class svm_predict {
 	{
 		svm_train.setupLogging();
 
+		System.exit(run(argv));
+	}
+
+	/**
+	 * Runs svm_predict on a command line as main does, but returns the exit status
+	 * instead of exiting, so svm_daemon can run it in its JVM.
+	 */
+	static int run(String argv[]) throws IOException
+	{
 		int i, predict_probability=0;
+		boolean sv_kernel_rows=false;
+		boolean collapse=false;
+		boolean early_exit=false;
+		String scale_file=null;
+		double sv_index_epsilon=0;
+		int threads=1;
+		int batch=0;
 
 		try
 		{
@@ -154,12 +242,51 @@ class svm_predict {
 						if (longOptName.equals("help"))
 						{
 							logHelp();
-							System.exit(0);
+							return 0;
 						}
 						else if (longOptName.equals("version"))
 						{
 							LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-predict", svm.getVersion()});
-							System.exit(0);
+							return 0;
+						}
+						else if (longOptName.equals("collapse"))
+						{
+							collapse = true;
+							i--;
+						}
+						else if (longOptName.equals("batch"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							batch = atoi(argv[i]);
+						}
+						else if (longOptName.equals("threads"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							threads = atoi(argv[i]);
+						}
+						else if (longOptName.equals("sv-index"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							sv_index_epsilon = atof(argv[i]);
+						}
+						else if (longOptName.equals("scale"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							scale_file = argv[i];
+						}
+						else if (longOptName.equals("early-exit"))
+						{
+							early_exit = true;
+							i--;
+						}
+						else if (longOptName.equals("sv-kernel"))
+						{
+							sv_kernel_rows = true;
+							i--;
 						}
 						else
 						{
@@ -178,15 +305,64 @@ class svm_predict {
 				throw new IllegalArgumentException("No output file-name given");
 			try
 			{
-				BufferedReader input = new BufferedReader(new FileReader(argv[i]));
-				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(argv[i+2])));
 				svm_model model = svm.svm_load_model(argv[i+1]);
+				if(sv_kernel_rows)
+				{
+					if(model.param.kernel_type != svm_parameter.PRECOMPUTED)
+					{
+						LOG.severe("--sv-kernel needs a model with a precomputed kernel");
+						return 1;
+					}
+					model.sv_kernel_rows = true;
+				}
+				if(collapse)
+				{
+					if(model.param.kernel_type != svm_parameter.LINEAR)
+					{
+						LOG.severe("--collapse needs a model with a linear kernel");
+						return 1;
+					}
+					svm.svm_collapse_linear(model);
+				}
+				if(scale_file != null)
+				{
+					if(model.scaling != null)
+					{
+						LOG.severe("--scale: the model has feature ranges already");
+						return 1;
+					}
+					model.scaling = svm_scaling.load(scale_file);
+				}
+				if(sv_index_epsilon != 0)
+				{
+					try
+					{
+						svm.svm_build_sv_index(model,sv_index_epsilon);
+					}
+					catch(IllegalArgumentException ex)
+					{
+						LOG.severe("--sv-index: " + ex.getMessage());
+						return 1;
+					}
+				}
+				if(early_exit)
+				{
+					try
+					{
+						svm.svm_enable_early_exit(model);
+					}
+					catch(IllegalArgumentException ex)
+					{
+						LOG.severe("--early-exit: " + ex.getMessage());
+						return 1;
+					}
+				}
 				if(predict_probability == 1)
 				{
 					if(svm.svm_check_probability_model(model)==0)
 					{
 						LOG.severe("Model does not support probabiliy estimates");
-						System.exit(1);
+						return 1;
 					}
 				}
 				else
@@ -196,9 +372,29 @@ class svm_predict {
 						LOG.severe("Model supports probability estimates, but disabled in prediction.");
 					}
 				}
-				predict(input,output,model,predict_probability);
-				input.close();
-				output.close();
+				BufferedReader input = new BufferedReader(new FileReader(argv[i]));
+				DataOutputStream output = null;
+				try
+				{
+					output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(argv[i+2])));
+					if(threads > 1)
+						svm.svm_set_predict_threads(model,threads);
+					predict(input,output,model,predict_probability,batch);
+				}
+				finally
+				{
+					// stops the threads, which would outlive a run in svm_daemon
+					svm.svm_set_predict_threads(model,1);
+					input.close();
+					if(output != null)
+						output.close();
+				}
+				if(sv_index_epsilon != 0)
+					LOG.log(Level.INFO, "Distances computed = {0}% of the support vectors on average, decision value error < {1}",
+							new Object[] {100*model.sv_index.get_fraction(), model.sv_index.get_max_error()});
+				if(early_exit)
+					LOG.log(Level.INFO, "Support vectors evaluated = {0}% on average",
+							100*model.early_exit.get_fraction());
 			}
 			catch(FileNotFoundException ex)
 			{
@@ -213,7 +409,8 @@ class svm_predict {
 		{
 			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
 			logHelp();
-			System.exit(1);
+			return 1;
 		}
+		return 0;
 	}
 }
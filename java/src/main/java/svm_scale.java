@@ -1,19 +1,55 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import libsvm.svm;
 
+/**
+ * Scales data points to the requested range.
+ *
+ * The data file is memory-mapped and cut into chunks of whole lines.
+ * One parallel pass over the chunks finds the feature ranges,
+ * a second one scales them, and the scaled chunks are written
+ * to standard output in the order of the file.
+ */
 class svm_scale
 {
 	private static final Logger LOG = Logger.getLogger(svm_predict.class.getName());
 
-	private String line = null;
+	/** bytes per chunk, cut at the next line end */
+	private static final int CHUNK_SIZE = 16 << 20;
+
+	private static final double[] POW10 = new double[23];
+	static
+	{
+		POW10[0] = 1;
+		for(int i=1;i<POW10.length;i++)
+			POW10[i] = POW10[i-1] * 10;
+	}
+
 	private double lower = -1.0;
 	private double upper = 1.0;
 	private double y_lower;
@@ -26,6 +62,266 @@ class svm_scale
 	private int max_index;
 	private long num_nonzeros = 0;
 	private long new_num_nonzeros = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/** the scaled value of an absent feature, 0 for single-valued features */
+	private double[] zero_value;
+	/** the features whose absence scales to a nonzero value, ascending */
+	private int[] nonzero_absent;
+
+	/** lines [start, start+length) of the data file */
+	private static final class Chunk
+	{
+		final long start;
+		final int length;
+
+		Chunk(long start, int length)
+		{
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	/** the lines of a chunk, parsed one at a time as the tokens of " \t\f:" */
+	private static final class LineParser
+	{
+		private final MappedByteBuffer buf;
+		private final long start;
+		private int pos;
+		private final int end;
+
+		double target;
+		/** the instance weight given as cost:weight after the target, NaN if none */
+		double cost;
+		/** the number of index:value pairs of the line */
+		int n;
+		int[] index = new int[64];
+		double[] value = new double[64];
+
+		LineParser(MappedByteBuffer buf, long start)
+		{
+			this.buf = buf;
+			this.start = start;
+			this.end = buf.limit();
+		}
+
+		private static boolean is_delimiter(byte c)
+		{
+			return c == ' ' || c == '\t' || c == '\f' || c == ':' || c == '\r';
+		}
+
+		/** @return the start of the next token on this line, or -1 at its end */
+		private int next_token()
+		{
+			while(pos < end)
+			{
+				byte c = buf.get(pos);
+				if(c == '\n')
+					return -1;
+				if(!is_delimiter(c))
+					return pos;
+				pos++;
+			}
+			return -1;
+		}
+
+		/** @return the end of the token starting at pos */
+		private int token_end()
+		{
+			int p = pos;
+			while(p < end)
+			{
+				byte c = buf.get(p);
+				if(c == '\n' || is_delimiter(c))
+					break;
+				p++;
+			}
+			return p;
+		}
+
+		/**
+		 * Parses the next line, skipping blank ones.
+		 * @return false at the end of the chunk
+		 */
+		boolean next()
+		{
+			while(pos < end)
+			{
+				int line_start = pos;
+				if(next_token() < 0)
+				{
+					pos++;	// past the line end
+					continue;
+				}
+				try
+				{
+					target = parse_double(pos, token_end());
+					cost = Double.NaN;
+					if(next_token() >= 0 && is_cost(pos, token_end()))
+					{
+						pos = token_end();
+						if(next_token() < 0)
+							throw new NumberFormatException("missing cost");
+						cost = parse_double(pos, token_end());
+					}
+					n = 0;
+					while(next_token() >= 0)
+					{
+						if(n == index.length)
+						{
+							index = Arrays.copyOf(index, 2*n);
+							value = Arrays.copyOf(value, 2*n);
+						}
+						index[n] = parse_int(pos, token_end());
+						if(next_token() < 0)
+							throw new NumberFormatException("missing value of feature " + index[n]);
+						value[n] = parse_double(pos, token_end());
+						n++;
+					}
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IllegalArgumentException("Wrong input format in the line at byte " +
+						(start + line_start), e);
+				}
+				pos++;	// past the line end
+				return true;
+			}
+			return false;
+		}
+
+		private boolean is_cost(int from, int to)
+		{
+			return to-from == 4 && buf.get(from) == 'c' && buf.get(from+1) == 'o' &&
+				buf.get(from+2) == 's' && buf.get(from+3) == 't';
+		}
+
+		private String text(int from, int to)
+		{
+			byte[] b = new byte[to-from];
+			for(int i=from;i<to;i++)
+				b[i-from] = buf.get(i);
+			return new String(b, StandardCharsets.ISO_8859_1);
+		}
+
+		private int parse_int(int from, int to)
+		{
+			pos = to;
+			long v = 0;
+			int i = from;
+			boolean negative = buf.get(i) == '-';
+			if(negative || buf.get(i) == '+')
+				i++;
+			if(i == to || to-i > 9)
+				return Integer.parseInt(text(from, to));
+			for(;i<to;i++)
+			{
+				int d = buf.get(i) - '0';
+				if(d < 0 || d > 9)
+					return Integer.parseInt(text(from, to));
+				v = 10*v + d;
+			}
+			return (int)(negative ? -v : v);
+		}
+
+		/**
+		 * Plain decimals of up to 15 digits are exact as a long, and dividing
+		 * by an exact power of ten rounds correctly; others go to Double.parseDouble.
+		 */
+		private double parse_double(int from, int to)
+		{
+			pos = to;
+			long m = 0;
+			int digits = 0;
+			int fraction = -1;
+			int i = from;
+			boolean negative = buf.get(i) == '-';
+			if(negative || buf.get(i) == '+')
+				i++;
+			for(;i<to;i++)
+			{
+				byte c = buf.get(i);
+				if(c == '.' && fraction < 0)
+				{
+					fraction = 0;
+					continue;
+				}
+				int d = c - '0';
+				if(d < 0 || d > 9 || digits == 15)
+					return Double.parseDouble(text(from, to));
+				m = 10*m + d;
+				digits++;
+				if(fraction >= 0)
+					fraction++;
+			}
+			if(digits == 0 || fraction >= POW10.length)
+				return Double.parseDouble(text(from, to));
+			double v = (fraction > 0) ? m / POW10[fraction] : m;
+			return negative ? -v : v;
+		}
+	}
+
+	/** the ranges of the chunks one worker has read */
+	private static final class Stats
+	{
+		int max_index;
+		long lines;
+		long nonzeros;
+		double y_min = Double.MAX_VALUE;
+		double y_max = -Double.MAX_VALUE;
+		double[] min = new double[0];
+		double[] max = new double[0];
+		/** the number of lines each feature is present in */
+		long[] count = new long[0];
+
+		void add(LineParser p)
+		{
+			lines++;
+			nonzeros += p.n;
+			y_min = Math.min(y_min, p.target);
+			y_max = Math.max(y_max, p.target);
+			for(int j=0;j<p.n;j++)
+			{
+				int index = p.index[j];
+				if(index < 0)
+					throw new IllegalArgumentException("negative feature index " + index);
+				if(index >= count.length)
+					grow(index);
+				max_index = Math.max(max_index, index);
+				min[index] = Math.min(min[index], p.value[j]);
+				max[index] = Math.max(max[index], p.value[j]);
+				count[index]++;
+			}
+		}
+
+		private void grow(int index)
+		{
+			int n = count.length;
+			int m = Math.max(index+1, 2*n);
+			min = Arrays.copyOf(min, m);
+			max = Arrays.copyOf(max, m);
+			count = Arrays.copyOf(count, m);
+			Arrays.fill(min, n, m, Double.MAX_VALUE);
+			Arrays.fill(max, n, m, -Double.MAX_VALUE);
+		}
+
+		void merge(Stats s)
+		{
+			lines += s.lines;
+			nonzeros += s.nonzeros;
+			y_min = Math.min(y_min, s.y_min);
+			y_max = Math.max(y_max, s.y_max);
+			if(s.max_index >= count.length)
+				grow(s.max_index);
+			max_index = Math.max(max_index, s.max_index);
+			for(int i=0;i<=s.max_index && i<s.count.length;i++)
+			{
+				min[i] = Math.min(min[i], s.min[i]);
+				max[i] = Math.max(max[i], s.max[i]);
+				count[i] += s.count[i];
+			}
+		}
+	}
 
 	private static void logHelp()
 	{
@@ -39,6 +335,7 @@ class svm_scale
 		LOG.info("-y y_lower y_upper : y scaling limits (default: no y scaling)");
 		LOG.info("-s save_filename : save scaling parameters to save_filename");
 		LOG.info("-r restore_filename : restore scaling parameters from restore_filename");
+		LOG.info("--threads n : read and scale the data file on n threads (default: the number of processors)");
 		LOG.info("--help : display this help and exit");
 		LOG.info("--version : output version information and exit");
 
@@ -50,7 +347,7 @@ class svm_scale
 		return new BufferedReader(new FileReader(filename));
 	}
 
-	private void output_target(double value)
+	private double scale_target(double value)
 	{
 		double scaledValue = value;
 		if(y_scaling)
@@ -63,15 +360,17 @@ class svm_scale
 				scaledValue = y_lower + (y_upper-y_lower) *
 				(scaledValue-y_min) / (y_max-y_min);
 		}
-
-		LOG.log(Level.INFO, "{0} ", scaledValue);
+		return scaledValue;
 	}
 
-	private void output(int index, double value)
+	/**
+	 * @return the scaled value, 0 for single-valued attributes, which are skipped
+	 */
+	private double scale(int index, double value)
 	{
 		// skip single-valued attribute
 		if(feature_max[index] == feature_min[index])
-			return;
+			return 0;
 
 		double scaledValue = value;
 		if(scaledValue == feature_min[index])
@@ -82,24 +381,233 @@ class svm_scale
 			scaledValue = lower + (upper-lower) *
 				(scaledValue-feature_min[index])/
 				(feature_max[index]-feature_min[index]);
+		return scaledValue;
+	}
+
+	/**
+	 * Writes a value exactly: integers without a fraction, others as by Double.toString.
+	 */
+	private static void write_value(ByteArrayOutputStream out, double value)
+	{
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			write_ascii(out, Long.toString((long)value));
+		else
+			write_ascii(out, Double.toString(value));
+	}
+
+	private static void write_ascii(ByteArrayOutputStream out, String s)
+	{
+		for(int i=0;i<s.length();i++)
+			out.write(s.charAt(i));
+	}
+
+	/**
+	 * @return the chunks of whole lines the file is cut into
+	 */
+	private static List<Chunk> split(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = 0;
+		while(start < size)
+		{
+			// the chunk ends after the first line end at or past start+CHUNK_SIZE-1
+			long end = start + CHUNK_SIZE - 1;
+			boolean found = false;
+			while(!found && end < size)
+			{
+				probe.clear();
+				int r = channel.read(probe, end);
+				if(r <= 0)
+					break;
+				for(int i=0;i<r;i++)
+					if(probe.get(i) == '\n')
+					{
+						end += i + 1;
+						found = true;
+						break;
+					}
+				if(!found)
+					end += r;
+			}
+			end = Math.min(end, size);
+			if(end - start > Integer.MAX_VALUE)
+				throw new IOException("line longer than 2 GB at byte " + start);
+			chunks.add(new Chunk(start, (int)(end - start)));
+			start = end;
+		}
+		return chunks;
+	}
+
+	private static LineParser parser(FileChannel channel, Chunk chunk) throws IOException
+	{
+		return new LineParser(channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.length), chunk.start);
+	}
+
+	/**
+	 * pass 1: find out max index, min/max value and nonzeros of the data,
+	 * on worker threads that each take the next chunk until none are left
+	 */
+	private Stats find_ranges(ThreadPoolExecutor executor, final FileChannel channel, final List<Chunk> chunks)
+		throws IOException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Stats>> workers = new ArrayList<Callable<Stats>>();
+		for(int t=0;t<threads;t++)
+		{
+			workers.add(new Callable<Stats>()
+			{
+				public Stats call() throws IOException
+				{
+					Stats stats = new Stats();
+					int k;
+					while((k = next.getAndIncrement()) < chunks.size())
+					{
+						LineParser p = parser(channel, chunks.get(k));
+						while(p.next())
+							stats.add(p);
+					}
+					return stats;
+				}
+			});
+		}
+		Stats total = new Stats();
+		try
+		{
+			for(Future<Stats> f : executor.invokeAll(workers))
+				total.merge(get(f));
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException("interrupted", e);
+		}
+		return total;
+	}
 
-		if(scaledValue != 0)
+	/**
+	 * pass 2: scale the chunks on worker threads and write them in order,
+	 * with at most threads+2 scaled chunks held in memory
+	 */
+	private void write_scaled(ThreadPoolExecutor executor, final FileChannel channel, List<Chunk> chunks)
+		throws IOException
+	{
+		ArrayDeque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<Future<ByteArrayOutputStream>>();
+		final long[] nonzeros = new long[chunks.size()];
+		int submitted = 0;
+		int written = 0;
+		while(written < chunks.size())
 		{
-			LOG.log(Level.INFO, "{0}:{1} ", new Object[] {index, scaledValue});
-			new_num_nonzeros++;
+			while(submitted < chunks.size() && pending.size() < threads+2)
+			{
+				final Chunk chunk = chunks.get(submitted);
+				final int k = submitted++;
+				pending.add(executor.submit(new Callable<ByteArrayOutputStream>()
+				{
+					public ByteArrayOutputStream call() throws IOException
+					{
+						ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length + chunk.length/2);
+						nonzeros[k] = scale_chunk(parser(channel, chunk), out);
+						return out;
+					}
+				}));
+			}
+			ByteArrayOutputStream out = get(pending.poll());
+			out.writeTo(System.out);
+			written++;
+		}
+		System.out.flush();
+		for(long n : nonzeros)
+			new_num_nonzeros += n;
+	}
+
+	/**
+	 * @return the number of nonzeros written
+	 */
+	private long scale_chunk(LineParser p, ByteArrayOutputStream out)
+	{
+		long nonzeros = 0;
+		while(p.next())
+		{
+			write_value(out, scale_target(p.target));
+			out.write(' ');
+			// instance weights are kept as they are
+			if(!Double.isNaN(p.cost))
+			{
+				write_ascii(out, "cost:");
+				write_value(out, p.cost);
+				out.write(' ');
+			}
+			// absent features only need writing if they scale to nonzero values
+			int a = 0;
+			for(int j=0;j<p.n;j++)
+			{
+				int index = p.index[j];
+				for(;a<nonzero_absent.length && nonzero_absent[a]<index;a++)
+				{
+					write_pair(out, nonzero_absent[a], zero_value[nonzero_absent[a]]);
+					nonzeros++;
+				}
+				if(a<nonzero_absent.length && nonzero_absent[a]==index)
+					a++;
+				if(index > max_index)
+					continue;
+				double v = scale(index, p.value[j]);
+				if(v != 0)
+				{
+					write_pair(out, index, v);
+					nonzeros++;
+				}
+			}
+			for(;a<nonzero_absent.length;a++)
+			{
+				write_pair(out, nonzero_absent[a], zero_value[nonzero_absent[a]]);
+				nonzeros++;
+			}
+			out.write('\n');
 		}
+		return nonzeros;
+	}
+
+	private static void write_pair(ByteArrayOutputStream out, int index, double value)
+	{
+		write_ascii(out, Integer.toString(index));
+		out.write(':');
+		write_value(out, value);
+		out.write(' ');
 	}
 
-	private String readline(BufferedReader fp) throws IOException
+	/**
+	 * @return the result of a worker, with its failure rethrown as it was
+	 */
+	private static <T> T get(Future<T> f) throws IOException
 	{
-		line = fp.readLine();
-		return line;
+		try
+		{
+			return f.get();
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException("interrupted", e);
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
 	}
 
-	private void run(String []argv) throws IOException
+	private int process(String []argv) throws IOException
 	{
-		int i,index;
-		BufferedReader fp = null, fp_restore = null;
+		int i;
+		RandomAccessFile fp = null;
+		BufferedReader fp_restore = null;
 		String save_filename = null;
 		String restore_filename = null;
 		String data_filename = null;
@@ -136,12 +644,20 @@ class svm_scale
 						if (longOptName.equals("help"))
 						{
 							logHelp();
-							System.exit(0);
+							return 0;
 						}
 						else if (longOptName.equals("version"))
 						{
 							LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-scale", svm.getVersion()});
-							System.exit(0);
+							return 0;
+						}
+						else if (longOptName.equals("threads"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							threads = Integer.parseInt(argv[i]);
+							if (threads < 1)
+								throw new IllegalArgumentException("--threads must be at least 1");
 						}
 						else
 						{
@@ -167,7 +683,7 @@ class svm_scale
 
 			data_filename = argv[i];
 			try {
-				fp = new BufferedReader(new FileReader(data_filename));
+				fp = new RandomAccessFile(data_filename, "r");
 			} catch (Exception ex) {
 				throw new IllegalArgumentException("Can't open file " + data_filename, ex);
 			}
@@ -176,11 +692,11 @@ class svm_scale
 		{
 			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
 			logHelp();
-			System.exit(1);
+			return 1;
 		}
 
 		// assumption: min index of attributes is 1
-		// pass 1: find out max index of attributes
+		// the max index of the restore file counts too
 		max_index = 0;
 
 		if(restore_filename != null)
@@ -192,7 +708,8 @@ class svm_scale
 			}
 			catch (Exception e) {
 				LOG.log(Level.SEVERE, "can't open file " + restore_filename, e);
-				System.exit(1);
+				fp.close();
+				return 1;
 			}
 			if((c = fp_restore.read()) == 'y')
 			{
@@ -213,184 +730,175 @@ class svm_scale
 			fp_restore = rewind(fp_restore, restore_filename);
 		}
 
-		while (readline(fp) != null)
-		{
-			StringTokenizer st = new StringTokenizer(line," \t\f:");
-			st.nextToken();
-			while(st.hasMoreTokens())
-			{
-				index = Integer.parseInt(st.nextToken());
-				max_index = Math.max(max_index, index);
-				st.nextToken();
-				num_nonzeros++;
-			}
-		}
-
-		try {
-			feature_max = new double[(max_index+1)];
-			feature_min = new double[(max_index+1)];
-		} catch(OutOfMemoryError e) {
-			LOG.log(Level.SEVERE, "can't allocate enough memory", e);
-			System.exit(1);
-		}
-
-		for(i=0;i<=max_index;i++)
+		FileChannel channel = fp.getChannel();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "svm-scale");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try
 		{
-			feature_max[i] = -Double.MAX_VALUE;
-			feature_min[i] = Double.MAX_VALUE;
-		}
-
-		fp = rewind(fp, data_filename);
+			List<Chunk> chunks = split(channel);
 
-		// pass 2: find out min/max value
-		while(readline(fp) != null)
-		{
-			int next_index = 1;
-			double target;
-			double value;
+			// pass 1: find out max index and min/max value
+			Stats stats = find_ranges(executor, channel, chunks);
+			max_index = Math.max(max_index, stats.max_index);
+			num_nonzeros = stats.nonzeros;
+			y_min = stats.y_min;
+			y_max = stats.y_max;
 
-			StringTokenizer st = new StringTokenizer(line," \t\f:");
-			target = Double.parseDouble(st.nextToken());
-			y_max = Math.max(y_max, target);
-			y_min = Math.min(y_min, target);
+			try {
+				feature_max = new double[(max_index+1)];
+				feature_min = new double[(max_index+1)];
+			} catch(OutOfMemoryError e) {
+				LOG.log(Level.SEVERE, "can't allocate enough memory", e);
+				return 1;
+			}
 
-			while (st.hasMoreTokens())
+			for(i=0;i<=max_index;i++)
 			{
-				index = Integer.parseInt(st.nextToken());
-				value = Double.parseDouble(st.nextToken());
-
-				for (i = next_index; i<index; i++)
+				feature_max[i] = -Double.MAX_VALUE;
+				feature_min[i] = Double.MAX_VALUE;
+				if(i < stats.count.length)
+				{
+					feature_max[i] = stats.max[i];
+					feature_min[i] = stats.min[i];
+				}
+				// a feature absent from a line has the value 0 there
+				if(i > 0 && stats.lines > 0 && (i >= stats.count.length || stats.count[i] < stats.lines))
 				{
 					feature_max[i] = Math.max(feature_max[i], 0);
 					feature_min[i] = Math.min(feature_min[i], 0);
 				}
-
-				feature_max[index] = Math.max(feature_max[index], value);
-				feature_min[index] = Math.min(feature_min[index], value);
-				next_index = index + 1;
 			}
 
-			for(i=next_index;i<=max_index;i++)
+			// pass 1.5: save/restore feature_min/feature_max
+			if(restore_filename != null)
 			{
-				feature_max[i] = Math.max(feature_max[i], 0);
-				feature_min[i] = Math.min(feature_min[i], 0);
-			}
-		}
-
-		fp = rewind(fp, data_filename);
+				// fp_restore rewinded in finding max_index
+				int idx, c;
+				double fmin, fmax;
 
-		// pass 2.5: save/restore feature_min/feature_max
-		if(restore_filename != null)
-		{
-			// fp_restore rewinded in finding max_index
-			int idx, c;
-			double fmin, fmax;
-
-			fp_restore.mark(2); // for reset
-			if((c = fp_restore.read()) == 'y')
-			{
-				fp_restore.readLine(); // pass the '\n' after 'y'
-				StringTokenizer st = new StringTokenizer(fp_restore.readLine());
-				y_lower = Double.parseDouble(st.nextToken());
-				y_upper = Double.parseDouble(st.nextToken());
-				st = new StringTokenizer(fp_restore.readLine());
-				y_min = Double.parseDouble(st.nextToken());
-				y_max = Double.parseDouble(st.nextToken());
-				y_scaling = true;
-			}
-			else
-				fp_restore.reset();
-
-			if(fp_restore.read() == 'x') {
-				fp_restore.readLine(); // pass the '\n' after 'x'
-				StringTokenizer st = new StringTokenizer(fp_restore.readLine());
-				lower = Double.parseDouble(st.nextToken());
-				upper = Double.parseDouble(st.nextToken());
-				String restore_line;
-				while((restore_line = fp_restore.readLine())!=null)
+				fp_restore.mark(2); // for reset
+				if((c = fp_restore.read()) == 'y')
 				{
-					StringTokenizer st2 = new StringTokenizer(restore_line);
-					idx = Integer.parseInt(st2.nextToken());
-					fmin = Double.parseDouble(st2.nextToken());
-					fmax = Double.parseDouble(st2.nextToken());
-					if (idx <= max_index)
+					fp_restore.readLine(); // pass the '\n' after 'y'
+					StringTokenizer st = new StringTokenizer(fp_restore.readLine());
+					y_lower = Double.parseDouble(st.nextToken());
+					y_upper = Double.parseDouble(st.nextToken());
+					st = new StringTokenizer(fp_restore.readLine());
+					y_min = Double.parseDouble(st.nextToken());
+					y_max = Double.parseDouble(st.nextToken());
+					y_scaling = true;
+				}
+				else
+					fp_restore.reset();
+
+				if(fp_restore.read() == 'x') {
+					fp_restore.readLine(); // pass the '\n' after 'x'
+					StringTokenizer st = new StringTokenizer(fp_restore.readLine());
+					lower = Double.parseDouble(st.nextToken());
+					upper = Double.parseDouble(st.nextToken());
+					String restore_line;
+					while((restore_line = fp_restore.readLine())!=null)
 					{
-						feature_min[idx] = fmin;
-						feature_max[idx] = fmax;
+						StringTokenizer st2 = new StringTokenizer(restore_line);
+						idx = Integer.parseInt(st2.nextToken());
+						fmin = Double.parseDouble(st2.nextToken());
+						fmax = Double.parseDouble(st2.nextToken());
+						if (idx <= max_index)
+						{
+							feature_min[idx] = fmin;
+							feature_max[idx] = fmax;
+						}
 					}
 				}
+				fp_restore.close();
 			}
-			fp_restore.close();
-		}
 
-		if(save_filename != null)
-		{
-			Formatter formatter = new Formatter(new StringBuilder());
-			BufferedWriter fp_save = null;
+			if(save_filename != null)
+			{
+				Formatter formatter = new Formatter(new StringBuilder());
+				BufferedWriter fp_save = null;
+
+				try {
+					fp_save = new BufferedWriter(new FileWriter(save_filename));
+				} catch(IOException e) {
+					LOG.log(Level.SEVERE, "can't open file " + save_filename, e);
+					return 1;
+				}
 
-			try {
-				fp_save = new BufferedWriter(new FileWriter(save_filename));
-			} catch(IOException e) {
-				LOG.log(Level.SEVERE, "can't open file " + save_filename, e);
-				System.exit(1);
+				if(y_scaling)
+				{
+					formatter.format("y%n");
+					formatter.format("%.16g %.16g%n", y_lower, y_upper);
+					formatter.format("%.16g %.16g%n", y_min, y_max);
+				}
+				formatter.format("x%n");
+				formatter.format("%.16g %.16g%n", lower, upper);
+				for(i=1;i<=max_index;i++)
+				{
+					if(feature_min[i] != feature_max[i])
+						formatter.format("%d %.16g %.16g%n", i, feature_min[i], feature_max[i]);
+				}
+				fp_save.write(formatter.toString());
+				fp_save.close();
 			}
 
-			if(y_scaling)
-			{
-				formatter.format("y%n");
-				formatter.format("%.16g %.16g%n", y_lower, y_upper);
-				formatter.format("%.16g %.16g%n", y_min, y_max);
-			}
-			formatter.format("x%n");
-			formatter.format("%.16g %.16g%n", lower, upper);
+			zero_value = new double[max_index+1];
+			int nr_nonzero_absent = 0;
 			for(i=1;i<=max_index;i++)
 			{
-				if(feature_min[i] != feature_max[i])
-					formatter.format("%d %.16g %.16g%n", i, feature_min[i], feature_max[i]);
+				zero_value[i] = scale(i, 0);
+				if(zero_value[i] != 0)
+					nr_nonzero_absent++;
 			}
-			fp_save.write(formatter.toString());
-			fp_save.close();
-		}
+			nonzero_absent = new int[nr_nonzero_absent];
+			nr_nonzero_absent = 0;
+			for(i=1;i<=max_index;i++)
+				if(zero_value[i] != 0)
+					nonzero_absent[nr_nonzero_absent++] = i;
 
-		// pass 3: scale
-		while(readline(fp) != null)
+			// pass 2: scale
+			write_scaled(executor, channel, chunks);
+		}
+		finally
 		{
-			int next_index = 1;
-			double target;
-			double value;
-
-			StringTokenizer st = new StringTokenizer(line," \t\f:");
-			target = Double.parseDouble(st.nextToken());
-			output_target(target);
-			while(st.hasMoreElements())
-			{
-				index = Integer.parseInt(st.nextToken());
-				value = Double.parseDouble(st.nextToken());
-				for (i = next_index; i<index; i++)
-					output(i, 0);
-				output(index, value);
-				next_index = index + 1;
-			}
-
-			for(i=next_index;i<= max_index;i++)
-				output(i, 0);
-			LOG.info("");
+			executor.shutdown();
+			fp.close();
+			if(fp_restore != null)
+				fp_restore.close();
 		}
+
 		if (new_num_nonzeros > num_nonzeros)
 		{
 			LOG.log(Level.WARNING, "original #nonzeros {0}", num_nonzeros);
 			LOG.log(Level.WARNING, "new      #nonzeros {0}", new_num_nonzeros);
 			LOG.log(Level.WARNING, "Use -l 0 if many original feature values are zeros");
 		}
+		return 0;
+	}
 
-		fp.close();
+	/**
+	 * Runs svm_scale on a command line as main does, but returns the exit status
+	 * instead of exiting, so svm_daemon can run it in its JVM.
+	 */
+	static int run(String argv[]) throws IOException
+	{
+		return new svm_scale().process(argv);
 	}
 
 	public static void main(String argv[]) throws IOException
 	{
 		svm_train.setupLogging();
 
-		svm_scale s = new svm_scale();
-		s.run(argv);
+		System.exit(run(argv));
 	}
 }
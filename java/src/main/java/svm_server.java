@@ -0,0 +1,900 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import libsvm.svm;
+import libsvm.svm_batching_predictor;
+import libsvm.svm_model;
+import libsvm.svm_model_registry;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+import libsvm.svm_prediction_cache;
+
+/**
+ * Serves predictions of models on the loopback interface,
+ * by a line protocol over TCP and by HTTP/1.1.
+ *
+ * Line protocol: each request line is answered by one response line, in order,
+ * so clients may send many requests before reading the responses.
+ * <code>
+ *   [model=name] [label|values|prob] row   the prediction of a LIBSVM-format row, the target label being optional;
+ *                             "values" appends the decision values, "prob" the probability estimates
+ *   [model=name] labels       "labels" and the labels of the model, in the order of the estimates
+ *   [model=name] reload       loads the model file again, to replace the model once loaded
+ *   models                    "models" and name:version:bytes of each model, version 0 if unloaded
+ *   stats                     the counters
+ * </code>
+ * Requests naming no model are for the first model given.
+ * Failed requests are answered by "error" and a message.
+ *
+ * HTTP: <code>POST /predict?model=name&amp;output=label|values|prob</code> with one row per line
+ * of the body answers one line per row as above; <code>GET /labels?model=name</code>,
+ * <code>POST /reload?model=name</code>, <code>GET /models</code>
+ * and <code>GET /stats</code> answer as the line protocol.
+ * Connections are kept alive and pipelined requests are answered in order.
+ *
+ * Models are held by an svm_model_registry, so they are replaced without
+ * interrupting requests, and unloaded and loaded again to fit a memory budget.
+ * With --cache, repeated rows are answered from an svm_prediction_cache per model version.
+ * The batching predictor and the cache of a version are dropped with the version,
+ * so a model unloaded for the budget does not stay on the heap through them.
+ * Each connection is served by a thread of its own.
+ */
+class svm_server
+{
+	private static final Logger LOG = Logger.getLogger(svm_server.class.getName());
+
+	private static final int OUTPUT_LABEL = 0;
+	private static final int OUTPUT_VALUES = 1;
+	private static final int OUTPUT_PROB = 2;
+
+	/** longest request line or HTTP body accepted, in bytes */
+	private static final int MAX_REQUEST = 1 << 24;
+
+	private final svm_model_registry registry;
+	/** the model of requests naming none */
+	private final String default_model;
+	/** the most label requests scored together, 1 to score them one by one */
+	private final int batch;
+	private final long batch_delay;
+	/**
+	 * The batching predictor of each version of a model, by name:version;
+	 * closed when the registry drops the version. Guarded by itself.
+	 */
+	private final Map<String, svm_batching_predictor> batchers = new HashMap<String, svm_batching_predictor>();
+	/** the most predictions cached per model, 0 for no caching */
+	private final long cache_entries;
+	private final long cache_bytes;
+	/**
+	 * The prediction cache of each version of a model, by name:version;
+	 * dropped when the registry drops the version. Guarded by itself.
+	 */
+	private final Map<String, svm_prediction_cache> caches = new HashMap<String, svm_prediction_cache>();
+	/** the counters of the caches dropped; guarded by caches */
+	private long dropped_hits, dropped_misses, dropped_invalidations;
+	private final ExecutorService executor;
+	private final long started = System.nanoTime();
+
+	// counters
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong total_latency = new AtomicLong();
+	private final AtomicLong max_latency = new AtomicLong();
+
+	svm_server(svm_model_registry registry, String default_model, int batch, long batch_delay,
+		long cache_entries, long cache_bytes)
+	{
+		this.registry = registry;
+		this.default_model = default_model;
+		this.batch = batch;
+		this.batch_delay = batch_delay;
+		this.cache_entries = cache_entries;
+		this.cache_bytes = cache_bytes;
+		// the batchers and caches of a version must not keep its model on the heap
+		registry.add_unload_listener(new svm_model_registry.unload_listener()
+		{
+			public void unloaded(String name, int version)
+			{
+				drop(name + ":" + version);
+			}
+		});
+		executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "svm-server-connection");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static void logHelp()
+	{
+		LOG.info("Usage: svm_server [options] [model_file]");
+		LOG.info("");
+		LOG.info("Serves predictions of models on the loopback interface.");
+		LOG.info("Line protocol, one response line per request line:");
+		LOG.info("	[model=name] [label|values|prob] row : predict a LIBSVM-format row (the target label is optional)");
+		LOG.info("	[model=name] labels : list the labels of the model");
+		LOG.info("	[model=name] reload : load the model file again");
+		LOG.info("	models : list the models as name:version:bytes");
+		LOG.info("	stats : show the request counters");
+		LOG.info("HTTP/1.1: POST /predict?model=name&output=label|values|prob with rows as the body,");
+		LOG.info("	GET /labels?model=name, POST /reload?model=name, GET /models, GET /stats");
+		LOG.info("");
+		LOG.info("model_file is served as model \"default\".");
+		LOG.info("Options:");
+		LOG.info("-m name=file : serve the model file under a name (repeatable)");
+		LOG.info("--memory mb : unload least recently used models beyond this much memory (default 0: no limit)");
+		LOG.info("-p port : serve the line protocol on this port (default 9190, 0: off)");
+		LOG.info("--http port : serve HTTP on this port (default 0: off)");
+		LOG.info("--batch n : score label requests of concurrent connections together, up to n at a time (default 1: off)");
+		LOG.info("--batch-delay us : wait this long for more requests to batch (default 200)");
+		LOG.info("--cache n : cache the predictions of up to n distinct rows per model (default 0: off)");
+		LOG.info("--cache-mb mb : cache at most this much memory per model (default 64)");
+		LOG.info("--help : display this help and exit");
+		LOG.info("--version : output version information and exit");
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		svm_train.setupLogging();
+
+		int port = 9190;
+		int http_port = 0;
+		int batch = 1;
+		long batch_delay = 200;
+		long memory = 0;
+		long cache_entries = 0;
+		long cache_mb = 64;
+		Map<String, String> models = new LinkedHashMap<String, String>();
+		int i;
+		try
+		{
+			for(i=0;i<argv.length;i++)
+			{
+				if(argv[i].charAt(0) != '-') break;
+				if(argv[i].equals("--help"))
+				{
+					logHelp();
+					System.exit(0);
+				}
+				if(argv[i].equals("--version"))
+				{
+					LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-server", svm.getVersion()});
+					System.exit(0);
+				}
+				if(++i >= argv.length)
+					throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+				String option = argv[i-1];
+				if(option.equals("-p"))
+					port = Integer.parseInt(argv[i]);
+				else if(option.equals("--http"))
+					http_port = Integer.parseInt(argv[i]);
+				else if(option.equals("--batch"))
+					batch = Integer.parseInt(argv[i]);
+				else if(option.equals("--batch-delay"))
+					batch_delay = Long.parseLong(argv[i]);
+				else if(option.equals("--memory"))
+					memory = Long.parseLong(argv[i]);
+				else if(option.equals("--cache"))
+					cache_entries = Long.parseLong(argv[i]);
+				else if(option.equals("--cache-mb"))
+					cache_mb = Long.parseLong(argv[i]);
+				else if(option.equals("-m"))
+				{
+					int eq = argv[i].indexOf('=');
+					if(eq <= 0)
+						throw new IllegalArgumentException("Expected name=file: " + argv[i]);
+					models.put(argv[i].substring(0, eq), argv[i].substring(eq+1));
+				}
+				else
+					throw new IllegalArgumentException("Unknown option: " + option);
+			}
+			if(i == argv.length-1)
+				models.put("default", argv[i]);
+			else if(i != argv.length)
+				throw new IllegalArgumentException("Too many arguments");
+			if(models.isEmpty())
+				throw new IllegalArgumentException("No model file-name given");
+			if(port == 0 && http_port == 0)
+				throw new IllegalArgumentException("No port to serve on");
+			if(batch < 1 || batch_delay < 0 || memory < 0 || cache_entries < 0 || cache_mb < 1)
+				throw new IllegalArgumentException("Invalid batch size, batch delay, memory or cache size");
+		}
+		catch(IllegalArgumentException ex)
+		{
+			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
+			logHelp();
+			System.exit(1);
+			return;
+		}
+
+		svm_model_registry registry = new svm_model_registry(
+				(memory == 0) ? Long.MAX_VALUE : memory << 20,
+				Math.max(1, Runtime.getRuntime().availableProcessors()/2));
+		for(Map.Entry<String, String> model : models.entrySet())
+			registry.register(model.getKey(), model.getValue());
+		String default_model = models.keySet().iterator().next();
+		try
+		{
+			// fail early on a bad default model
+			registry.acquire(default_model).release();
+		}
+		catch(IOException ex)
+		{
+			LOG.log(Level.SEVERE, "can't open model file " + models.get(default_model), ex);
+			System.exit(1);
+		}
+		svm.svm_setLogLevel(Level.OFF);
+		svm_server server = new svm_server(registry, default_model, batch, batch_delay,
+				cache_entries, cache_mb << 20);
+
+		List<Thread> acceptors = new ArrayList<Thread>();
+		if(port != 0)
+			acceptors.add(server.listen(port, false));
+		if(http_port != 0)
+			acceptors.add(server.listen(http_port, true));
+		for(Thread t : acceptors)
+		{
+			try
+			{
+				t.join();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections on a loopback port, on a new thread.
+	 */
+	Thread listen(int port, final boolean http) throws IOException
+	{
+		final ServerSocket server_socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		LOG.log(Level.INFO, "Serving {0} on 127.0.0.1:{1}",
+				new Object[] {http ? "HTTP" : "the line protocol", Integer.toString(server_socket.getLocalPort())});
+		Thread acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while(true)
+				{
+					final Socket socket;
+					try
+					{
+						socket = server_socket.accept();
+					}
+					catch(IOException e)
+					{
+						LOG.log(Level.SEVERE, "Failed accepting connections", e);
+						return;
+					}
+					connections.incrementAndGet();
+					executor.execute(new Runnable()
+					{
+						public void run()
+						{
+							serve(socket, http);
+						}
+					});
+				}
+			}
+		}, "svm-server-accept-" + port);
+		acceptor.start();
+		return acceptor;
+	}
+
+	private void serve(Socket socket, boolean http)
+	{
+		try
+		{
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			if(http)
+				serve_http(in, out);
+			else
+				serve_lines(in, out);
+		}
+		catch(SocketException e)
+		{
+			// the client went away
+		}
+		catch(IOException e)
+		{
+			LOG.log(Level.WARNING, "Connection failed", e);
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	private void serve_lines(InputStream in, OutputStream out) throws IOException
+	{
+		String line;
+		while((line = read_line(in)) != null)
+		{
+			write(out, respond(line.trim()) + "\n");
+			// pipelined requests are answered together
+			if(in.available() == 0)
+				out.flush();
+		}
+		out.flush();
+	}
+
+	private void serve_http(InputStream in, OutputStream out) throws IOException
+	{
+		while(true)
+		{
+			String request_line = read_line(in);
+			if(request_line == null)
+				break;
+			if(request_line.length() == 0)
+				continue;
+
+			int content_length = 0;
+			boolean bad_length = false;
+			boolean keep_alive = !request_line.endsWith("HTTP/1.0");
+			boolean chunked = false;
+			String header;
+			while((header = read_line(in)) != null && header.length() > 0)
+			{
+				int colon = header.indexOf(':');
+				if(colon < 0)
+					continue;
+				String name = header.substring(0, colon).trim().toLowerCase();
+				String value = header.substring(colon+1).trim();
+				if(name.equals("content-length"))
+				{
+					try
+					{
+						content_length = Integer.parseInt(value);
+					}
+					catch(NumberFormatException e)
+					{
+						bad_length = true;
+					}
+				}
+				else if(name.equals("connection"))
+					keep_alive = value.equalsIgnoreCase("keep-alive") ||
+						(keep_alive && !value.equalsIgnoreCase("close"));
+				else if(name.equals("transfer-encoding"))
+					chunked = !value.equalsIgnoreCase("identity");
+			}
+			if(header == null)
+				break;
+
+			// without a length the body cannot be skipped, so the connection is closed
+			if(bad_length)
+			{
+				write_http(out, 400, "Bad Request", "error invalid Content-Length\n", false);
+				break;
+			}
+			if(chunked)
+			{
+				write_http(out, 411, "Length Required", "error chunked bodies are not supported\n", false);
+				break;
+			}
+			if(content_length < 0 || content_length > MAX_REQUEST)
+			{
+				write_http(out, 413, "Payload Too Large", "error request too large\n", false);
+				break;
+			}
+			byte[] body = new byte[content_length];
+			int n = 0;
+			while(n < content_length)
+			{
+				int r = in.read(body, n, content_length-n);
+				if(r < 0)
+					return;
+				n += r;
+			}
+
+			StringTokenizer st = new StringTokenizer(request_line, " ");
+			String method = st.hasMoreTokens() ? st.nextToken() : "";
+			String target = st.hasMoreTokens() ? st.nextToken() : "";
+			String path = target;
+			String query = "";
+			int q = target.indexOf('?');
+			if(q >= 0)
+			{
+				path = target.substring(0, q);
+				query = target.substring(q+1);
+			}
+
+			String name = query_parameter(query, "model");
+			if(name == null)
+				name = default_model;
+			if(path.equals("/predict"))
+			{
+				if(!method.equals("POST"))
+					write_http(out, 405, "Method Not Allowed", "error use POST\n", keep_alive);
+				else
+				{
+					int output = parse_output(query_parameter(query, "output"));
+					if(output < 0)
+						write_http(out, 400, "Bad Request", "error unknown output\n", keep_alive);
+					else
+					{
+						List<String> rows = new ArrayList<String>();
+						StringTokenizer st_rows = new StringTokenizer(new String(body, "ISO-8859-1"), "\r\n");
+						while(st_rows.hasMoreTokens())
+						{
+							String row = st_rows.nextToken().trim();
+							if(row.length() > 0)
+								rows.add(row);
+						}
+						write_http(out, 200, "OK", predict(name, rows.toArray(new String[rows.size()]), output), keep_alive);
+					}
+				}
+			}
+			else if(path.equals("/stats") || path.equals("/labels") || path.equals("/models"))
+			{
+				if(!method.equals("GET"))
+					write_http(out, 405, "Method Not Allowed", "error use GET\n", keep_alive);
+				else
+					write_http(out, 200, "OK", respond("model=" + name + " " + path.substring(1)) + "\n", keep_alive);
+			}
+			else if(path.equals("/reload"))
+			{
+				if(!method.equals("POST"))
+					write_http(out, 405, "Method Not Allowed", "error use POST\n", keep_alive);
+				else
+					write_http(out, 200, "OK", reload(name) + "\n", keep_alive);
+			}
+			else
+				write_http(out, 404, "Not Found", "error unknown path\n", keep_alive);
+
+			if(!keep_alive)
+				break;
+			if(in.available() == 0)
+				out.flush();
+		}
+		out.flush();
+	}
+
+	private static String query_parameter(String query, String name)
+	{
+		StringTokenizer st = new StringTokenizer(query, "&");
+		while(st.hasMoreTokens())
+		{
+			String pair = st.nextToken();
+			int eq = pair.indexOf('=');
+			if(eq >= 0 && pair.substring(0, eq).equals(name))
+				return pair.substring(eq+1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the output kind by its name, -1 if unknown
+	 */
+	private static int parse_output(String name)
+	{
+		if(name == null || name.equals("label"))
+			return OUTPUT_LABEL;
+		if(name.equals("values"))
+			return OUTPUT_VALUES;
+		if(name.equals("prob"))
+			return OUTPUT_PROB;
+		return -1;
+	}
+
+	private static void write_http(OutputStream out, int status, String reason, String body, boolean keep_alive) throws IOException
+	{
+		byte[] bytes = body.getBytes("ISO-8859-1");
+		write(out, "HTTP/1.1 " + status + " " + reason + "\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"Content-Length: " + bytes.length + "\r\n" +
+			(keep_alive ? "" : "Connection: close\r\n") +
+			"\r\n");
+		out.write(bytes);
+	}
+
+	private static void write(OutputStream out, String s) throws IOException
+	{
+		out.write(s.getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * @return the next line without its terminator, <code>null</code> at the end of the stream
+	 */
+	private static String read_line(InputStream in) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) >= 0)
+		{
+			if(c == '\n')
+				break;
+			if(line.length() >= MAX_REQUEST)
+				throw new IOException("request line too long");
+			line.append((char)c);
+		}
+		if(c < 0 && line.length() == 0)
+			return null;
+		int len = line.length();
+		if(len > 0 && line.charAt(len-1) == '\r')
+			line.setLength(len-1);
+		return line.toString();
+	}
+
+	/**
+	 * @return the response to a request of the line protocol
+	 */
+	String respond(String request)
+	{
+		String name = default_model;
+		if(request.startsWith("model="))
+		{
+			int space = request.indexOf(' ');
+			name = request.substring(6, (space < 0) ? request.length() : space);
+			request = (space < 0) ? "" : request.substring(space+1).trim();
+		}
+		if(request.equals("stats"))
+			return stats();
+		if(request.equals("models"))
+			return models();
+		if(request.equals("reload"))
+			return reload(name);
+		if(request.equals("labels"))
+			return labels(name);
+
+		int output = OUTPUT_LABEL;
+		int space = request.indexOf(' ');
+		String first = (space < 0) ? request : request.substring(0, space);
+		if(first.indexOf(':') < 0 && parse_output(first) >= 0)
+		{
+			output = parse_output(first);
+			request = (space < 0) ? "" : request.substring(space+1);
+		}
+		return predict(name, request, output);
+	}
+
+	/**
+	 * @return the predictions of the rows, one per line, each line terminated
+	 */
+	String predict(String name, String[] rows, int output)
+	{
+		svm_model_registry.lease lease;
+		try
+		{
+			lease = registry.acquire(name);
+		}
+		catch(IOException e)
+		{
+			return count_error("error failed to load model " + name) + "\n";
+		}
+		catch(IllegalArgumentException e)
+		{
+			return count_error("error unknown model " + name) + "\n";
+		}
+		try
+		{
+			StringBuilder sb = new StringBuilder();
+			String version = name + ":" + lease.get_version();
+			for(String row : rows)
+				sb.append(predict(version, lease.get_model(), row, output)).append('\n');
+			return sb.toString();
+		}
+		finally
+		{
+			lease.release();
+		}
+	}
+
+	private String predict(String name, String row, int output)
+	{
+		String response = predict(name, new String[] {row}, output);
+		return response.substring(0, response.length()-1);
+	}
+
+	/**
+	 * @param version name:version of the model
+	 * @return the prediction of a row as the response line, without the line terminator
+	 */
+	private String predict(String version, svm_model model, String row, int output)
+	{
+		long start = System.nanoTime();
+		String response;
+		try
+		{
+			response = predict(version, model, parse_row(row), output);
+		}
+		catch(NumberFormatException e)
+		{
+			response = "error malformed row";
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			response = "error interrupted";
+		}
+		catch(RuntimeException e)
+		{
+			response = "error " + e;
+		}
+		long latency = System.nanoTime() - start;
+
+		requests.incrementAndGet();
+		if(response.startsWith("error"))
+			errors.incrementAndGet();
+		total_latency.addAndGet(latency);
+		long max;
+		while(latency > (max = max_latency.get()) && !max_latency.compareAndSet(max, latency))
+			;
+		return response;
+	}
+
+	private String predict(String version, svm_model model, svm_node[] x, int output) throws InterruptedException
+	{
+		int svm_type = svm.svm_get_svm_type(model);
+		StringBuilder sb = new StringBuilder();
+		if(output == OUTPUT_PROB)
+		{
+			if(svm.svm_check_probability_model(model) == 0)
+				return "error the model does not support probability estimates";
+			if(svm_type == svm_parameter.EPSILON_SVR || svm_type == svm_parameter.NU_SVR)
+			{
+				// the estimate is the Laplace scale of the error
+				sb.append(svm.svm_predict(model,x)).append(' ').append(svm.svm_get_svr_probability(model));
+				return sb.toString();
+			}
+			double[] prob_estimates = new double[model.nr_class];
+			svm_prediction_cache cache = cache(version);
+			sb.append((cache != null) ? cache.predict_probability(model,x,prob_estimates) :
+				svm.svm_predict_probability(model,x,prob_estimates));
+			for(int j=0;j<model.nr_class;j++)
+				sb.append(' ').append(prob_estimates[j]);
+			return sb.toString();
+		}
+		if(output == OUTPUT_VALUES)
+		{
+			int nr_dec = (model.nSV == null) ? 1 : model.nr_class*(model.nr_class-1)/2;
+			double[] dec_values = new double[nr_dec];
+			svm_prediction_cache cache = cache(version);
+			sb.append((cache != null) ? cache.predict_values(model,x,dec_values) :
+				svm.svm_predict_values(model,x,dec_values));
+			for(int p=0;p<nr_dec;p++)
+				sb.append(' ').append(dec_values[p]);
+			return sb.toString();
+		}
+		svm_prediction_cache cache = cache(version);
+		if(batch > 1)
+		{
+			// the lease held keeps the version, and so its batcher, open
+			svm_batching_predictor batcher = batcher(version, model);
+			return Double.toString((cache != null) ? cache.predict(model,x,batcher) : batcher.predict(x));
+		}
+		return Double.toString((cache != null) ? cache.predict(model,x) : svm.svm_predict(model,x));
+	}
+
+	/**
+	 * @param version name:version of a model
+	 * @return the prediction cache of the version, or null if caching is off
+	 */
+	private svm_prediction_cache cache(String version)
+	{
+		if(cache_entries == 0)
+			return null;
+		synchronized(caches)
+		{
+			svm_prediction_cache cache = caches.get(version);
+			if(cache == null)
+			{
+				cache = new svm_prediction_cache(cache_entries, cache_bytes);
+				caches.put(version, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @param version name:version of a model
+	 * @return the batching predictor of the version
+	 */
+	private svm_batching_predictor batcher(String version, svm_model model)
+	{
+		synchronized(batchers)
+		{
+			svm_batching_predictor batcher = batchers.get(version);
+			if(batcher == null)
+			{
+				batcher = new svm_batching_predictor(model,batch,batch_delay);
+				batchers.put(version, batcher);
+			}
+			return batcher;
+		}
+	}
+
+	/**
+	 * Closes the batcher and drops the cache of a version the registry dropped.
+	 * @param version name:version of the model
+	 */
+	private void drop(String version)
+	{
+		synchronized(batchers)
+		{
+			svm_batching_predictor batcher = batchers.remove(version);
+			if(batcher != null)
+				batcher.close();
+		}
+		synchronized(caches)
+		{
+			svm_prediction_cache cache = caches.remove(version);
+			if(cache != null)
+			{
+				dropped_hits += cache.get_hits();
+				dropped_misses += cache.get_misses();
+				dropped_invalidations += cache.get_invalidations() + ((cache.get_entries() > 0) ? 1 : 0);
+			}
+		}
+	}
+
+	private String labels(String name)
+	{
+		svm_model_registry.lease lease;
+		try
+		{
+			lease = registry.acquire(name);
+		}
+		catch(IOException e)
+		{
+			return count_error("error failed to load model " + name);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return count_error("error unknown model " + name);
+		}
+		try
+		{
+			svm_model model = lease.get_model();
+			if(model.label == null)
+				return count_error("error the model has no labels");
+			StringBuilder sb = new StringBuilder("labels");
+			for(int j=0;j<model.nr_class;j++)
+				sb.append(' ').append(model.label[j]);
+			return sb.toString();
+		}
+		finally
+		{
+			lease.release();
+		}
+	}
+
+	private String reload(String name)
+	{
+		try
+		{
+			registry.reload(name);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return count_error("error unknown model " + name);
+		}
+		return "reloading " + name;
+	}
+
+	private String count_error(String response)
+	{
+		errors.incrementAndGet();
+		return response;
+	}
+
+	/**
+	 * @return the hits, misses, hit rate and entries of the prediction caches, in all
+	 */
+	private String cache_stats()
+	{
+		if(cache_entries == 0)
+			return "";
+		long hits, misses, entries = 0, invalidations;
+		synchronized(caches)
+		{
+			hits = dropped_hits;
+			misses = dropped_misses;
+			invalidations = dropped_invalidations;
+			for(svm_prediction_cache cache : caches.values())
+			{
+				hits += cache.get_hits();
+				misses += cache.get_misses();
+				entries += cache.get_entries();
+				invalidations += cache.get_invalidations();
+			}
+		}
+		return String.format(" cache_hits %d cache_misses %d cache_hit_rate %.3f cache_entries %d cache_invalidations %d",
+				hits, misses, (hits+misses == 0) ? 0.0 : (double)hits/(hits+misses), entries, invalidations);
+	}
+
+	/**
+	 * @return name:version:bytes of each model
+	 */
+	String models()
+	{
+		StringBuilder sb = new StringBuilder("models");
+		for(String name : registry.get_names())
+		{
+			try
+			{
+				sb.append(' ').append(name).append(':').append(registry.get_version(name))
+					.append(':').append(registry.get_bytes(name));
+			}
+			catch(IllegalArgumentException e)
+			{
+				// unregistered meanwhile
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the nodes of a LIBSVM-format row, whose label, if any, is ignored
+	 */
+	private static svm_node[] parse_row(String row)
+	{
+		StringTokenizer st = new StringTokenizer(row," \t\f");
+		List<svm_node> nodes = new ArrayList<svm_node>();
+		while(st.hasMoreTokens())
+		{
+			String token = st.nextToken();
+			int colon = token.indexOf(':');
+			if(colon < 0)
+			{
+				if(!nodes.isEmpty())
+					throw new NumberFormatException("feature without index: " + token);
+				Double.parseDouble(token); // the target label
+				continue;
+			}
+			svm_node node = new svm_node();
+			node.index = Integer.parseInt(token.substring(0, colon));
+			node.value = Double.parseDouble(token.substring(colon+1));
+			nodes.add(node);
+		}
+		return nodes.toArray(new svm_node[nodes.size()]);
+	}
+
+	/**
+	 * @return the counters, as "name value" pairs
+	 */
+	String stats()
+	{
+		double uptime = (System.nanoTime() - started) / 1e9;
+		long n = requests.get();
+		return String.format("stats connections %d requests %d errors %d uptime_s %.3f throughput_per_s %.1f mean_latency_us %.1f max_latency_us %.1f" +
+				" resident_bytes %d loads %d mean_load_ms %.1f evictions %d",
+				connections.get(), n, errors.get(), uptime, n/uptime,
+				(n == 0) ? 0.0 : total_latency.get()/1e3/n, max_latency.get()/1e3,
+				registry.get_resident_bytes(), registry.get_loads(), registry.get_mean_load_time(), registry.get_evictions()) +
+				cache_stats();
+	}
+}
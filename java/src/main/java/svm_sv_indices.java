@@ -0,0 +1,60 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_parameter;
+
+class svm_sv_indices
+{
+	private static final Logger LOG = Logger.getLogger(svm_sv_indices.class.getName());
+
+	private static void logHelp()
+	{
+		LOG.info("Usage: svm_sv_indices model_file");
+		LOG.info("");
+		LOG.info("Lists the training instances a model with a precomputed kernel needs");
+		LOG.info("kernel values against, one sample serial number per line.");
+		LOG.info("Line k is the instance whose kernel value goes to index k");
+		LOG.info("of the test rows given to svm_predict --sv-kernel.");
+		LOG.info("");
+		LOG.info("Options:");
+		LOG.info("--help : display this help and exit");
+		LOG.info("--version : output version information and exit");
+	}
+
+	public static void main(String argv[]) throws IOException
+	{
+		svm_train.setupLogging();
+
+		if(argv.length == 1 && argv[0].equals("--version"))
+		{
+			LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-sv-indices", svm.getVersion()});
+			System.exit(0);
+		}
+		if(argv.length != 1 || argv[0].startsWith("-"))
+		{
+			logHelp();
+			System.exit(argv.length == 1 && argv[0].equals("--help") ? 0 : 1);
+		}
+
+		svm_model model = svm.svm_load_model(argv[0]);
+		if(model.param.kernel_type != svm_parameter.PRECOMPUTED)
+		{
+			LOG.severe("Model does not use a precomputed kernel");
+			System.exit(1);
+		}
+
+		int[] serials = new int[svm.svm_get_nr_sv(model)];
+		svm.svm_get_sv_serials(model,serials);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+		for(int i=0;i<serials.length;i++)
+		{
+			out.write(Integer.toString(serials[i]));
+			out.newLine();
+		}
+		out.flush();
+	}
+}
@@ -3,9 +3,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.StringTokenizer;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
@@ -14,10 +11,12 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import libsvm.svm;
+import libsvm.svm_kernel_matrix;
 import libsvm.svm_model;
-import libsvm.svm_node;
 import libsvm.svm_parameter;
+import libsvm.svm_pipeline;
 import libsvm.svm_problem;
+import libsvm.svm_scaling;
 
 class svm_train
 {
@@ -32,6 +31,14 @@ class svm_train
 	private String input_file_name;
 	/** set by parse_command_line */
 	private String model_file_name;
+	/** set by parse_command_line, optional */
+	private String kernel_matrix_file_name;
+	/** set by parse_command_line, optional */
+	private String scale_file_name;
+	/** set by parse_command_line */
+	private boolean dedup;
+	/** set by read_problem if scale_file_name is */
+	private svm_scaling scaling;
 	private String error_msg;
 	private int cross_validation;
 	private int nr_fold;
@@ -51,6 +58,8 @@ class svm_train
 		LOG.info("	4 -- nu-SVR      (regression");
 		LOG.info("-t kernel_type : set type of kernel function (default 2)");
 		LOG.info("	0 -- linear: u'*v");
+		LOG.info("	  with C-SVC and epsilon-SVR, if the cache (-m) holds less than 8 kernel columns,");
+		LOG.info("	  the default --linear-solver 0 trains by dual coordinate descent, which gives a different model");
 		LOG.info("	1 -- polynomial: (gamma*u'*v + coef0)^degree");
 		LOG.info("	2 -- radial basis function: exp(-gamma*|u-v|^2)");
 		LOG.info("	3 -- sigmoid: tanh(gamma*u'*v + coef0)");
@@ -63,11 +72,35 @@ class svm_train
 		LOG.info("-p epsilon : set the epsilon in loss function of epsilon-SVR (default 0.1)");
 		LOG.info("-m cachesize : set cache memory size in MB (default 100)");
 		LOG.info("-e epsilon : set tolerance of termination criterion (default 0.001)");
-		LOG.info("-h shrinking : whether to use the shrinking heuristics, 0 or 1 (default 1)");
+		LOG.info("-h shrinking : whether to use the shrinking heuristics, 0, 1 or 2 (default 1)");
+		LOG.info("	2 -- shrink through index indirection, keeping the kernel cache in place");
 		LOG.info("-b probability_estimates : whether to train a SVC or SVR model for probability estimates, 0 or 1 (default 0)");
 		LOG.info("-wi weight : set the parameter C of class i to weight*C, for C-SVC (default 1)");
 		LOG.info("-v n : n-fold cross validation mode");
 		LOG.info("-q : quiet mode (no outputs)");
+		LOG.info("--prefetch threads : compute likely kernel columns speculatively on this many threads (default 0)");
+		LOG.info("--linear-solver solver : set the solver for linear kernels with C-SVC and epsilon-SVR (default 0)");
+		LOG.info("	0 -- automatic: dual coordinate descent if the cache holds less than 8 kernel columns");
+		LOG.info("	1 -- SMO over kernel columns");
+		LOG.info("	2 -- dual coordinate descent over the weight vector (the bias is regularized too)");
+		LOG.info("--nystrom m : approximate the kernel by m landmarks and train a linear model (C-SVC and epsilon-SVR, default 0: exact)");
+		LOG.info("--nystrom-sampling method : set how the landmarks are chosen (default 0)");
+		LOG.info("	0 -- random instances");
+		LOG.info("	1 -- k-means cluster centers, or random instances if m times the number of features exceeds 2^24,");
+		LOG.info("	     since the centers are dense");
+		LOG.info("--rff D : approximate the RBF kernel by D random Fourier features and train a linear model (C-SVC and epsilon-SVR, default 0: exact)");
+		LOG.info("--rff-seed seed : set the seed of the random Fourier features (default 1)");
+		LOG.info("--kernel-store directory : keep computed kernel columns in this directory for later runs");
+		LOG.info("	in one file per training set and kernel, which class pairs and cross validation folds share");
+		LOG.info("--kernel-store-size size : set the size limit of the kernel store directory in MB (default 1024)");
+		LOG.info("--kernel-matrix file : read the precomputed kernel from this binary file,");
+		LOG.info("	training_set_file rows are then just \"label 0:sample_serial_number\"");
+		LOG.info("--dedup : train on one instance per group of identical ones, weighted by the group size;");
+		LOG.info("	for all SVM types, the model is the same as without --dedup up to the tolerance -e,");
+		LOG.info("	except for the probability estimates of -b 1, whose internal cross validation splits the data differently");
+		LOG.info("--scale range_file : scale instances by the ranges of svm_scale -s while reading them,");
+		LOG.info("	and save the ranges with the model, so svm_predict scales its instances the same way;");
+		LOG.info("	features missing from range_file are dropped, where svm_scale -r would scale them by their own ranges");
 		LOG.info("--help : display this help and exit");
 		LOG.info("--version : output version information and exit");
 	}
@@ -75,10 +108,14 @@ class svm_train
 	private void do_cross_validation()
 	{
 		int i;
-		int total_correct = 0;
+		double total_correct = 0;
 		double total_error = 0;
 		double sumv = 0, sumy = 0, sumvv = 0, sumyy = 0, sumvy = 0;
 		double[] target = new double[prob.l];
+		// weighted instances count as often as their weights
+		double n = 0;
+		for(i=0;i<prob.l;i++)
+			n += (prob.W == null) ? 1 : prob.W[i];
 
 		svm.svm_cross_validation(prob,param,nr_fold,target);
 		if(param.svm_type == svm_parameter.EPSILON_SVR ||
@@ -86,39 +123,59 @@ class svm_train
 		{
 			for(i=0;i<prob.l;i++)
 			{
+				double w = (prob.W == null) ? 1 : prob.W[i];
 				double y = prob.y[i];
 				double v = target[i];
-				total_error += (v-y)*(v-y);
-				sumv += v;
-				sumy += y;
-				sumvv += v*v;
-				sumyy += y*y;
-				sumvy += v*y;
+				total_error += w*(v-y)*(v-y);
+				sumv += w*v;
+				sumy += w*y;
+				sumvv += w*v*v;
+				sumyy += w*y*y;
+				sumvy += w*v*y;
 			}
-			LOG.log(Level.INFO, "Cross Validation Mean squared error = {0}", total_error/prob.l);
+			LOG.log(Level.INFO, "Cross Validation Mean squared error = {0}", total_error/n);
 			LOG.log(Level.INFO, "Cross Validation Squared correlation coefficient = {0}",
-					((prob.l*sumvy-sumv*sumy)*(prob.l*sumvy-sumv*sumy))
-					/ ((prob.l*sumvv-sumv*sumv)*(prob.l*sumyy-sumy*sumy)));
+					((n*sumvy-sumv*sumy)*(n*sumvy-sumv*sumy))
+					/ ((n*sumvv-sumv*sumv)*(n*sumyy-sumy*sumy)));
 		}
 		else
 		{
 			for(i=0;i<prob.l;i++)
 				if(target[i] == prob.y[i])
-					++total_correct;
-			LOG.log(Level.INFO, "Cross Validation Accuracy = {0}%", 100.0*total_correct/prob.l);
+					total_correct += (prob.W == null) ? 1 : prob.W[i];
+			LOG.log(Level.INFO, "Cross Validation Accuracy = {0}%", 100.0*total_correct/n);
 		}
 	}
 
-	private void run(String argv[]) throws IOException
+	/**
+	 * Runs svm_train on a command line as main does, but returns the exit status
+	 * instead of exiting, so svm_daemon can run it in its JVM.
+	 */
+	static int run(String argv[]) throws IOException
+	{
+		return new svm_train().train(argv);
+	}
+
+	private int train(String argv[]) throws IOException
 	{
-		parse_command_line(argv);
-		read_problem();
+		int status = parse_command_line(argv);
+		if(status >= 0)
+			return status;
+		try
+		{
+			read_problem();
+		}
+		catch(IllegalArgumentException e)
+		{
+			LOG.severe(e.getMessage());
+			return 1;
+		}
 		error_msg = svm.svm_check_parameter(prob,param);
 
 		if(error_msg != null)
 		{
 			LOG.severe(error_msg);
-			System.exit(1);
+			return 1;
 		}
 
 		if(cross_validation != 0)
@@ -128,8 +185,10 @@ class svm_train
 		else
 		{
 			model = svm.svm_train(prob,param);
+			model.scaling = scaling;
 			svm.svm_save_model(model_file_name,model);
 		}
+		return 0;
 	}
 
 	private static class BasicFormatter extends Formatter {
@@ -172,18 +231,14 @@ class svm_train
 	{
 		setupLogging();
 
-		svm_train t = new svm_train();
-		t.run(argv);
+		System.exit(run(argv));
 	}
 
 	private static double atof(String s)
 	{
 		double d = Double.valueOf(s).doubleValue();
 		if (Double.isNaN(d) || Double.isInfinite(d))
-		{
-			LOG.severe("NaN or Infinity in input");
-			System.exit(1);
-		}
+			throw new IllegalArgumentException("NaN or Infinity in input");
 		return(d);
 	}
 
@@ -192,7 +247,11 @@ class svm_train
 		return Integer.parseInt(s);
 	}
 
-	private void parse_command_line(String argv[])
+	/**
+	 * @return the exit status if the command line ends the tool,
+	 *   as --help and errors do, or -1 to go on
+	 */
+	private int parse_command_line(String argv[])
 	{
 		int i = 0;
 
@@ -210,6 +269,14 @@ class svm_train
 		param.p = 0.1;
 		param.shrinking = 1;
 		param.probability = 0;
+		param.prefetch_threads = 0;
+		param.kernel_store = null;
+		param.kernel_store_size = 1024;
+		param.linear_solver = svm_parameter.LINEAR_AUTO;
+		param.nystrom_landmarks = 0;
+		param.nystrom_sampling = svm_parameter.NYSTROM_RANDOM;
+		param.rff_features = 0;
+		param.rff_seed = 1;
 		param.nr_weight = 0;
 		param.weight_label = new int[0];
 		param.weight = new double[0];
@@ -295,12 +362,77 @@ class svm_train
 						if (longOptName.equals("help"))
 						{
 							logHelp();
-							System.exit(0);
+							return 0;
 						}
 						else if (longOptName.equals("version"))
 						{
 							LOG.log(Level.INFO, "{0} {1} {2}", new Object[] {"LibSVM", "svm-train", svm.getVersion()});
-							System.exit(0);
+							return 0;
+						}
+						else if (longOptName.equals("prefetch"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.prefetch_threads = atoi(argv[i]);
+						}
+						else if (longOptName.equals("linear-solver"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.linear_solver = atoi(argv[i]);
+						}
+						else if (longOptName.equals("nystrom"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.nystrom_landmarks = atoi(argv[i]);
+						}
+						else if (longOptName.equals("nystrom-sampling"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.nystrom_sampling = atoi(argv[i]);
+						}
+						else if (longOptName.equals("rff"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.rff_features = atoi(argv[i]);
+						}
+						else if (longOptName.equals("rff-seed"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.rff_seed = atoi(argv[i]);
+						}
+						else if (longOptName.equals("kernel-store"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.kernel_store = argv[i];
+						}
+						else if (longOptName.equals("kernel-store-size"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							param.kernel_store_size = atof(argv[i]);
+						}
+						else if (longOptName.equals("dedup"))
+						{
+							dedup = true;
+							i--;
+						}
+						else if (longOptName.equals("scale"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							scale_file_name = argv[i];
+						}
+						else if (longOptName.equals("kernel-matrix"))
+						{
+							if (i >= argv.length)
+								throw new IllegalArgumentException("Missing argument for option " + argv[i-1]);
+							kernel_matrix_file_name = argv[i];
 						}
 						else
 						{
@@ -319,7 +451,7 @@ class svm_train
 		{
 			LOG.log(Level.SEVERE, "Failed parsing arguments", ex);
 			logHelp();
-			System.exit(1);
+			return 1;
 		}
 
 		// determine filenames
@@ -334,71 +466,67 @@ class svm_train
 			++p;	// whew...
 			model_file_name = argv[i].substring(p)+".model";
 		}
+		return -1;
 	}
 
 	/**
 	 * Reads a problem from file (in SVM-light format).
+	 * @throws IllegalArgumentException if the file or the options do not fit
 	 */
 	private void read_problem() throws IOException
 	{
-		BufferedReader fp = new BufferedReader(new FileReader(input_file_name));
-		List<Double> vy = new LinkedList<Double>();
-		List<svm_node[]> vx = new LinkedList<svm_node[]>();
-		int max_index = 0;
+		svm_pipeline pipeline = new svm_pipeline();
+		svm_pipeline.stage collapse = null;
+		if(dedup)
+		{
+			collapse = svm_pipeline.collapse_stage();
+			pipeline.add(collapse);
+		}
+		if(scale_file_name != null)
+		{
+			if(param.kernel_type == svm_parameter.PRECOMPUTED)
+				throw new IllegalArgumentException("--scale cannot be used with precomputed kernels");
+			pipeline.scale(svm_scaling.load(scale_file_name));
+		}
 
+		svm_pipeline.problem_builder builder = new svm_pipeline.problem_builder();
+		BufferedReader fp = new BufferedReader(new FileReader(input_file_name));
 		try
 		{
-			while(true)
-			{
-				String line = fp.readLine();
-				if(line == null) break;
-
-				StringTokenizer st = new StringTokenizer(line," \t\f:");
-
-				vy.add(atof(st.nextToken()));
-				int m = st.countTokens()/2;
-				svm_node[] x = new svm_node[m];
-				for(int j=0;j<m;j++)
-				{
-					x[j] = new svm_node();
-					x[j].index = atoi(st.nextToken());
-					x[j].value = atof(st.nextToken());
-				}
-				if(m>0) max_index = Math.max(max_index, x[m-1].index);
-				vx.add(x);
-			}
+			pipeline.run(fp, builder);
 		}
 		finally
 		{
 			fp.close();
 		}
 
-		prob = new svm_problem();
-		prob.l = vy.size();
-		prob.x = new svm_node[prob.l][];
-		for(int i=0;i<prob.l;i++)
-			prob.x[i] = vx.get(i);
-		prob.y = new double[prob.l];
-		for(int i=0;i<prob.l;i++)
-			prob.y[i] = vy.get(i);
+		prob = builder.get_problem();
+		scaling = pipeline.get_scaling();
+		pipeline.log_stats();
+		if(collapse != null)
+		{
+			svm.LOG_COMMON.log(Level.INFO, "{0} instances collapsed into {1}",
+				new Object[] {collapse.get_in(), collapse.get_out()});
+		}
+		int max_index = builder.get_max_index();
 
 		if(param.gamma == 0 && max_index > 0)
 			param.gamma = 1.0/max_index;
 
+		if(kernel_matrix_file_name != null)
+		{
+			prob.kernel_matrix = svm_kernel_matrix.load(kernel_matrix_file_name, true);
+			max_index = prob.kernel_matrix.get_size();
+		}
+
 		if(param.kernel_type == svm_parameter.PRECOMPUTED)
 		{
 			for(int i=0;i<prob.l;i++)
 			{
 				if (prob.x[i][0].index != 0)
-				{
-					LOG.severe("Wrong kernel matrix: first column must be 0:sample_serial_number");
-					System.exit(1);
-				}
+					throw new IllegalArgumentException("Wrong kernel matrix: first column must be 0:sample_serial_number");
 				if ((int)prob.x[i][0].value <= 0 || (int)prob.x[i][0].value > max_index)
-				{
-					LOG.severe("Wrong input format: sample_serial_number out of range");
-					System.exit(1);
-				}
+					throw new IllegalArgumentException("Wrong input format: sample_serial_number out of range");
 			}
 		}
 	}